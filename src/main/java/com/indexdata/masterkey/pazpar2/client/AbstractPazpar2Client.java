@@ -5,12 +5,14 @@
  */
 package com.indexdata.masterkey.pazpar2.client;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Externalizable;
+import java.io.InterruptedIOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.OutputStream;
-import java.io.Serializable;
-import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
@@ -19,24 +21,23 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 import javax.xml.transform.TransformerException;
-import javax.xml.xpath.XPathExpressionException;
 
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.RequestEntity;
-import org.apache.commons.httpclient.methods.StringRequestEntity;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 import com.indexdata.masterkey.pazpar2.client.exceptions.Pazpar2ErrorException;
@@ -45,35 +46,110 @@ import com.indexdata.masterkey.pazpar2.client.exceptions.Pazpar2InitException;
 import com.indexdata.masterkey.pazpar2.client.exceptions.Pazpar2MalformedOutputException;
 import com.indexdata.masterkey.pazpar2.client.exceptions.Pazpar2MissingRecordException;
 import com.indexdata.masterkey.pazpar2.client.exceptions.ProxyErrorException;
+import com.indexdata.utils.BufferPool;
+import com.indexdata.utils.ContentEncodingOutputStream;
+import com.indexdata.utils.HttpContentEncoding;
+import com.indexdata.utils.MDCThreadPoolExecutor;
 import com.indexdata.utils.PerformanceLogger;
+import com.indexdata.utils.TeeInputStream;
 import com.indexdata.utils.XmlUtils;
 
 /**
  * @author jakub, nielserik
  *
  */
-public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializable {
+public abstract class AbstractPazpar2Client implements Pazpar2Client, Externalizable {
   private static final long serialVersionUID = -5281057457054297741L;
   private static int MAX_URL_LENGTH = 2048;
+  //longest wait for a coalesced request before sending it anyway
+  private static final long COALESCE_WAIT = 60000;
+  //longest pause between requests for a missing record
+  private static final long MAX_RECORD_BACKOFF = 5000;
   private static Logger logger = Logger.getLogger(AbstractPazpar2Client.class);
+  //keyed by number of threads and queue length
+  private static final Map<String, ThreadPoolExecutor> asyncExecutors =
+    new ConcurrentHashMap<String, ThreadPoolExecutor>();
   protected Pazpar2ClientConfiguration cfg = null;
-  protected Pazpar2ServiceDefinition serviceDefinition;
+  protected transient Pazpar2ServiceDefinition serviceDefinition;
   protected Pazpar2Session pazpar2Session = new Pazpar2Session();
-  private ConcurrentHashMap<String, Document> results =
-    new ConcurrentHashMap<String, Document>();
+  private ConcurrentHashMap<String, CachedResult> results =
+    new ConcurrentHashMap<String, CachedResult>();
+  //query string that produced each cached result, to re-request evicted ones
+  private Map<String, String> resultQueries = new ConcurrentHashMap<String, String>();
   private Map<String, long[]> commandTimeStamps = new ConcurrentHashMap<String, long[]>();
   private int searchCount = 0;
+  private transient Pazpar2Transport transport;
+  private transient SessionLivenessTracker livenessTracker;
+  private transient Pazpar2Router router;
+  private transient CommandCoalescer coalescer;
+  private transient boolean coalescerResolved = false;
+  private transient ResultMemoryGovernor governor;
+  private transient boolean governorResolved = false;
+  private transient RecordPrefetcher prefetcher;
+  private transient boolean prefetcherResolved = false;
+  private transient RecordCache recordCache;
+  private transient boolean recordCacheResolved = false;
+  //number of show results cached, guarded by and signalled on 'results'
+  private transient long showGeneration = 0;
+  //completes when the last queued asynchronous command has finished,
+  //guarded by this
+  private transient CompletableFuture<Void> asyncTail;
   public final String XML_CT = "text/xml;charset=UTF-8";
 
   public class HttpResponse implements Pazpar2HttpResponse {
     final public int statusCode;
     final public InputStream body;
     final public String contentType;
+    //body as received from pazpar2 and its content coding, null for none
+    final InputStream rawBody;
+    final String wireEncoding;
+    //content coding of the body relayed to the caller
+    private final String relayEncoding;
+    private final Pazpar2Transport.Response transportResponse;
 
     HttpResponse(int sc, InputStream is, String ct) {
+      this(sc, is, ct, null, null, null);
+    }
+
+    HttpResponse(Pazpar2Transport.Response response) throws IOException {
+      this(response, response.getBody(), wireEncoding(response));
+    }
+
+    private HttpResponse(Pazpar2Transport.Response response, InputStream raw,
+      String encoding) {
+      this(response.getStatusCode(), HttpContentEncoding.decode(raw, encoding),
+        response.getHeader("Content-Type"), raw, encoding, response);
+    }
+
+    HttpResponse(Pazpar2HttpResponse relayed, String relayEncoding) {
+      statusCode = relayed.getStatusCode();
+      body = null;
+      contentType = relayed.getContentType();
+      rawBody = null;
+      wireEncoding = null;
+      this.relayEncoding = relayEncoding;
+      transportResponse = null;
+    }
+
+    private HttpResponse(int sc, InputStream is, String ct, InputStream raw,
+      String encoding, Pazpar2Transport.Response response) {
       statusCode = sc;
       body = is;
       contentType = ct;
+      rawBody = raw;
+      wireEncoding = encoding;
+      relayEncoding = null;
+      transportResponse = response;
+    }
+
+    /**
+     * Discards any unread part of the body and returns the connection to the
+     * transport. Must be called for responses whose body is not consumed.
+     */
+    public void release() {
+      if (transportResponse != null) {
+        transportResponse.release();
+      }
     }
 
     @Override
@@ -85,6 +161,21 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
     public int getStatusCode() {
       return statusCode;
     }
+
+    @Override
+    public String getContentEncoding() {
+      return relayEncoding;
+    }
+  }
+
+  private static String wireEncoding(Pazpar2Transport.Response response)
+    throws IOException {
+    String encoding = response.getHeader("Content-Encoding");
+    if (!HttpContentEncoding.isSupported(encoding)) {
+      response.release();
+      throw new IOException("Unsupported Content-Encoding from pazpar2: " + encoding);
+    }
+    return HttpContentEncoding.normalize(encoding);
   }
 
   protected AbstractPazpar2Client(Pazpar2ClientConfiguration proxyCfg) throws
@@ -94,8 +185,310 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
     logger.log(Level.DEBUG, "Creating MODE " + proxyCfg.PROXY_MODE + " client.");
   }
 
+  /**
+   * For deserialization only.
+   */
+  protected AbstractPazpar2Client() {
+  }
+
+  /**
+   * Writes the compact state of the client: the configuration, the pazpar2
+   * session with its search commands, and the query strings of the cached
+   * results. The results themselves, time stamps and everything derived
+   * from the configuration are rebuilt or requested again on the receiving
+   * side. The configuration is written because nothing else tells the
+   * receiving node which pazpar2 to talk to.
+   */
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeObject(cfg);
+    out.writeObject(pazpar2Session);
+    out.writeInt(searchCount);
+    out.writeInt(resultQueries.size());
+    for (Map.Entry<String, String> query : resultQueries.entrySet()) {
+      out.writeUTF(query.getKey());
+      out.writeObject(query.getValue());
+    }
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException,
+    ClassNotFoundException {
+    cfg = (Pazpar2ClientConfiguration) in.readObject();
+    pazpar2Session = (Pazpar2Session) in.readObject();
+    searchCount = in.readInt();
+    for (int i = in.readInt(); i > 0; i--) {
+      String command = in.readUTF();
+      resultQueries.put(command, (String) in.readObject());
+    }
+  }
+
+  /**
+   * Returns the service definition, loading it after deserialization.
+   */
+  protected Pazpar2ServiceDefinition getServiceDefinition()
+    throws ProxyErrorException {
+    if (serviceDefinition == null) {
+      serviceDefinition = new Pazpar2ServiceDefinition(cfg);
+    }
+    return serviceDefinition;
+  }
+
   protected abstract boolean requiresForcedInit();
 
+  /**
+   * Applies changes to the session settings that do not need a new session.
+   * Called before a search that did not force an init.
+   */
+  protected void updateSettings() throws Pazpar2IOException,
+    Pazpar2ErrorException {
+  }
+
+  /**
+   * Returns the transport used for pazpar2 requests, by default the pooled
+   * transport shared by all clients with the same connection settings,
+   * guarded by per endpoint circuit breakers and metered unless metrics are
+   * disabled.
+   */
+  protected Pazpar2Transport getTransport() {
+    if (transport == null) {
+      Pazpar2Transport shared = CircuitBreakingPazpar2Transport.forConfiguration(cfg);
+      Pazpar2Metrics metrics = Pazpar2MetricsRegistry.forConfiguration(cfg);
+      transport = metrics != null ? new MeteredPazpar2Transport(shared, metrics) : shared;
+    }
+    return transport;
+  }
+
+  /**
+   * Returns the tracker that vouches for recently active pazpar2 sessions.
+   */
+  protected SessionLivenessTracker getLivenessTracker() {
+    if (livenessTracker == null) {
+      livenessTracker = SessionLivenessTracker.forConfiguration(cfg);
+    }
+    return livenessTracker;
+  }
+
+  /**
+   * Returns the router that places new sessions on the configured pazpar2
+   * endpoints.
+   */
+  protected Pazpar2Router getRouter() {
+    if (router == null) {
+      router = Pazpar2Router.forConfiguration(cfg);
+    }
+    return router;
+  }
+
+  /**
+   * Returns the key new sessions are placed by, so sessions sharing it land
+   * on the same pazpar2 endpoint.
+   */
+  protected String getRoutingKey() {
+    return cfg.TORUS_REALM;
+  }
+
+  /**
+   * Returns the registry coalescing identical concurrent commands, null if
+   * coalescing is disabled.
+   */
+  protected CommandCoalescer getCoalescer() {
+    if (!coalescerResolved) {
+      coalescer = CommandCoalescer.forConfiguration(cfg);
+      coalescerResolved = true;
+    }
+    return coalescer;
+  }
+
+  /**
+   * Returns the process-wide budget for cached results, null if there is
+   * none.
+   */
+  protected ResultMemoryGovernor getGovernor() {
+    if (!governorResolved) {
+      governor = ResultMemoryGovernor.forConfiguration(cfg);
+      governorResolved = true;
+    }
+    return governor;
+  }
+
+  /**
+   * Returns the prefetcher of the records on the current show page, null if
+   * prefetching is disabled.
+   */
+  private RecordPrefetcher getPrefetcher() {
+    if (!prefetcherResolved) {
+      prefetcher = RecordPrefetcher.forConfiguration(cfg);
+      prefetcherResolved = true;
+    }
+    return prefetcher;
+  }
+
+  /**
+   * Returns the process-wide cache of record responses, null if there is
+   * none.
+   */
+  protected RecordCache getRecordCache() {
+    if (!recordCacheResolved) {
+      recordCache = RecordCache.forConfiguration(cfg);
+      recordCacheResolved = true;
+    }
+    return recordCache;
+  }
+
+  /**
+   * Drops the prefetched and cached records of the session as its search
+   * is about to change.
+   */
+  private void discardRecords() {
+    RecordPrefetcher p = getPrefetcher();
+    if (p != null) {
+      p.cancel();
+    }
+    RecordCache rc = getRecordCache();
+    if (rc != null && getSessionId() != null) {
+      rc.invalidate(recordSession());
+    }
+  }
+
+  /**
+   * @return identifies the session in the record cache
+   */
+  private String recordSession() {
+    return getPazpar2Url() + "|" + getSessionId();
+  }
+
+  /**
+   * @return identifies the current search of the session in the record cache
+   */
+  private String recordSearch() {
+    return searchCount + "|" + pazpar2Session.getSearchQueryString();
+  }
+
+  /**
+   * Answers a record command from the record cache or the prefetched records.
+   * @return the replayed response, null if the record must be requested
+   */
+  private HttpResponse cachedRecord(ClientCommand command, OutputStream os)
+    throws IOException {
+    String queryString = command.getPz2queryString();
+    CachedResult record = null;
+    String contentType = XML_CT;
+    RecordCache rc = getRecordCache();
+    if (rc != null) {
+      RecordCache.Entry cached = rc.get(recordSession(), recordSearch(), queryString);
+      if (cached != null) {
+        record = cached.getRecord();
+        contentType = cached.getContentType();
+      }
+    }
+    if (record == null && !command.recordWithOffset()) {
+      record = prefetchedRecord(command);
+    }
+    if (record == null) {
+      return null;
+    }
+    logger.debug("Serving cached record on session [" + getSessionId()
+      + "]: " + queryString);
+    HttpResponse replay = new HttpResponse(200,
+      new ByteArrayInputStream(record.getBytes()), contentType);
+    if (command.recordWithOffset()) {
+      relay(replay, os);
+    } else {
+      cacheResults(command.getCommand(), queryString, replay, os);
+    }
+    return replay;
+  }
+
+  /**
+   * Starts prefetching the records of the hits in a show result, each with a
+   * plain 'record' request on the current session.
+   */
+  private void prefetchRecords(CachedResult show) {
+    RecordPrefetcher p = getPrefetcher();
+    if (p == null || getSessionId() == null) {
+      return;
+    }
+    HitIndex index = show.getHitIndex();
+    if (index == null) {
+      return;
+    }
+    final String requestUrl = getPazpar2Url() + "?session=" + getSessionId()
+      + "&command=record&id=";
+    p.prefetch(index.recids(), new RecordPrefetcher.Fetcher() {
+      @Override
+      public CachedResult fetch(String recid) throws Exception {
+        HttpResponse response = new HttpResponse(getTransport().get(requestUrl
+          + URLEncoder.encode(recid, "UTF-8")));
+        if (response.statusCode != 200 || response.contentType == null
+          || !response.contentType.contains("xml")) {
+          response.release();
+          return null;
+        }
+        return capture(response, null);
+      }
+    });
+  }
+
+  /**
+   * @return the prefetched record the command asks for, null if the record
+   * was not prefetched or the command asks for more than the plain record
+   */
+  private CachedResult prefetchedRecord(ClientCommand command) {
+    RecordPrefetcher p = getPrefetcher();
+    if (p == null || command.getRecordId() == null
+      || command.getPz2queryString().split("&").length != 2) {
+      return null;
+    }
+    return p.get(command.getRecordId());
+  }
+
+  /**
+   * Returns the pazpar2 endpoint that owns the current session, requests on
+   * a session must always go there.
+   */
+  protected String getPazpar2Url() {
+    String url = pazpar2Session.getPazpar2Url();
+    return url != null ? url : cfg.PAZPAR2_URL;
+  }
+
+  /**
+   * Records a successful response on the current session.
+   */
+  private void confirmed() {
+    getLivenessTracker().confirmed(getSessionId(), getPazpar2Url(), getTransport());
+    getRouter().touched(getPazpar2Url(), getSessionId());
+  }
+
+  /**
+   * Gives up the current session if its endpoint cannot be reached and other
+   * endpoints are configured, so that the session can be re-created elsewhere.
+   * @param pio error from the last request
+   * @return true if the session was given up
+   */
+  private boolean rehomeSession(Pazpar2IOException pio) {
+    String url = pazpar2Session.getPazpar2Url();
+    if (url == null || !getRouter().isMultiBackend()
+      || !(pio.getCause() instanceof IOException)) {
+      return false;
+    }
+    logger.warn("Pazpar2 endpoint " + url + " of session [" + getSessionId()
+      + "] cannot be reached (" + pio.getMessage() + "), moving the session");
+    getRouter().markDown(url);
+    getLivenessTracker().forget(getSessionId(), url);
+    setSessionId(null);
+    pazpar2Session.setPazpar2Url(null);
+    return true;
+  }
+
+  /**
+   * Overrides the default, pooled pazpar2 transport.
+   * @param transport
+   */
+  public void setTransport(Pazpar2Transport transport) {
+    this.transport = transport;
+  }
+
   private void setSessionId(String sessionId) {
     pazpar2Session.setSessionId(sessionId);
   }
@@ -174,6 +567,15 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
           getPz2queryString() + "] on session ["
           + getSessionId() + "]");
         return doSearch(os);
+      } catch (Pazpar2IOException pio) {
+        if (!rehomeSession(pio)) {
+          throw pio;
+        }
+        bootstrapSession(this.getSearchCommand());
+        logger.info("Search [" + pazpar2Session.getSearchCommand().
+          getPz2queryString() + "] moved to session [" + getSessionId()
+          + "] on " + getPazpar2Url());
+        return doSearch(os);
       }
     } catch (Pazpar2ErrorException erre) {
       pazpar2Session.resetQuery();
@@ -207,12 +609,16 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
     IOException {
     if (requiresForcedInit())
       init();
+    else
+      updateSettings();
     logger.info("Relaying request  [" + pazpar2Session.getSearchCommand().
       getPz2queryString() + "] on session ["
       + getSessionId() + "] to Pazpar2");
+    pazpar2Session.setProgress(null);
+    discardRecords();
     HttpResponse response = request(pazpar2Session.getSearchCommand().
       getPz2queryString());
-    pipeStream(response.body, os);
+    relay(response, os);
     return response;
   }
 
@@ -224,56 +630,18 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
       return executeSearch(os);
     } else {
       try {
+        if (command.longPoll()) {
+          awaitProgress(command);
+        }
         try {
-          logger.debug("Command [" + command.getCommand() + "]. Last search was: [" + pazpar2Session.getSearchQueryString() + "]");
-          if (command.record() && !this.hasSearchCommand()) {
-            logger.info("Encountered record request on session without a current search. Will attempt to bootstrap a search.");
-            bootstrapRecord(command);
+          return relayCommand(command, os);
+        } catch (Pazpar2IOException pio) {
+          if (!rehomeSession(pio)) {
+            throw pio;
           }
-          return doCommand(command, os);
-        } catch (Pazpar2InitException pz2ie) {
-          logger.info("Session is dead. Reinitializing before command " + command.getCommand());
-          pazpar2Session.setSessionId(null);
-          logger.debug(pz2ie);
           bootstrapSession(command);
-          logger.info("Relaying request (final): " + command.getPz2queryString() + " on session [" + pazpar2Session.getSessionId() + "]");
-          try {
-            return doCommand(command, os);
-          } catch (Pazpar2MissingRecordException pz2mre) {
-            logger.info("Reinitialized session has a previous search that is missing the requested record. Will attempt to bootstrap a search.");
-            logger.debug(pz2mre);
-            bootstrapRecord(command);
-            return doCommand(command, os);
-          }
-        } catch (Pazpar2MissingRecordException pz2mre) {
-          if (!command.hasRecordQuery()) { 
-            logger.error("Record is missing on current session and no recordquery provided to bootstrap another " + pz2mre);
-            throw pz2mre;
-          } 
-          logger.info("Record is missing on current session. Will retry once and then while there are active clients.");
-          logger.debug(pz2mre);
-          bootstrapRecord(command);
-          boolean recordMissing=true;
-          boolean activeClients = true;
-          HttpResponse recordResponse = null;
-          while (recordMissing && activeClients) {
-            try {
-              logger.debug("Requesting record again.");
-              recordResponse = doCommand(command, os);
-              recordMissing=false;
-            } catch (Pazpar2MissingRecordException e) {
-              logger.warn("The requested record still not found in pazpar2 result set.");
-              activeClients = Integer.parseInt(getResults("show").getElementsByTagName("activeclients").item(0).getTextContent())>0;
-              if (activeClients) {
-                logger.warn("There are still active clients. Trying to request the record again.");
-                doShow();
-              } else {
-                logger.error("No more active clients. Giving up on finding the requested record.");
-                throw e;
-              }
-            }
-          }
-          return recordResponse;
+          logger.info("Relaying request (moved): " + command.getPz2queryString() + " on session [" + pazpar2Session.getSessionId() + "] on " + getPazpar2Url());
+          return relayCommand(command, os);
         }
       } catch (Pazpar2ErrorException erre) {
         logger.warn("Pazpar2 application error (" + erre.getAddInfo()
@@ -289,6 +657,249 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
     }
   }
 
+  /**
+   * Holds a long-poll request until the search on the session progressed
+   * since the last long-poll response, or until its deadline passes.
+   */
+  private void awaitProgress(ClientCommand command) {
+    long timeout = Math.min(command.getLongPollTimeout(), cfg.PAZPAR2_LONGPOLL_MAX);
+    if (timeout <= 0 || getSessionId() == null) {
+      return;
+    }
+    String progress = null;
+    try {
+      progress = LongPollAggregator.forConfiguration(cfg).awaitProgress(
+        getPazpar2Url(), getSessionId(), getTransport(),
+        pazpar2Session.getProgress(), timeout)
+        .get(timeout + cfg.PAZPAR2_LONGPOLL_INTERVAL, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      logger.debug("Long-poll on session [" + getSessionId() + "] ended: " + e);
+    }
+    pazpar2Session.setProgress(progress);
+  }
+
+  /**
+   * Relays a non-search command, re-initializing a dead session and
+   * bootstrapping the search when the requested record is missing.
+   */
+  private HttpResponse relayCommand(ClientCommand command, OutputStream os)
+    throws IOException, Pazpar2ErrorException, Pazpar2IOException {
+    try {
+      logger.debug("Command [" + command.getCommand() + "]. Last search was: [" + pazpar2Session.getSearchQueryString() + "]");
+      if (command.record() && !this.hasSearchCommand()) {
+        logger.info("Encountered record request on session without a current search. Will attempt to bootstrap a search.");
+        bootstrapRecord(command);
+      }
+      return doCommand(command, os);
+    } catch (Pazpar2InitException pz2ie) {
+      logger.info("Session is dead. Reinitializing before command " + command.getCommand());
+      pazpar2Session.setSessionId(null);
+      logger.debug(pz2ie);
+      bootstrapSession(command);
+      logger.info("Relaying request (final): " + command.getPz2queryString() + " on session [" + pazpar2Session.getSessionId() + "]");
+      try {
+        return doCommand(command, os);
+      } catch (Pazpar2MissingRecordException pz2mre) {
+        logger.info("Reinitialized session has a previous search that is missing the requested record. Will attempt to bootstrap a search.");
+        logger.debug(pz2mre);
+        bootstrapRecord(command);
+        return doCommand(command, os);
+      }
+    } catch (Pazpar2MissingRecordException pz2mre) {
+      if (!command.hasRecordQuery()) { 
+        logger.error("Record is missing on current session and no recordquery provided to bootstrap another " + pz2mre);
+        throw pz2mre;
+      } 
+      logger.info("Record is missing on current session. Will retry once and then while there are active clients.");
+      logger.debug(pz2mre);
+      bootstrapRecord(command);
+      return awaitRecord(command, os);
+    }
+  }
+
+  /**
+   * Requests a record that is missing from a running search until it shows
+   * up, the search completes or the record wait time passes. Retries back off
+   * exponentially, a 'stat' tells whether the search is still running, and a
+   * show on this session that brings in the record cuts a pause short.
+   */
+  private HttpResponse awaitRecord(ClientCommand command, OutputStream os)
+    throws IOException, Pazpar2ErrorException, Pazpar2IOException {
+    long deadline = System.currentTimeMillis() + cfg.PAZPAR2_RECORD_WAIT;
+    long backoff = Math.max(cfg.PAZPAR2_RECORD_BACKOFF, 1);
+    while (true) {
+      try {
+        logger.debug("Requesting record again.");
+        return doCommand(command, os);
+      } catch (Pazpar2MissingRecordException e) {
+        logger.warn("The requested record still not found in pazpar2 result set.");
+        if (!hasActiveClients()) {
+          logger.error("No more active clients. Giving up on finding the requested record.");
+          throw e;
+        }
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) {
+          logger.error("Requested record not found within " + cfg.PAZPAR2_RECORD_WAIT
+            + " ms. Giving up on finding the requested record.");
+          throw e;
+        }
+        logger.warn("There are still active clients. Requesting the record again in "
+          + Math.min(backoff, left) + " ms.");
+        awaitShow(command.getRecordId(), Math.min(backoff, left));
+        backoff = Math.min(backoff * 2, MAX_RECORD_BACKOFF);
+      }
+    }
+  }
+
+  private boolean hasActiveClients() throws IOException, Pazpar2ErrorException,
+    Pazpar2IOException {
+    HttpResponse stat = request("command=stat");
+    try {
+      Node active = XmlUtils.parse(stat.body).getElementsByTagName("activeclients").item(0);
+      return active != null && Integer.parseInt(active.getTextContent().trim()) > 0;
+    } catch (SAXException se) {
+      throw new Pazpar2MalformedOutputException("Cannot parse pazpar2 stat response", se);
+    } catch (NumberFormatException nfe) {
+      throw new Pazpar2MalformedOutputException("Cannot parse pazpar2 stat response", nfe);
+    } finally {
+      stat.release();
+    }
+  }
+
+  /**
+   * Pauses until the timeout passes or a show on this session brings in the
+   * record.
+   * @param recid record id, null to wake up on any show
+   * @param timeout longest pause in milliseconds
+   */
+  private void awaitShow(String recid, long timeout) throws InterruptedIOException {
+    long until = System.currentTimeMillis() + timeout;
+    synchronized (results) {
+      long generation = showGeneration;
+      long left;
+      while ((left = until - System.currentTimeMillis()) > 0) {
+        try {
+          results.wait(left);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for a record");
+        }
+        if (showGeneration != generation) {
+          generation = showGeneration;
+          CachedResult show = results.get("show");
+          HitIndex index = show != null ? show.getHitIndex() : null;
+          if (recid == null || (index != null && index.contains(recid))) {
+            return;
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  public final Pazpar2HttpResponse executeCommand(ClientCommand command,
+    OutputStream os, String contentEncoding) throws
+    IOException, Pazpar2ErrorException {
+    String encoding = HttpContentEncoding.normalize(contentEncoding);
+    if (encoding == null || !HttpContentEncoding.isSupported(encoding)) {
+      return executeCommand(command, os);
+    }
+    ContentEncodingOutputStream eos = new ContentEncodingOutputStream(os, encoding);
+    Pazpar2HttpResponse response = executeCommand(command, eos);
+    eos.finish();
+    return new HttpResponse(response, encoding);
+  }
+
+  @Override
+  public CompletableFuture<Pazpar2HttpResponse> executeCommandAsync(
+    final ClientCommand command, final OutputStream os) {
+    final CompletableFuture<Pazpar2HttpResponse> future =
+      new CompletableFuture<Pazpar2HttpResponse>();
+    //the client holds session state, so its asynchronous commands run one
+    //after another: each is submitted when the previous one has finished,
+    //no pool thread ever waits for another command of the same client
+    final CompletableFuture<Void> done = new CompletableFuture<Void>();
+    final CompletableFuture<Void> previous;
+    synchronized (this) {
+      previous = asyncTail;
+      asyncTail = done;
+    }
+    final Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (!future.isDone()) { //not cancelled while queued
+            future.complete(executeCommand(command, os));
+          }
+        } catch (Exception e) {
+          future.completeExceptionally(e);
+        } finally {
+          done.complete(null);
+        }
+      }
+    };
+    final Runnable submit = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          getAsyncExecutor(cfg).execute(task);
+        } catch (RejectedExecutionException ree) {
+          logger.error("Cannot queue asynchronous pazpar2 command " + command.getCommand()
+            + ", all " + cfg.PAZPAR2_ASYNC_QUEUE + " queue places taken");
+          future.completeExceptionally(ree);
+          done.complete(null);
+        }
+      }
+    };
+    if (previous == null || previous.isDone()) {
+      submit.run();
+    } else {
+      previous.whenComplete(new BiConsumer<Void, Throwable>() {
+        @Override
+        public void accept(Void v, Throwable t) {
+          submit.run();
+        }
+      });
+    }
+    return future;
+  }
+
+  /**
+   * Returns the executor shared by all clients with the same number of
+   * asynchronous threads and queue length. Commands beyond the queue length
+   * are rejected rather than left waiting without limit.
+   */
+  static ThreadPoolExecutor getAsyncExecutor(Pazpar2ClientConfiguration cfg) {
+    String key = cfg.PAZPAR2_ASYNC_THREADS + ":" + cfg.PAZPAR2_ASYNC_QUEUE;
+    ThreadPoolExecutor asyncExecutor = asyncExecutors.get(key);
+    if (asyncExecutor == null) {
+      synchronized (asyncExecutors) {
+        asyncExecutor = asyncExecutors.get(key);
+        if (asyncExecutor == null) {
+          final AtomicInteger threadCount = new AtomicInteger();
+          ThreadPoolExecutor executor = new MDCThreadPoolExecutor(
+            cfg.PAZPAR2_ASYNC_THREADS, cfg.PAZPAR2_ASYNC_THREADS,
+            60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(Math.max(cfg.PAZPAR2_ASYNC_QUEUE, 1)),
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "pazpar2-async-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+              }
+            });
+          executor.allowCoreThreadTimeOut(true);
+          asyncExecutors.put(key, executor);
+          asyncExecutor = executor;
+        }
+      }
+    }
+    return asyncExecutor;
+  }
+
   /**
    * Runs command against Pazpar2, streams the results out and puts the document
    * on the client for later use
@@ -306,15 +917,88 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
     throws
     Pazpar2IOException, IOException,
     Pazpar2ErrorException {
+    CommandCoalescer coalescer = getCoalescer();
+    if (coalescer != null
+      && (command.show() || command.stat() || command.termlist())) {
+      return doCoalescedCommand(coalescer, command, os);
+    }
+    if (command.record()) {
+      HttpResponse cached = cachedRecord(command, os);
+      if (cached != null) {
+        return cached;
+      }
+    }
     HttpResponse response = request(command.getPz2queryString());
     logger.debug("Completed Pazpar2 request on session ["+ getSessionId() +"]: " + command.getPz2queryString());
-    pipeStream(response.body, os);
+    RecordCache rc = command.record() ? getRecordCache() : null;
     if (!command.recordWithOffset()) {
-      cacheResults(command.getCommand(), os, response.contentType);
+      if (cacheResults(command.getCommand(), command.getPz2queryString(), response, os) != null
+        && rc != null) {
+        CachedResult record = results.get(command.getCommand());
+        if (record != null) {
+          rc.put(recordSession(), recordSearch(), command.getPz2queryString(),
+            record, XML_CT);
+        }
+      }
+    } else if (rc != null) {
+      //not kept as the session's 'record' results, only in the record cache
+      rc.put(recordSession(), recordSearch(), command.getPz2queryString(),
+        capture(response, os), response.contentType);
+    } else {
+      relay(response, os);
     }
     return response;
   }
 
+  /**
+   * Runs a read-only command at most once for concurrent identical requests
+   * on the session: the first request goes to pazpar2 and its response is
+   * captured, the others wait and get a replay of it.
+   */
+  private HttpResponse doCoalescedCommand(CommandCoalescer coalescer,
+    ClientCommand command, OutputStream os) throws Pazpar2IOException,
+    IOException, Pazpar2ErrorException {
+    String key = getPazpar2Url() + "|" + getSessionId() + "|"
+      + command.getPz2queryString();
+    CommandCoalescer.Flight flight = coalescer.join(key);
+    if (!flight.isLeader()) {
+      try {
+        if (flight.await(COALESCE_WAIT)) {
+          logger.debug("Replaying coalesced response on session [" + getSessionId()
+            + "]: " + command.getPz2queryString());
+          HttpResponse replay = new HttpResponse(200,
+            new ByteArrayInputStream(flight.getBody()), flight.getContentType());
+          cacheResults(command.getCommand(), command.getPz2queryString(), replay, os);
+          return replay;
+        }
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      logger.debug("Coalesced request not answered, sending it on session ["
+        + getSessionId() + "]: " + command.getPz2queryString());
+      HttpResponse response = request(command.getPz2queryString());
+      cacheResults(command.getCommand(), command.getPz2queryString(), response, os);
+      return response;
+    }
+    boolean completed = false;
+    try {
+      HttpResponse response = request(command.getPz2queryString());
+      logger.debug("Completed Pazpar2 request on session ["+ getSessionId() +"]: " + command.getPz2queryString());
+      //the followers replay the bytes kept for the results, not a copy of them
+      CachedResult result = cacheResults(command.getCommand(),
+        command.getPz2queryString(), response, os);
+      if (result != null) {
+        coalescer.complete(key, flight, result.getBytes(), response.contentType);
+        completed = true;
+      }
+      return response;
+    } finally {
+      if (!completed) {
+        coalescer.fail(key, flight);
+      }
+    }
+  }
+
   /**
    * For doing 'show' command and settings results as part of a bootstrap
    * process i.e. after Pazpar2 init exception or missing record exception
@@ -326,10 +1010,7 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
   private void doShow() throws IOException, Pazpar2ErrorException,
     Pazpar2IOException {
     HttpResponse showResponse = request("command=show&block=1");
-    OutputStream showOs = new ByteArrayOutputStream();
-    pipeStream(showResponse.body, showOs);
-    cacheResults("show", showOs, showResponse.contentType);
-    showOs.close();
+    cacheResults("show", "command=show&block=1", showResponse, null);
   }
 
   /**
@@ -351,10 +1032,11 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
             + command.getPz2queryString() + "]");
         this.setSearchCommand(new ClientCommand("search", command.
           getRecordQuery()));
+        discardRecords();
         if (!sessionIsAlive()) {
           init();
         }
-        request(command.getRecordQuery());
+        request(command.getRecordQuery()).release();
         doShow();
       } else {
         logger.warn(
@@ -388,7 +1070,7 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
         + pazpar2Session.getSearchQueryString() + "] on session ["
         + getSessionId() + "]");
       if (pazpar2Session.getSearchCommand() != null) {
-        request(pazpar2Session.getSearchCommand().getPz2queryString());
+        request(pazpar2Session.getSearchCommand().getPz2queryString()).release();
         doShow();
       } else {
         logger.error("No previous search was found in the http session ["
@@ -441,48 +1123,119 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
   }
 
   /**
-   * Caches results XML of a Pazpar2 request
+   * Caches results XML of a Pazpar2 request while relaying it. Every byte
+   * read off the wire is teed to the output stream and kept as is, the
+   * results are only parsed when read with {@link #getResults(String)}.
    * 
    * @param command
    *          Cache key
+   * @param queryString
+   *          query string of the request, to repeat it if the results are
+   *          evicted
+   * @param response
+   *          pazpar2 response
    * @param os
-   *          OutputStream to get results from
-   * @throws ProxyErrorException
+   *          OutputStream to relay the results to, null to only cache them
+   * @return cached results, null if the response is not XML and was only
+   *          relayed
    * @throws IOException
    */
-  private boolean cacheResults(String command, OutputStream os,
-    String contentType) throws
-    ProxyErrorException, IOException {
-    try {
-      if (!contentType.contains("xml")) {
-        logger.warn("Results cannot be cached for Content-Type: " + contentType);
-        return false;
+  private CachedResult cacheResults(String command, String queryString,
+    HttpResponse response, OutputStream os) throws IOException {
+    String contentType = response.contentType;
+    if (contentType == null || !contentType.contains("xml")) {
+      logger.warn("Results cannot be cached for Content-Type: " + contentType);
+      if (os != null) {
+        relay(response, os);
       }
-      if (!(os instanceof ByteArrayOutputStream)) {
-        logger.warn(
-          "Relay seems to be operating in a direct mode, result caching not possible.");
-        return false;
+      return null;
+    }
+    logger.debug("Storing " + command + " results on pazpar2 client.");
+    CachedResult result = capture(response, os);
+    resultQueries.put(command, queryString);
+    CachedResult replaced = results.put(command, result);
+    ResultMemoryGovernor governor = getGovernor();
+    if (governor != null) {
+      governor.admitted(results, command, result, replaced);
+    }
+    setTimeStamp(command, searchCount);
+    if ("show".equals(command)) {
+      synchronized (results) {
+        showGeneration++;
+        results.notifyAll();
       }
-      logger.debug("Storing " + command + " results on pazpar2 client.");
-      Document result =
-        XmlUtils.parse(new StringReader(((ByteArrayOutputStream) os).toString(
-        "UTF-8")));
-      results.put(command, result);
-      setTimeStamp(command, searchCount);
-      return true;
-    } catch (SAXException se) {
-      throw new ProxyErrorException("SAX error when caching results of "
-        + command + " command.",
-        ProxyErrorException.ErrorCode.PAZPAR2_IO_ERROR);
+      prefetchRecords(result);
     }
+    return result;
   }
 
+  /**
+   * Reads the response body to the end, relaying it if there is an output
+   * stream, and keeps its decoded bytes.
+   * @param response pazpar2 response
+   * @param os OutputStream to relay the body to, null to only capture it
+   * @return captured body
+   * @throws IOException
+   */
+  private CachedResult capture(HttpResponse response, OutputStream os)
+    throws IOException {
+    InputStream source;
+    if (os == null) {
+      source = response.body;
+    } else if (canPassThrough(response, os)) {
+      //relay the compressed bytes as they are, decode only for the cache
+      source = HttpContentEncoding.decode(new TeeInputStream(response.rawBody,
+        ((ContentEncodingOutputStream) os).passThrough()), response.wireEncoding);
+    } else {
+      source = new TeeInputStream(response.body, os);
+    }
+    BufferPool pool = BufferPool.forSize(cfg.STREAMBUFF_SIZE);
+    byte[] buf = pool.acquire();
+    try {
+      return CachedResult.capture(source, buf);
+    } finally {
+      pool.release(buf);
+      source.close();
+    }
+  }
+
+  /**
+   * Returns cached results, parsing them on first access.
+   */
   @Override
   public Document getResults(String command) {
-    if (results.get(command) == null) {
+    CachedResult result = cachedResult(command);
+    return result != null ? result.getDocument() : null;
+  }
+
+  /**
+   * Returns cached results, requesting them again from pazpar2 if they were
+   * evicted to keep within the memory budget.
+   */
+  private CachedResult cachedResult(String command) {
+    CachedResult result = results.get(command);
+    ResultMemoryGovernor governor = getGovernor();
+    if (result != null) {
+      if (governor != null) {
+        governor.touched(result);
+      }
+      return result;
+    }
+    String queryString = resultQueries.get(command);
+    if (queryString != null && getSessionId() != null) {
+      //evicted, or not carried over when the client was deserialized
+      logger.debug("Cached " + command + " results are gone, requesting them again");
+      try {
+        cacheResults(command, queryString, request(queryString), null);
+        result = results.get(command);
+      } catch (Exception e) {
+        logger.warn("Cannot request evicted " + command + " results again: " + e.getMessage());
+      }
+    }
+    if (result == null) {
       logger.error("No cached results found for " + command);
     }
-    return results.get(command);
+    return result;
   }
 
   /**
@@ -498,20 +1251,46 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
   protected HttpResponse request(String queryString) throws Pazpar2IOException,
     Pazpar2ErrorException {
     queryString = (queryString != null) ? "&" + queryString : "";
-    return sendRequest("session=" + getSessionId() + queryString);
+    HttpResponse response = sendRequest("session=" + getSessionId() + queryString);
+    confirmed();
+    return response;
+  }
+
+  /**
+   * Relays the response body, passing it through without re-coding when the
+   * output stream expects the content coding pazpar2 used.
+   */
+  private void relay(HttpResponse response, OutputStream os) throws IOException {
+    if (canPassThrough(response, os)) {
+      pipeStream(response.rawBody, ((ContentEncodingOutputStream) os).passThrough());
+    } else {
+      pipeStream(response.body, os);
+    }
+  }
+
+  private static boolean canPassThrough(HttpResponse response, OutputStream os) {
+    return response.wireEncoding != null
+      && os instanceof ContentEncodingOutputStream
+      && response.wireEncoding.equals(((ContentEncodingOutputStream) os).getEncoding());
   }
 
   /**
-   * Pipes the last response input stream to a specified output stream.
+   * Pipes the last response input stream to a specified output stream. The
+   * copy buffer is taken from a pool shared by all clients.
    * 
    * @param os
    *          output stream to pipe to
    * @throws java.io.IOException
    */
   protected void pipeStream(InputStream is, OutputStream os) throws IOException {
-    byte[] buf = new byte[cfg.STREAMBUFF_SIZE];
-    for (int len = -1; (len = is.read(buf)) != -1;) {
-      os.write(buf, 0, len);
+    BufferPool pool = BufferPool.forSize(cfg.STREAMBUFF_SIZE);
+    byte[] buf = pool.acquire();
+    try {
+      for (int len = -1; (len = is.read(buf)) != -1;) {
+        os.write(buf, 0, len);
+      }
+    } finally {
+      pool.release(buf);
     }
   }
 
@@ -538,84 +1317,108 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
     Pazpar2ErrorException {
     HttpResponse response = null;
     String clearOpt = clear ? "&clear=1" : "";
-    String requestUrl = cfg.PAZPAR2_URL + "?" + "command=init" + clearOpt;
+    String pazpar2Url = getRouter().place(getRoutingKey());
+    String query = "?" + "command=init" + clearOpt;
+    String requestUrl = pazpar2Url + query;
     long startTime = PerformanceLogger.start(" <PZ2 INIT", requestUrl);
-    HttpClient hc = new HttpClient();
-    HttpMethod hm = null;
+    String entity = null;
     if (service != null) {
       logger.debug("Sending Pazpar2 init using auto-generated service definition: "
         + requestUrl);
-      hm = new PostMethod(requestUrl);
       StringWriter sw = new StringWriter();
       try {
         XmlUtils.serialize(service, sw);
-        ((EntityEnclosingMethod) hm).setRequestEntity(new StringRequestEntity(
-          sw.toString(), "text/xml", "UTF-8"));
       } catch (Exception ex) {
         throw new Pazpar2IOException(
           "Error encoding auto-generated service definition for POST method", ex);
       }
-    } else if (serviceDefinition.usesXml()) {
+      entity = sw.toString();
+    } else if (getServiceDefinition().usesXml()) {
       logger.debug("Sending Pazpar2 init using service definition from XML: "
         + requestUrl);
-      hm = new PostMethod(requestUrl);
-      try {
-        ((EntityEnclosingMethod) hm).setRequestEntity(
-          new StringRequestEntity(serviceDefinition.getServiceXml(),
-          "text/xml", "UTF-8"));
-      } catch (UnsupportedEncodingException e) {
-        throw new Pazpar2IOException(
-          "Error encoding service definition XML for POST method");
-      }
-    } else if (serviceDefinition.usesId()) {
-      requestUrl = requestUrl + "&service=" + serviceDefinition.getServiceId();
+      entity = getServiceDefinition().getServiceXml();
+    } else if (getServiceDefinition().usesId()) {
+      query = query + "&service=" + getServiceDefinition().getServiceId();
+      requestUrl = pazpar2Url + query;
       logger.debug("Sending Pazpar2 init using service ID: " + requestUrl);
-      hm = new GetMethod(requestUrl);
     } else {
       logger.debug("Sending Pazpar2 init using default service: " + requestUrl);
-      hm = new GetMethod(requestUrl);
     }
-    try {
-      response = new HttpResponse(hc.executeMethod(hm), hm.
-        getResponseBodyAsStream(), hm.getResponseHeader(
-        "Content-Type").getValue());
-    } catch (IOException e) {
-      throw new Pazpar2IOException("HTTP I/O error when contacting pazpar2", e);
-    }
-    if (response.statusCode == HttpStatus.SC_EXPECTATION_FAILED) // 417
-    {
-      parseAndThrowError(response.body);
-    } else if (response.statusCode != HttpStatus.SC_OK) // 200
-    {
-      throw new Pazpar2IOException("Unexpected HTTP response code ("
-        + response.statusCode + ") returned for "
-        + hm.getName() + " " + cfg.PAZPAR2_URL + "?" + hm.getQueryString());
+    //with several endpoints, try the next one if the chosen one is down
+    int attemptsLeft = getRouter().getBackends().size();
+    while (response == null) {
+      try {
+        response = new HttpResponse(entity != null
+          ? getTransport().post(requestUrl, entity, "text/xml")
+          : getTransport().get(requestUrl));
+      } catch (IOException e) {
+        if (--attemptsLeft <= 0) {
+          throw new Pazpar2IOException("HTTP I/O error when contacting pazpar2", e);
+        }
+        getRouter().markDown(pazpar2Url);
+        pazpar2Url = getRouter().place(getRoutingKey());
+        requestUrl = pazpar2Url + query;
+        logger.info("Retrying Pazpar2 init on " + requestUrl);
+      }
     }
+    checkStatus(response, entity != null ? "POST" : "GET", requestUrl);
 
+    String previousId = getSessionId();
+    String previousUrl = pazpar2Session.getPazpar2Url();
     try {
       Document domDoc = XmlUtils.parse(response.body);
       Node sessNode = domDoc.getElementsByTagName("session").item(0);
       pazpar2Session.setSessionId(sessNode.getTextContent());
+      pazpar2Session.setPazpar2Url(pazpar2Url);
     } catch (Exception e) {
       throw new Pazpar2MalformedOutputException(
         "Cannot parse pazpar2 session id.", e);
     }
+    if (previousId != null) {
+      getRouter().released(previousUrl, previousId);
+    }
+    confirmed();
     logger.info("Initialized a Pazpar2 session with id [" + getSessionId() + "]");
     PerformanceLogger.finish(" <INIT DONE", requestUrl, startTime);
   }
 
+  /**
+   * Takes over a session initialized elsewhere, e.g by the session pool,
+   * in place of sending an init.
+   * @param pazpar2Url endpoint that owns the session
+   * @param sessionId pazpar2 session id
+   */
+  protected void adoptSession(String pazpar2Url, String sessionId) {
+    String previousId = getSessionId();
+    String previousUrl = pazpar2Session.getPazpar2Url();
+    pazpar2Session.setSessionId(sessionId);
+    pazpar2Session.setPazpar2Url(pazpar2Url);
+    if (previousId != null) {
+      getRouter().released(previousUrl, previousId);
+    }
+    getRouter().touched(pazpar2Url, sessionId);
+    logger.info("Took over pre-initialized Pazpar2 session with id [" + sessionId + "]");
+  }
+
   /**
    * Sends a Pazpar2 ping command for the current Pazpar2 session ID (if any
    * exists) Returns true if the Pazpar2 session ID exists and Pazpar2 says the
-   * session is alive
+   * session is alive. The ping is omitted if the session answered successfully
+   * within the liveness TTL.
    */
   protected boolean sessionIsAlive() {
-    if (pazpar2Session.getSessionId() == null) {
+    String sessionId = pazpar2Session.getSessionId();
+    if (sessionId == null) {
       return false;
+    } else if (getLivenessTracker().isAlive(sessionId, getPazpar2Url())) {
+      logger.debug("Session [" + sessionId + "] answered recently, ping omitted");
     } else {
       try {
-        sendRequest("command=ping&session=" + pazpar2Session.getSessionId());
+        getLivenessTracker().pinged();
+        sendRequest("command=ping&session=" + sessionId).release();
+        confirmed();
       } catch (Exception e) {
+        getLivenessTracker().forget(sessionId, getPazpar2Url());
         setSessionId(null);
         return false;
       }
@@ -635,43 +1438,24 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
   protected HttpResponse sendRequest(String encodedParams) throws
     Pazpar2IOException, Pazpar2ErrorException {
     HttpResponse response = null;
-    String requestUrl = cfg.PAZPAR2_URL + "?" + encodedParams;
+    String pazpar2Url = getPazpar2Url();
+    String requestUrl = pazpar2Url + "?" + encodedParams;
     logger.debug("Sending request: " + requestUrl);
     long startTime = PerformanceLogger.start(" >PZ2REQ", requestUrl);
-    HttpClient hc = new HttpClient();
-    HttpMethod hm = null;
-
-    if (requestUrl.length() < MAX_URL_LENGTH) {
-      hm = new GetMethod(requestUrl);
-    } else {
-      hm = new PostMethod(cfg.PAZPAR2_URL);
-      RequestEntity re;
-      try {
-        re = new StringRequestEntity(encodedParams,
-          "application/x-www-form-urlencoded", "UTF-8");
-      } catch (UnsupportedEncodingException ex) {
-        throw new Pazpar2IOException(
-          "Cannot encode parameters for the POST request");
-      }
-      ((EntityEnclosingMethod) hm).setRequestEntity(re);
-    }
+    boolean useGet = requestUrl.length() < MAX_URL_LENGTH;
     try {
-      response = new HttpResponse(hc.executeMethod(hm), hm.
-        getResponseBodyAsStream(), hm.getResponseHeader(
-        "Content-Type").getValue());
+      if (useGet) {
+        response = new HttpResponse(getTransport().get(requestUrl));
+      } else {
+        response = new HttpResponse(getTransport().post(pazpar2Url,
+          encodedParams, "application/x-www-form-urlencoded"));
+      }
     } catch (IOException e) {
       throw new Pazpar2IOException("HTTP I/O error when contacting pazpar2", e);
     }
     PerformanceLogger.finish(" <PZ2REQ DONE", requestUrl, startTime);
-    if (response.statusCode == HttpStatus.SC_EXPECTATION_FAILED) // 417
-    {
-      parseAndThrowError(response.body);
-    } else if (response.statusCode != HttpStatus.SC_OK) // 200
-    {
-      throw new Pazpar2IOException("Unexpected HTTP response code ("
-        + response.statusCode + ") returned for "
-        + hm.getName() + " " + cfg.PAZPAR2_URL + "?" + hm.getQueryString());
-    }
+    checkStatus(response, useGet ? "GET" : "POST",
+      useGet ? requestUrl : pazpar2Url);
     return response;
   }
   
@@ -683,36 +1467,50 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
         ? (queryString.charAt(0) == '?' || queryString.charAt(0) == '&'
            ? queryString.substring(1) : queryString) 
         : "");
-    String requestUrl = cfg.PAZPAR2_URL + queryString;
+    String requestUrl = getPazpar2Url() + queryString;
     long startTime = PerformanceLogger.start(" <PZ2 POST", requestUrl);
-    HttpClient hc = new HttpClient();
-    HttpMethod hm = new PostMethod(requestUrl);
     StringWriter sw = new StringWriter();
     try {
       XmlUtils.serialize(entity, sw);
-      ((EntityEnclosingMethod) hm).setRequestEntity(new StringRequestEntity(
-        sw.toString(), "text/xml", "UTF-8"));
     } catch (Exception ex) {
       throw new Pazpar2IOException(
         "Error serializing document for POST", ex);
     }
     try {
-      response = new HttpResponse(hc.executeMethod(hm), hm.
-        getResponseBodyAsStream(), hm.getResponseHeader(
-        "Content-Type").getValue());
+      response = new HttpResponse(getTransport().post(requestUrl,
+        sw.toString(), "text/xml"));
     } catch (IOException e) {
       throw new Pazpar2IOException("HTTP I/O error when contacting pazpar2", e);
     }
+    checkStatus(response, "POST", requestUrl);
+    confirmed();
+    PerformanceLogger.finish(" <POST DONE", requestUrl, startTime);
+    return response;
+  }
+
+  /**
+   * Raises the pazpar2 error for 417 responses and an IO error for any other
+   * non-200 response, releasing the connection in both cases.
+   */
+  private void checkStatus(HttpResponse response, String method,
+    String requestUrl) throws Pazpar2ErrorException, Pazpar2IOException {
     if (response.statusCode == HttpStatus.SC_EXPECTATION_FAILED) // 417
     {
-      parseAndThrowError(response.body);
-    } else if (response.statusCode != HttpStatus.SC_OK) { // 200 
+      try {
+        parseAndThrowError(response.body);
+      } catch (Pazpar2InitException pie) {
+        //session does not exist (anymore)
+        getLivenessTracker().forget(getSessionId(), getPazpar2Url());
+        throw pie;
+      } finally {
+        response.release();
+      }
+    } else if (response.statusCode != HttpStatus.SC_OK) // 200
+    {
+      response.release();
       throw new Pazpar2IOException("Unexpected HTTP response code ("
-        + response.statusCode + ") returned for "
-        + hm.getName() + " " + cfg.PAZPAR2_URL + "?" + hm.getQueryString());
+        + response.statusCode + ") returned for " + method + " " + requestUrl);
     }
-    PerformanceLogger.finish(" <POST DONE", requestUrl, startTime);
-    return response;
   }
 
   private void parseAndThrowError(InputStream is) throws Pazpar2ErrorException,
@@ -771,20 +1569,16 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
    */
   @Override
   public Document getHit(String recid) {
-    NodeList hits = null;
     Node hit = null;
     Document recordDoc = null;
-    try {
-      hits = XmlUtils.getNodeList(getResults("show"), "//hit[recid='" + recid
-        + "']");
-    } catch (XPathExpressionException e) {
-      logger.error("XPath expression into show document failed for recid ["
-        + recid + "]");
+    CachedResult show = cachedResult("show");
+    HitIndex index = show != null ? show.getHitIndex() : null;
+    if (index != null) {
+      hit = index.get(recid);
     }
 
-    if (hits != null && hits.getLength() == 1) {
+    if (hit != null) {
       logger.debug("Found hit for record id [" + recid + "]");
-      hit = hits.item(0);
       recordDoc = XmlUtils.newDoc();
       Node importedHit = recordDoc.importNode(hit, true);
       recordDoc.renameNode(importedHit, null, "record");
@@ -795,6 +1589,31 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
     return recordDoc;
   }
 
+  /**
+   * Requests a record, answering from the record cache when the same
+   * request was made earlier for the current search.
+   * @return copy of the record, parsed only once while it is cached
+   */
+  private Document requestRecord(String queryString) throws Pazpar2ErrorException,
+    Pazpar2IOException, SAXException, IOException {
+    RecordCache rc = getRecordCache();
+    if (rc == null) {
+      return XmlUtils.parse(request(queryString).body);
+    }
+    RecordCache.Entry cached = rc.get(recordSession(), recordSearch(), queryString);
+    Document doc = cached != null ? cached.getRecord().copyDocument() : null;
+    if (doc == null) {
+      HttpResponse response = request(queryString);
+      CachedResult record = capture(response, null);
+      doc = record.copyDocument();
+      if (doc == null) {
+        throw new Pazpar2MalformedOutputException("Cannot parse pazpar2 record");
+      }
+      rc.put(recordSession(), recordSearch(), queryString, record, response.contentType);
+    }
+    return doc;
+  }
+
   /* (non-Javadoc)
    * @see com.indexdata.masterkey.pazpar2.proxy.Pazpar2Client#recordRequest(java.lang.String, int)
    */
@@ -805,8 +1624,7 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
     try {
       String queryString = "command=record&id=" + URLEncoder.encode(recid,
         "UTF-8") + "&offset=" + offset;
-      HttpResponse response = request(queryString);
-      doc = XmlUtils.parse(response.body);
+      doc = requestRecord(queryString);
     } catch (UnsupportedEncodingException uee) {
       throw new RuntimeException(uee);
     } catch (SAXException se) {
@@ -827,8 +1645,7 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
     try {
       String queryString = "command=record&id=" + URLEncoder.encode(recid,
         "UTF-8") + "&offset=" + offset + "&syntax=" + syntax;
-      HttpResponse response = request(queryString);
-      doc = XmlUtils.parse(response.body);
+      doc = requestRecord(queryString);
     } catch (UnsupportedEncodingException uee) {
       throw new RuntimeException(uee);
     } catch (SAXException se) {
@@ -846,12 +1663,16 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
   @Override
   public Document recordRequest(String recid) throws Pazpar2ErrorException, 
     Pazpar2IOException{
-    Document doc = null;
+    RecordPrefetcher p = getPrefetcher();
+    CachedResult prefetched = p != null ? p.get(recid) : null;
+    Document doc = prefetched != null ? prefetched.copyDocument() : null;
+    if (doc != null) {
+      return doc;
+    }
     try {
       String queryString = "command=record&id=" + URLEncoder.encode(recid,
         "UTF-8");
-      HttpResponse response = request(queryString);
-      doc = XmlUtils.parse(response.body);
+      doc = requestRecord(queryString);
     } catch (UnsupportedEncodingException uee) {
       throw new RuntimeException(uee);
     } catch (SAXException se) {
@@ -870,8 +1691,7 @@ public abstract class AbstractPazpar2Client implements Pazpar2Client, Serializab
     Pazpar2IOException {
     Document doc = null;
     try {
-      String queryString = "command=show";
-      HttpResponse response = request(queryString);
+      HttpResponse response = request("command=show");
       doc = XmlUtils.parse(response.body);
     } catch (UnsupportedEncodingException uee) {
       throw new RuntimeException(uee);
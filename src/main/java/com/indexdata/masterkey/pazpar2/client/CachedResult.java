@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.lang.ref.SoftReference;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+
+import com.indexdata.utils.XmlUtils;
+
+/**
+ * Results of a pazpar2 command kept as the raw bytes of the response. The
+ * DOM is only built when the results are read and is held softly, so results
+ * that are never read (most termlist and bytarget responses) cost no more
+ * than their bytes, and parsed documents are reclaimed under memory pressure.
+ *
+ * @author jakub
+ */
+class CachedResult implements Serializable {
+  private static final long serialVersionUID = 2290481767542712386L;
+  private static Logger logger = Logger.getLogger(CachedResult.class);
+  //capture buffers that grew beyond this are not kept for the next response
+  static final int MAX_RETAINED_CAPTURE = 1024 * 1024;
+  private static final ThreadLocal<CaptureBuffer> captureBuffers =
+    new ThreadLocal<CaptureBuffer>();
+  private final byte[] bytes;
+  private transient SoftReference<Document> document;
+  private transient SoftReference<HitIndex> hitIndex;
+
+  /**
+   * Growable buffer that is reused by the thread that captures responses.
+   */
+  private static class CaptureBuffer extends ByteArrayOutputStream {
+    CaptureBuffer() {
+      super(8192);
+    }
+
+    int capacity() {
+      return buf.length;
+    }
+  }
+
+  CachedResult(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  /**
+   * Reads the stream to the end and keeps an exact-size copy of its bytes.
+   * @param is response body
+   * @param copyBuffer buffer for the copy loop
+   * @return cached result
+   * @throws IOException
+   */
+  static CachedResult capture(InputStream is, byte[] copyBuffer) throws IOException {
+    CaptureBuffer capture = captureBuffers.get();
+    if (capture == null) {
+      capture = new CaptureBuffer();
+    } else {
+      //taken out while in use
+      captureBuffers.remove();
+    }
+    try {
+      int n;
+      while ((n = is.read(copyBuffer)) != -1) {
+        capture.write(copyBuffer, 0, n);
+      }
+      return new CachedResult(capture.toByteArray());
+    } finally {
+      if (capture.capacity() <= MAX_RETAINED_CAPTURE) {
+        capture.reset();
+        captureBuffers.set(capture);
+      }
+    }
+  }
+
+  byte[] getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Returns the parsed results, parsing them if they were never read or the
+   * parsed form was reclaimed.
+   * @return results or null if they cannot be parsed
+   */
+  synchronized Document getDocument() {
+    Document doc = document != null ? document.get() : null;
+    if (doc == null) {
+      try {
+        doc = XmlUtils.parse(new ByteArrayInputStream(bytes));
+      } catch (Exception e) {
+        logger.error("Cannot parse cached pazpar2 results: " + e.getMessage());
+        return null;
+      }
+      document = new SoftReference<Document>(doc);
+    }
+    return doc;
+  }
+
+  /**
+   * Returns a private copy of the parsed results, for callers that may
+   * modify it or hand it to other threads.
+   * @return copy of the results or null if they cannot be parsed
+   */
+  synchronized Document copyDocument() {
+    Document doc = getDocument();
+    return doc != null ? (Document) doc.cloneNode(true) : null;
+  }
+
+  /**
+   * @return index of the hits in the results, built on first use
+   */
+  synchronized HitIndex getHitIndex() {
+    HitIndex index = hitIndex != null ? hitIndex.get() : null;
+    Document doc = getDocument();
+    if (doc == null) {
+      return null;
+    }
+    if (index == null || !index.isFor(doc)) {
+      index = new HitIndex(doc);
+      hitIndex = new SoftReference<HitIndex>(index);
+    }
+    return index;
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Circuit breaker and latency tracker for one pazpar2 endpoint.
+ * <p/>
+ * After a number of consecutive failures the circuit opens and requests are
+ * rejected without touching the network. Once the open period is over a
+ * single caller is let through to probe the endpoint; the circuit closes if
+ * the probe gets any HTTP response and opens again otherwise.
+ * <p/>
+ * Latencies of successful requests are kept in a ring buffer and their 99th
+ * percentile drives an adaptive read timeout.
+ *
+ * @author jakub
+ */
+public class CircuitBreaker {
+  private static Logger logger = Logger.getLogger(CircuitBreaker.class);
+  static final int SAMPLES = 256;
+  //fewer samples are not enough for a meaningful percentile
+  static final int MIN_SAMPLES = 20;
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  enum Permit {
+    ALLOW, REJECT, PROBE
+  }
+
+  private final String endpoint;
+  private final int failureThreshold;
+  private final long openTime;
+  private final int timeoutFactor;
+  private final int minTimeout;
+  private final int maxTimeout;
+  private final long[] samples = new long[SAMPLES];
+  private int sampleCount = 0;
+  private int nextSample = 0;
+  private long p99 = -1;
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private final AtomicBoolean probing = new AtomicBoolean();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong trips = new AtomicLong();
+  private volatile State state = State.CLOSED;
+  private volatile long openedAt = 0;
+
+  /**
+   * @param endpoint endpoint URL, for logging
+   * @param failureThreshold consecutive failures that open the circuit, 0
+   * never opens it
+   * @param openTime time in milliseconds the circuit stays open before a
+   * probe
+   * @param timeoutFactor multiplier applied to the p99 latency
+   * @param minTimeout lower bound of the adaptive timeout in milliseconds
+   * @param maxTimeout upper bound of the adaptive timeout in milliseconds, 0
+   * disables adaptive timeouts
+   */
+  public CircuitBreaker(String endpoint, int failureThreshold, long openTime,
+    int timeoutFactor, int minTimeout, int maxTimeout) {
+    this.endpoint = endpoint;
+    this.failureThreshold = failureThreshold;
+    this.openTime = openTime;
+    this.timeoutFactor = timeoutFactor;
+    this.minTimeout = minTimeout;
+    this.maxTimeout = maxTimeout;
+  }
+
+  Permit acquire() {
+    if (state == State.CLOSED) {
+      return Permit.ALLOW;
+    }
+    if (System.currentTimeMillis() - openedAt >= openTime
+      && probing.compareAndSet(false, true)) {
+      state = State.HALF_OPEN;
+      return Permit.PROBE;
+    }
+    rejected.incrementAndGet();
+    return Permit.REJECT;
+  }
+
+  void probeSucceeded() {
+    logger.info("Pazpar2 endpoint " + endpoint + " answered the probe, closing circuit");
+    consecutiveFailures.set(0);
+    state = State.CLOSED;
+    probing.set(false);
+  }
+
+  void probeFailed() {
+    logger.warn("Pazpar2 endpoint " + endpoint + " failed the probe, circuit stays open");
+    openedAt = System.currentTimeMillis();
+    state = State.OPEN;
+    probing.set(false);
+  }
+
+  /**
+   * Records a request that got an HTTP response.
+   * @param latency time to the response headers in milliseconds
+   */
+  void succeeded(long latency) {
+    consecutiveFailures.set(0);
+    synchronized (samples) {
+      samples[nextSample] = latency;
+      nextSample = (nextSample + 1) % SAMPLES;
+      if (sampleCount < SAMPLES) {
+        sampleCount++;
+      }
+      p99 = -1;
+    }
+  }
+
+  /**
+   * Records a request that failed with an I/O error or timed out.
+   */
+  void failed() {
+    if (failureThreshold > 0
+      && consecutiveFailures.incrementAndGet() >= failureThreshold
+      && state == State.CLOSED) {
+      logger.warn("Pazpar2 endpoint " + endpoint + " failed " + failureThreshold
+        + " times in a row, opening circuit for " + openTime + " ms");
+      openedAt = System.currentTimeMillis();
+      state = State.OPEN;
+      trips.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return 99th percentile of recent successful request latencies in
+   * milliseconds, -1 if there are too few samples
+   */
+  public long getP99() {
+    synchronized (samples) {
+      if (p99 < 0 && sampleCount >= MIN_SAMPLES) {
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        p99 = sorted[(int) Math.ceil(sampleCount * 0.99) - 1];
+      }
+      return p99;
+    }
+  }
+
+  /**
+   * Returns the read timeout for the next request.
+   * @param requested timeout requested by the caller, 0 for none
+   * @return requested timeout if set, otherwise the adaptive timeout or 0 if
+   * adaptive timeouts are disabled or there is not enough data yet
+   */
+  public int getTimeout(int requested) {
+    if (requested > 0 || maxTimeout <= 0) {
+      return requested;
+    }
+    long p = getP99();
+    if (p < 0) {
+      return maxTimeout;
+    }
+    return (int) Math.max(minTimeout, Math.min(maxTimeout, p * timeoutFactor));
+  }
+
+  long getOpenTime() {
+    return openTime;
+  }
+
+  public String getEndpoint() {
+    return endpoint;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  /**
+   * @return number of requests rejected while the circuit was open
+   */
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  /**
+   * @return number of times the circuit opened
+   */
+  public long getTrips() {
+    return trips.get();
+  }
+}
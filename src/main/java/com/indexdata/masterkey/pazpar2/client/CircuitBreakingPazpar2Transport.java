@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transport decorator that keeps a {@link CircuitBreaker} per pazpar2
+ * endpoint. Requests to an endpoint with an open circuit fail immediately
+ * with {@link CircuitOpenException}, and requests without an explicit timeout
+ * get the endpoint's adaptive read timeout. The half-open probe is a plain
+ * 'ping' command without a session, any HTTP answer proves the endpoint is
+ * back.
+ * <p/>
+ * Requests with <code>block=1</code> are held by pazpar2 until results
+ * change, their latency says nothing about the endpoint. They get no
+ * adaptive timeout and neither their latency nor their failures are
+ * recorded, they are only rejected while the circuit is open.
+ *
+ * @author jakub
+ */
+public class CircuitBreakingPazpar2Transport implements Pazpar2Transport {
+  private static final Map<String, CircuitBreakingPazpar2Transport> transports =
+    new ConcurrentHashMap<String, CircuitBreakingPazpar2Transport>();
+  private final Pazpar2Transport delegate;
+  private final Map<String, CircuitBreaker> breakers =
+    new ConcurrentHashMap<String, CircuitBreaker>();
+  private final int failureThreshold;
+  private final long openTime;
+  private final int timeoutFactor;
+  private final int minTimeout;
+  private final int maxTimeout;
+
+  /**
+   * Thrown instead of contacting an endpoint whose circuit is open.
+   */
+  public static class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 4711360823593470914L;
+
+    public CircuitOpenException(String endpoint, Throwable cause) {
+      super("Circuit open for pazpar2 endpoint " + endpoint, cause);
+    }
+  }
+
+  /**
+   * @see CircuitBreaker#CircuitBreaker(String, int, long, int, int, int)
+   */
+  public CircuitBreakingPazpar2Transport(Pazpar2Transport delegate,
+    int failureThreshold, long openTime, int timeoutFactor, int minTimeout,
+    int maxTimeout) {
+    this.delegate = delegate;
+    this.failureThreshold = failureThreshold;
+    this.openTime = openTime;
+    this.timeoutFactor = timeoutFactor;
+    this.minTimeout = minTimeout;
+    this.maxTimeout = maxTimeout;
+  }
+
+  /**
+   * Returns the shared pooled transport for the configuration, decorated with
+   * circuit breakers unless both breakers and adaptive timeouts are disabled.
+   * @param cfg client configuration
+   * @return shared transport
+   */
+  public static Pazpar2Transport forConfiguration(Pazpar2ClientConfiguration cfg) {
+    HttpClientPazpar2Transport pooled = HttpClientPazpar2Transport.forConfiguration(cfg);
+    if (cfg.PAZPAR2_CIRCUIT_FAILURES <= 0 && cfg.PAZPAR2_TIMEOUT_MAX <= 0) {
+      return pooled;
+    }
+    String key = HttpClientPazpar2Transport.key(cfg) + ":" + cfg.PAZPAR2_CIRCUIT_FAILURES
+      + ":" + cfg.PAZPAR2_CIRCUIT_OPEN_TIME + ":" + cfg.PAZPAR2_TIMEOUT_FACTOR
+      + ":" + cfg.PAZPAR2_TIMEOUT_MIN + ":" + cfg.PAZPAR2_TIMEOUT_MAX;
+    CircuitBreakingPazpar2Transport transport = transports.get(key);
+    if (transport == null) {
+      synchronized (transports) {
+        transport = transports.get(key);
+        if (transport == null) {
+          transport = new CircuitBreakingPazpar2Transport(pooled,
+            cfg.PAZPAR2_CIRCUIT_FAILURES, cfg.PAZPAR2_CIRCUIT_OPEN_TIME,
+            cfg.PAZPAR2_TIMEOUT_FACTOR, cfg.PAZPAR2_TIMEOUT_MIN,
+            cfg.PAZPAR2_TIMEOUT_MAX);
+          transports.put(key, transport);
+        }
+      }
+    }
+    return transport;
+  }
+
+  @Override
+  public Response get(String url) throws IOException {
+    return get(url, 0);
+  }
+
+  @Override
+  public Response get(String url, int readTimeout) throws IOException {
+    CircuitBreaker cb = admit(url);
+    if (isBlocking(url)) {
+      return delegate.get(url, readTimeout);
+    }
+    long start = System.currentTimeMillis();
+    try {
+      return completed(cb, delegate.get(url, cb.getTimeout(readTimeout)), start);
+    } catch (IOException ioe) {
+      cb.failed();
+      throw ioe;
+    }
+  }
+
+  @Override
+  public Response post(String url, String entity, String contentType)
+    throws IOException {
+    return post(url, entity, contentType, 0);
+  }
+
+  @Override
+  public Response post(String url, String entity, String contentType,
+    int readTimeout) throws IOException {
+    CircuitBreaker cb = admit(url);
+    if (isBlocking(url)) {
+      return delegate.post(url, entity, contentType, readTimeout);
+    }
+    long start = System.currentTimeMillis();
+    try {
+      return completed(cb, delegate.post(url, entity, contentType,
+        cb.getTimeout(readTimeout)), start);
+    } catch (IOException ioe) {
+      cb.failed();
+      throw ioe;
+    }
+  }
+
+  /**
+   * @param url request URL
+   * @return breaker of the endpoint the URL points to
+   */
+  public CircuitBreaker getBreaker(String url) {
+    String endpoint = endpoint(url);
+    CircuitBreaker cb = breakers.get(endpoint);
+    if (cb == null) {
+      synchronized (breakers) {
+        cb = breakers.get(endpoint);
+        if (cb == null) {
+          cb = new CircuitBreaker(endpoint, failureThreshold, openTime,
+            timeoutFactor, minTimeout, maxTimeout);
+          breakers.put(endpoint, cb);
+        }
+      }
+    }
+    return cb;
+  }
+
+  public Collection<CircuitBreaker> getBreakers() {
+    return breakers.values();
+  }
+
+  private CircuitBreaker admit(String url) throws IOException {
+    CircuitBreaker cb = getBreaker(url);
+    switch (cb.acquire()) {
+      case REJECT:
+        throw new CircuitOpenException(cb.getEndpoint(), null);
+      case PROBE:
+        probe(cb);
+        break;
+      default:
+        break;
+    }
+    return cb;
+  }
+
+  private void probe(CircuitBreaker cb) throws IOException {
+    Response response = null;
+    try {
+      response = delegate.get(cb.getEndpoint() + "?command=ping",
+        (int) Math.min(cb.getOpenTime(), Integer.MAX_VALUE));
+      cb.probeSucceeded();
+    } catch (IOException ioe) {
+      cb.probeFailed();
+      throw new CircuitOpenException(cb.getEndpoint(), ioe);
+    } catch (RuntimeException re) {
+      cb.probeFailed();
+      throw re;
+    } finally {
+      if (response != null) {
+        response.release();
+      }
+    }
+  }
+
+  private static Response completed(CircuitBreaker cb, Response response,
+    long start) {
+    int sc = response.getStatusCode();
+    if (sc == 502 || sc == 503 || sc == 504) {
+      //a front reporting pazpar2 as unavailable
+      cb.failed();
+    } else {
+      cb.succeeded(System.currentTimeMillis() - start);
+    }
+    return response;
+  }
+
+  static boolean isBlocking(String url) {
+    int q = url.indexOf('?');
+    if (q < 0) {
+      return false;
+    }
+    for (String param : url.substring(q + 1).split("&")) {
+      if (param.equals("block=1")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String endpoint(String url) {
+    int q = url.indexOf('?');
+    return q >= 0 ? url.substring(0, q) : url;
+  }
+}
@@ -1,6 +1,9 @@
 package com.indexdata.masterkey.pazpar2.client;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Map;
@@ -15,22 +18,25 @@ import org.apache.log4j.Logger;
  * @author Niels Erik Nielsen
  *
  */
-public class ClientCommand implements Serializable {
+public class ClientCommand implements Externalizable {
   private static final long serialVersionUID = 5584296831521617821L;
   private static Logger logger = Logger.getLogger(ClientCommand.class);
   public final static String CLIENT_WINDOW_ID_PARAMETER = "windowid";
   public final static String RECORD_FILTER_PARAMETER = "recordfilter";
   public final static String RECORD_QUERY_PARAMETER = "recordquery";  
   public final static String TORUS_QUERY_PARAMETER = "torusquery";
+  public final static String LONG_POLL_PARAMETER = "longpoll";
   private String[] nonPz2Parameters = {
     CLIENT_WINDOW_ID_PARAMETER,
     TORUS_QUERY_PARAMETER,    
     RECORD_FILTER_PARAMETER,
-    RECORD_QUERY_PARAMETER
+    RECORD_QUERY_PARAMETER,
+    LONG_POLL_PARAMETER
   };
   
   public final static String COMMAND_PARAMETER = "command";
   public final static String TARGET_FILTER_PARAMETER = "filter";
+  public final static String RECORD_ID_PARAMETER = "id";
   
   private String command = "";
   private String queryString = "";
@@ -40,6 +46,8 @@ public class ClientCommand implements Serializable {
   private String recordFilterTargetCriteria = "";
   private String torusParams = "";
   private String recordQuery = "";
+  private long longPollTimeout = 0;
+  private String recordId = null;
   
   /**
    * Create an instance of pazpar2 search command.
@@ -59,6 +67,17 @@ public class ClientCommand implements Serializable {
     if (this.record() && getParameter(params, RECORD_QUERY_PARAMETER).length()>0) {
       setRecordQuery(getParameter(params, RECORD_QUERY_PARAMETER));
     }
+    if (this.record() && getParameter(params, RECORD_ID_PARAMETER).length()>0) {
+      recordId = getParameter(params, RECORD_ID_PARAMETER);
+    }
+    String longPoll = getParameter(params, LONG_POLL_PARAMETER);
+    if (longPoll.length()>0) {
+      try {
+        longPollTimeout = Long.parseLong(longPoll);
+      } catch (NumberFormatException nfe) {
+        logger.warn("Ignoring invalid " + LONG_POLL_PARAMETER + " value: " + longPoll);
+      }
+    }
     
   }
   
@@ -74,6 +93,12 @@ public class ClientCommand implements Serializable {
     return value;
   }
    
+  /**
+   * For deserialization only.
+   */
+  public ClientCommand() {
+  }
+
   public ClientCommand(String command, String queryString) {
     this.command = command;
     this.queryString = queryString;
@@ -225,6 +250,31 @@ public class ClientCommand implements Serializable {
     return (command != null && command.equals("ping"));
   }
 
+  /**
+   * Is this a 'show' or 'stat' command that may be held until the search
+   * makes progress
+   * @return true if long-poll was requested
+   */
+  public boolean longPoll() {
+    return (show() || stat()) && longPollTimeout > 0;
+  }
+
+  /**
+   * @return longest time in milliseconds the client is willing to wait for
+   * progress, 0 if long-poll was not requested
+   */
+  public long getLongPollTimeout() {
+    return longPollTimeout;
+  }
+
+  /**
+   * @return id of the record requested by a 'record' command, null if
+   * unknown
+   */
+  public String getRecordId() {
+    return recordId;
+  }
+
   public String getCommand() {
     return command;
   }
@@ -269,4 +319,37 @@ public class ClientCommand implements Serializable {
   public String getPz2queryString() {
     return pz2queryString;
   }    
+
+  /**
+   * Writes the parsed parts of the command, the query string is not parsed
+   * again on the receiving side.
+   */
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeObject(command);
+    out.writeObject(queryString);
+    out.writeObject(pz2queryString);
+    out.writeObject(targetFilter);
+    out.writeObject(recordFilter);
+    out.writeObject(recordFilterTargetCriteria);
+    out.writeObject(torusParams);
+    out.writeObject(recordQuery);
+    out.writeLong(longPollTimeout);
+    out.writeObject(recordId);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException,
+    ClassNotFoundException {
+    command = (String) in.readObject();
+    queryString = (String) in.readObject();
+    pz2queryString = (String) in.readObject();
+    targetFilter = (String) in.readObject();
+    recordFilter = (String) in.readObject();
+    recordFilterTargetCriteria = (String) in.readObject();
+    torusParams = (String) in.readObject();
+    recordQuery = (String) in.readObject();
+    longPollTimeout = in.readLong();
+    recordId = (String) in.readObject();
+  }
 }
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-flight registry for read-only pazpar2 commands. The first caller of
+ * a command (the leader) sends it to pazpar2 and captures the response, callers
+ * of the identical command on the same session that arrive while it is in
+ * flight, or within the freshness window after it completed, are served a
+ * replay of the captured response.
+ * <p/>
+ * Completed responses are dropped by a periodic sweep once their window is
+ * over, so they are held for no longer than about two windows.
+ *
+ * @author jakub
+ */
+public class CommandCoalescer {
+  private static final Map<Long, CommandCoalescer> coalescers =
+    new ConcurrentHashMap<Long, CommandCoalescer>();
+  private final long window;
+  private ScheduledExecutorService sweeper;
+  private final Map<String, Execution> flights =
+    new ConcurrentHashMap<String, Execution>();
+  private final AtomicLong executed = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong failedLeaders = new AtomicLong();
+
+  private static class Execution {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile byte[] body;
+    private volatile String contentType;
+    private volatile long completedAt = 0;
+    private volatile boolean failed = false;
+  }
+
+  /**
+   * A caller's view of one execution of a command, shared by the leader and
+   * its followers.
+   */
+  public static class Flight {
+    private final Execution execution;
+    private final boolean leader;
+
+    Flight(Execution execution, boolean leader) {
+      this.execution = execution;
+      this.leader = leader;
+    }
+
+    /**
+     * @return true if the caller must execute the command and then call
+     * {@link CommandCoalescer#complete} or {@link CommandCoalescer#fail}
+     */
+    public boolean isLeader() {
+      return leader;
+    }
+
+    /**
+     * Waits for the leader.
+     * @param timeout maximum time to wait in milliseconds
+     * @return true if the leader's response is available, false if the
+     * leader failed or did not finish in time
+     * @throws InterruptedException
+     */
+    public boolean await(long timeout) throws InterruptedException {
+      return execution.done.await(timeout, TimeUnit.MILLISECONDS)
+        && !execution.failed;
+    }
+
+    public byte[] getBody() {
+      return execution.body;
+    }
+
+    public String getContentType() {
+      return execution.contentType;
+    }
+  }
+
+  /**
+   * @param window time in milliseconds a completed response is replayed, 0
+   * to coalesce in-flight commands only
+   */
+  public CommandCoalescer(long window) {
+    this.window = window;
+    if (window > 0) {
+      startSweeper();
+    }
+  }
+
+  /**
+   * Returns the coalescer shared by all clients with the same window, null
+   * if coalescing is disabled (negative window).
+   * @param cfg client configuration
+   * @return shared coalescer or null
+   */
+  public static CommandCoalescer forConfiguration(Pazpar2ClientConfiguration cfg) {
+    if (cfg.PAZPAR2_COALESCE_WINDOW < 0) {
+      return null;
+    }
+    Long key = Long.valueOf(cfg.PAZPAR2_COALESCE_WINDOW);
+    CommandCoalescer coalescer = coalescers.get(key);
+    if (coalescer == null) {
+      synchronized (coalescers) {
+        coalescer = coalescers.get(key);
+        if (coalescer == null) {
+          coalescer = new CommandCoalescer(cfg.PAZPAR2_COALESCE_WINDOW);
+          coalescers.put(key, coalescer);
+        }
+      }
+    }
+    return coalescer;
+  }
+
+  /**
+   * Joins the flight of the command, becoming its leader if there is no
+   * flight in progress and no fresh response.
+   * @param key identifies the command, e.g session and query string
+   * @return leader or follower view of the flight
+   */
+  public Flight join(String key) {
+    while (true) {
+      Execution current = flights.get(key);
+      if (current != null && !isStale(current)) {
+        coalesced.incrementAndGet();
+        return new Flight(current, false);
+      }
+      Execution execution = new Execution();
+      boolean won = current == null
+        ? flights.putIfAbsent(key, execution) == null
+        : flights.replace(key, current, execution);
+      if (won) {
+        executed.incrementAndGet();
+        return new Flight(execution, true);
+      }
+    }
+  }
+
+  /**
+   * Publishes the leader's response to the followers.
+   */
+  public void complete(String key, Flight flight, byte[] body, String contentType) {
+    Execution e = flight.execution;
+    e.body = body;
+    e.contentType = contentType;
+    e.completedAt = System.currentTimeMillis();
+    if (window <= 0) {
+      flights.remove(key, e);
+    }
+    e.done.countDown();
+  }
+
+  /**
+   * Releases the followers of a failed leader, they will execute the command
+   * themselves.
+   */
+  public void fail(String key, Flight flight) {
+    failedLeaders.incrementAndGet();
+    Execution e = flight.execution;
+    e.failed = true;
+    e.completedAt = System.currentTimeMillis();
+    flights.remove(key, e);
+    e.done.countDown();
+  }
+
+  private boolean isStale(Execution e) {
+    return e.completedAt != 0
+      && (e.failed || System.currentTimeMillis() - e.completedAt > window);
+  }
+
+  private void startSweeper() {
+    sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "pazpar2-coalesce-sweep");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    sweeper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        prune();
+      }
+    }, window, window, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Drops completed responses whose window is over.
+   */
+  void prune() {
+    Iterator<Execution> it = flights.values().iterator();
+    while (it.hasNext()) {
+      if (isStale(it.next())) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * @return number of flights in progress or with a response being replayed
+   */
+  public int getFlights() {
+    return flights.size();
+  }
+
+  /**
+   * @return number of commands sent to pazpar2 by leaders
+   */
+  public long getExecuted() {
+    return executed.get();
+  }
+
+  /**
+   * @return number of commands served from another caller's response
+   */
+  public long getCoalesced() {
+    return coalesced.get();
+  }
+
+  /**
+   * @return number of leaders that failed, letting their followers through
+   */
+  public long getFailedLeaders() {
+    return failedLeaders.get();
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Maps record ids to the 'hit' elements of a cached 'show' document, built
+ * once when a hit is first looked up so that later lookups do not require
+ * scanning the document. An index is bound to the document it was built from.
+ *
+ * @author jakub
+ */
+class HitIndex {
+  private final Document show;
+  private final Map<String, Node> hits;
+
+  HitIndex(Document show) {
+    this.show = show;
+    NodeList hitList = show.getElementsByTagName("hit");
+    hits = new LinkedHashMap<String, Node>(hitList.getLength() * 2);
+    for (int i = 0; i < hitList.getLength(); i++) {
+      Node hit = hitList.item(i);
+      for (Node n = hit.getFirstChild(); n != null; n = n.getNextSibling()) {
+        if (n.getNodeType() == Node.ELEMENT_NODE
+          && "recid".equals(((Element) n).getTagName())) {
+          String recid = n.getTextContent();
+          if (hits.containsKey(recid)) {
+            //ambiguous recid, same as not found
+            hits.put(recid, null);
+          } else {
+            hits.put(recid, hit);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @param show 'show' document
+   * @return true if this index was built from the given document
+   */
+  boolean isFor(Document show) {
+    return this.show == show;
+  }
+
+  /**
+   * @param recid record id
+   * @return the 'hit' element with the given recid or null if none
+   */
+  Node get(String recid) {
+    return hits.get(recid);
+  }
+
+  boolean contains(String recid) {
+    return hits.containsKey(recid);
+  }
+
+  /**
+   * @return record ids of the hits in document order
+   */
+  Set<String> recids() {
+    return hits.keySet();
+  }
+
+  int size() {
+    return hits.size();
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.log4j.Logger;
+
+/**
+ * Default pazpar2 transport backed by commons-httpclient and a multi-threaded
+ * connection manager. Connections are kept alive and reused across requests
+ * and across client instances, one transport (and one pool) exists per
+ * distinct set of connection parameters.
+ *
+ * @author jakub
+ */
+public class HttpClientPazpar2Transport implements Pazpar2Transport {
+  private static Logger logger = Logger.getLogger(HttpClientPazpar2Transport.class);
+  private static final Map<String, HttpClientPazpar2Transport> transports =
+    new ConcurrentHashMap<String, HttpClientPazpar2Transport>();
+  private final CountingConnectionManager connectionManager;
+  private final HttpClient httpClient;
+  private final String acceptEncoding;
+
+  /**
+   * Connection manager that keeps track of how often connections are leased
+   * and how often a lease has to wait for a free connection. Pooled
+   * connections count towards the limits while idle, so a lease is only
+   * counted as a wait if it actually blocked.
+   */
+  private static class CountingConnectionManager extends MultiThreadedHttpConnectionManager {
+    //leases that take longer than this (nanoseconds) blocked on the pool
+    static final long WAIT_THRESHOLD = 1000000;
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+
+    @Override
+    public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration,
+      long timeout) throws ConnectionPoolTimeoutException {
+      leases.incrementAndGet();
+      long start = System.nanoTime();
+      try {
+        return super.getConnectionWithTimeout(hostConfiguration, timeout);
+      } finally {
+        if (System.nanoTime() - start > WAIT_THRESHOLD) {
+          waits.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  private class TransportResponse implements Response {
+    private final HttpMethod method;
+    private final int statusCode;
+
+    TransportResponse(HttpMethod method, int statusCode) {
+      this.method = method;
+      this.statusCode = statusCode;
+    }
+
+    @Override
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    @Override
+    public String getHeader(String name) {
+      Header h = method.getResponseHeader(name);
+      return h != null ? h.getValue() : null;
+    }
+
+    @Override
+    public InputStream getBody() throws IOException {
+      //the stream releases the connection when read to the end or closed
+      InputStream is = method.getResponseBodyAsStream();
+      return is != null ? is : new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public void release() {
+      method.releaseConnection();
+    }
+  }
+
+  HttpClientPazpar2Transport(int connectTimeout, int readTimeout,
+    int maxPerHost, int maxTotal) {
+    this(connectTimeout, readTimeout, maxPerHost, maxTotal, null);
+  }
+
+  /**
+   * @param acceptEncoding value of the Accept-Encoding header sent with every
+   * request, null to not send the header; decoding is left to the caller
+   */
+  HttpClientPazpar2Transport(int connectTimeout, int readTimeout,
+    int maxPerHost, int maxTotal, String acceptEncoding) {
+    this.acceptEncoding = acceptEncoding;
+    connectionManager = new CountingConnectionManager();
+    HttpConnectionManagerParams params = connectionManager.getParams();
+    params.setConnectionTimeout(connectTimeout);
+    params.setSoTimeout(readTimeout);
+    params.setDefaultMaxConnectionsPerHost(maxPerHost);
+    params.setMaxTotalConnections(maxTotal);
+    params.setStaleCheckingEnabled(true);
+    params.setTcpNoDelay(true);
+    httpClient = new HttpClient(connectionManager);
+    //don't wait forever for a pooled connection
+    httpClient.getParams().setConnectionManagerTimeout(connectTimeout);
+    logger.info("Created pazpar2 connection pool (connect timeout " + connectTimeout
+      + " ms, read timeout " + readTimeout + " ms, " + maxPerHost
+      + " connections per host, " + maxTotal + " in total)");
+  }
+
+  /**
+   * Returns the transport shared by all clients with the same connection
+   * parameters, creating it if needed.
+   * @param cfg client configuration
+   * @return shared transport
+   */
+  public static HttpClientPazpar2Transport forConfiguration(Pazpar2ClientConfiguration cfg) {
+    String key = key(cfg);
+    HttpClientPazpar2Transport transport = transports.get(key);
+    if (transport == null) {
+      synchronized (transports) {
+        transport = transports.get(key);
+        if (transport == null) {
+          transport = new HttpClientPazpar2Transport(cfg.PAZPAR2_CONNECT_TIMEOUT,
+            cfg.PAZPAR2_READ_TIMEOUT, cfg.PAZPAR2_MAX_CONNECTIONS_PER_HOST,
+            cfg.PAZPAR2_MAX_TOTAL_CONNECTIONS, cfg.PAZPAR2_ACCEPT_ENCODING);
+          transports.put(key, transport);
+        }
+      }
+    }
+    return transport;
+  }
+
+  static String key(Pazpar2ClientConfiguration cfg) {
+    return cfg.PAZPAR2_CONNECT_TIMEOUT + ":" + cfg.PAZPAR2_READ_TIMEOUT
+      + ":" + cfg.PAZPAR2_MAX_CONNECTIONS_PER_HOST
+      + ":" + cfg.PAZPAR2_MAX_TOTAL_CONNECTIONS
+      + ":" + cfg.PAZPAR2_ACCEPT_ENCODING;
+  }
+
+  @Override
+  public Response get(String url) throws IOException {
+    return get(url, 0);
+  }
+
+  @Override
+  public Response get(String url, int readTimeout) throws IOException {
+    return execute(new GetMethod(url), readTimeout);
+  }
+
+  @Override
+  public Response post(String url, String entity, String contentType)
+    throws IOException {
+    return post(url, entity, contentType, 0);
+  }
+
+  @Override
+  public Response post(String url, String entity, String contentType,
+    int readTimeout) throws IOException {
+    PostMethod pm = new PostMethod(url);
+    pm.setRequestEntity(new StringRequestEntity(entity, contentType, "UTF-8"));
+    return execute(pm, readTimeout);
+  }
+
+  private Response execute(HttpMethod hm, int readTimeout) throws IOException {
+    if (readTimeout > 0) {
+      hm.getParams().setSoTimeout(readTimeout);
+    }
+    if (acceptEncoding != null) {
+      hm.setRequestHeader("Accept-Encoding", acceptEncoding);
+    }
+    try {
+      return new TransportResponse(hm, httpClient.executeMethod(hm));
+    } catch (IOException ioe) {
+      hm.releaseConnection();
+      throw ioe;
+    } catch (RuntimeException re) {
+      hm.releaseConnection();
+      throw re;
+    }
+  }
+
+  /**
+   * @return number of times a pooled connection was leased
+   */
+  public long getLeaseCount() {
+    return connectionManager.leases.get();
+  }
+
+  /**
+   * @return number of leases that blocked waiting for a free connection
+   */
+  public long getWaitCount() {
+    return connectionManager.waits.get();
+  }
+
+  /**
+   * @return number of connections currently held by the pool
+   */
+  public int getConnectionsInPool() {
+    return connectionManager.getConnectionsInPool();
+  }
+}
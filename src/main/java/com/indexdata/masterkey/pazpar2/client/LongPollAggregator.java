@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import com.indexdata.utils.HttpContentEncoding;
+import com.indexdata.utils.XmlUtils;
+
+/**
+ * Parks long-poll show/stat requests until the search on their pazpar2
+ * session makes progress. Progress is the tuple of 'activeclients', 'hits'
+ * and 'records' reported by the 'stat' command.
+ * <p/>
+ * All parked requests of a session share one upstream poller: the first
+ * poll is a plain 'stat', later ones use pazpar2's 'block=1' so that pazpar2
+ * itself holds the poll until something changes. The blocking polls run on a
+ * bounded pool of their own, the deadlines of parked requests and the pauses
+ * between polls on a separate timer thread, so sessions that keep all poll
+ * threads busy cannot delay the deadlines of others.
+ *
+ * @author jakub
+ */
+public class LongPollAggregator {
+  private static Logger logger = Logger.getLogger(LongPollAggregator.class);
+  private static final Map<String, LongPollAggregator> aggregators =
+    new ConcurrentHashMap<String, LongPollAggregator>();
+  //read timeout of blocking polls, which must not get a short adaptive timeout
+  static final int BLOCK_TIMEOUT = 60000;
+  //timers only (deadlines and poll pauses), never blocks
+  private final ScheduledExecutorService scheduler;
+  //upstream polls, which may block for up to BLOCK_TIMEOUT
+  private final ExecutorService pollers;
+  private final long pollInterval;
+  private final Map<String, Watch> watches = new ConcurrentHashMap<String, Watch>();
+  private final AtomicLong upstreamPolls = new AtomicLong();
+  private final AtomicLong parked = new AtomicLong();
+  private final AtomicLong woken = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+
+  private static class Waiter {
+    final CompletableFuture<String> future = new CompletableFuture<String>();
+    final String baseline;
+
+    Waiter(String baseline) {
+      this.baseline = baseline;
+    }
+  }
+
+  /**
+   * Progress of one pazpar2 session and the requests parked on it.
+   */
+  private class Watch {
+    final String key;
+    final String pazpar2Url;
+    final String sessionId;
+    final Pazpar2Transport transport;
+    final List<Waiter> waiters = new ArrayList<Waiter>();
+    String progress;
+    boolean polling = false;
+
+    Watch(String key, String pazpar2Url, String sessionId,
+      Pazpar2Transport transport) {
+      this.key = key;
+      this.pazpar2Url = pazpar2Url;
+      this.sessionId = sessionId;
+      this.transport = transport;
+    }
+
+    void poll() {
+      String url = pazpar2Url + "?command=stat&session=" + sessionId
+        + (progress != null ? "&block=1" : "");
+      String current = null;
+      Pazpar2Transport.Response response = null;
+      try {
+        upstreamPolls.incrementAndGet();
+        response = transport.get(url, BLOCK_TIMEOUT);
+        if (response.getStatusCode() == 200) {
+          //compressed if the transport sends Accept-Encoding
+          current = progressOf(XmlUtils.parse(HttpContentEncoding.decode(
+            response.getBody(), response.getHeader("Content-Encoding"))));
+        } else {
+          logger.debug("Long-poll stat for session [" + sessionId + "] returned "
+            + response.getStatusCode());
+        }
+      } catch (Exception e) {
+        logger.warn("Long-poll stat for session [" + sessionId + "] failed: "
+          + e.getMessage());
+      } finally {
+        if (response != null) {
+          response.release();
+        }
+      }
+      synchronized (this) {
+        if (current == null) {
+          //session gone or pazpar2 unreachable, let the requests through
+          release(null);
+          polling = false;
+          watches.remove(key, this);
+          return;
+        }
+        progress = current;
+        Iterator<Waiter> it = waiters.iterator();
+        while (it.hasNext()) {
+          Waiter w = it.next();
+          if (!current.equals(w.baseline)) {
+            woken.incrementAndGet();
+            w.future.complete(current);
+            it.remove();
+          }
+        }
+        if (waiters.isEmpty()) {
+          polling = false;
+          watches.remove(key, this);
+        } else {
+          schedulePoll(this, pollInterval);
+        }
+      }
+    }
+
+    void release(String current) {
+      for (Waiter w : waiters) {
+        w.future.complete(current);
+      }
+      waiters.clear();
+    }
+  }
+
+  /**
+   * @param threads number of threads polling pazpar2, the deadlines run on
+   * a timer thread of their own
+   * @param pollInterval pause in milliseconds between upstream polls that
+   * report no progress
+   */
+  public LongPollAggregator(int threads, long pollInterval) {
+    this.pollInterval = pollInterval;
+    final AtomicInteger threadCount = new AtomicInteger();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L,
+      TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "pazpar2-longpoll-" + threadCount.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    pool.allowCoreThreadTimeOut(true);
+    pollers = pool;
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "pazpar2-longpoll-timer");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Returns the aggregator shared by all clients with the same long-poll
+   * settings.
+   * @param cfg client configuration
+   * @return shared aggregator
+   */
+  public static LongPollAggregator forConfiguration(Pazpar2ClientConfiguration cfg) {
+    String key = cfg.PAZPAR2_LONGPOLL_THREADS + ":" + cfg.PAZPAR2_LONGPOLL_INTERVAL;
+    LongPollAggregator aggregator = aggregators.get(key);
+    if (aggregator == null) {
+      synchronized (aggregators) {
+        aggregator = aggregators.get(key);
+        if (aggregator == null) {
+          aggregator = new LongPollAggregator(cfg.PAZPAR2_LONGPOLL_THREADS,
+            cfg.PAZPAR2_LONGPOLL_INTERVAL);
+          aggregators.put(key, aggregator);
+        }
+      }
+    }
+    return aggregator;
+  }
+
+  /**
+   * Parks until the session's progress differs from the baseline or the
+   * timeout passes.
+   * @param pazpar2Url endpoint of the session
+   * @param sessionId pazpar2 session id
+   * @param transport transport for the upstream polls
+   * @param baseline progress the caller has already seen, null for none
+   * @param timeout longest time to park in milliseconds
+   * @return future completed with the current progress, or with null if it
+   * cannot be determined (e.g the session is gone)
+   */
+  public CompletableFuture<String> awaitProgress(String pazpar2Url,
+    String sessionId, Pazpar2Transport transport, String baseline, long timeout) {
+    String key = pazpar2Url + "|" + sessionId;
+    final Waiter waiter = new Waiter(baseline);
+    while (true) {
+      Watch watch = watches.get(key);
+      if (watch == null) {
+        Watch created = new Watch(key, pazpar2Url, sessionId, transport);
+        watch = watches.putIfAbsent(key, created);
+        if (watch == null) {
+          watch = created;
+        }
+      }
+      synchronized (watch) {
+        if (watches.get(key) != watch) {
+          continue; //retired concurrently
+        }
+        if (watch.progress != null && !watch.progress.equals(baseline)) {
+          return CompletableFuture.completedFuture(watch.progress);
+        }
+        parked.incrementAndGet();
+        watch.waiters.add(waiter);
+        if (!watch.polling) {
+          watch.polling = true;
+          schedulePoll(watch, 0);
+        }
+        final Watch w = watch;
+        scheduler.schedule(new Runnable() {
+          @Override
+          public void run() {
+            synchronized (w) {
+              if (w.waiters.remove(waiter)) {
+                expired.incrementAndGet();
+                waiter.future.complete(w.progress);
+              }
+            }
+          }
+        }, timeout, TimeUnit.MILLISECONDS);
+        return waiter.future;
+      }
+    }
+  }
+
+  private void schedulePoll(final Watch watch, long delay) {
+    final Runnable poll = new Runnable() {
+      @Override
+      public void run() {
+        watch.poll();
+      }
+    };
+    if (delay <= 0) {
+      pollers.execute(poll);
+      return;
+    }
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        pollers.execute(poll);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Extracts the progress tuple from a 'stat' response.
+   * @param stat 'stat' response document
+   * @return progress signature
+   */
+  static String progressOf(Document stat) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (String name : new String[] {"activeclients", "hits", "records"}) {
+      Node n = stat.getElementsByTagName(name).item(0);
+      if (n == null) {
+        throw new IOException("No '" + name + "' in pazpar2 stat response");
+      }
+      sb.append(name).append('=').append(n.getTextContent().trim()).append(';');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return number of 'stat' requests sent to pazpar2
+   */
+  public long getUpstreamPolls() {
+    return upstreamPolls.get();
+  }
+
+  /**
+   * @return number of requests that had to be parked
+   */
+  public long getParked() {
+    return parked.get();
+  }
+
+  /**
+   * @return number of parked requests woken by progress
+   */
+  public long getWoken() {
+    return woken.get();
+  }
+
+  /**
+   * @return number of parked requests released by their deadline
+   */
+  public long getExpired() {
+    return expired.get();
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Transport decorator that reports the latency, status, size and failures of
+ * every request to {@link Pazpar2Metrics}. The command is taken from the
+ * 'command' parameter of the request URL.
+ *
+ * @author jakub
+ */
+public class MeteredPazpar2Transport implements Pazpar2Transport {
+  private final Pazpar2Transport delegate;
+  private final Pazpar2Metrics metrics;
+
+  public MeteredPazpar2Transport(Pazpar2Transport delegate, Pazpar2Metrics metrics) {
+    this.delegate = delegate;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public Response get(String url) throws IOException {
+    return get(url, 0);
+  }
+
+  @Override
+  public Response get(String url, int readTimeout) throws IOException {
+    String command = command(url);
+    String endpoint = endpoint(url);
+    long start = System.currentTimeMillis();
+    try {
+      return responded(command, endpoint, delegate.get(url, readTimeout), start);
+    } catch (IOException ioe) {
+      metrics.failed(command, endpoint, System.currentTimeMillis() - start, ioe);
+      throw ioe;
+    }
+  }
+
+  @Override
+  public Response post(String url, String entity, String contentType)
+    throws IOException {
+    return post(url, entity, contentType, 0);
+  }
+
+  @Override
+  public Response post(String url, String entity, String contentType,
+    int readTimeout) throws IOException {
+    String command = command(url);
+    String endpoint = endpoint(url);
+    long start = System.currentTimeMillis();
+    try {
+      return responded(command, endpoint,
+        delegate.post(url, entity, contentType, readTimeout), start);
+    } catch (IOException ioe) {
+      metrics.failed(command, endpoint, System.currentTimeMillis() - start, ioe);
+      throw ioe;
+    }
+  }
+
+  private Response responded(String command, String endpoint,
+    Response response, long start) {
+    metrics.responded(command, endpoint, response.getStatusCode(),
+      System.currentTimeMillis() - start);
+    return new MeteredResponse(command, endpoint, response);
+  }
+
+  /**
+   * @param url request URL
+   * @return value of the 'command' parameter, 'unknown' if there is none
+   */
+  static String command(String url) {
+    int q = url.indexOf('?');
+    while (q >= 0) {
+      if (url.startsWith("command=", q + 1)) {
+        int start = q + 1 + "command=".length();
+        int end = url.indexOf('&', start);
+        return end >= 0 ? url.substring(start, end) : url.substring(start);
+      }
+      q = url.indexOf('&', q + 1);
+    }
+    return "unknown";
+  }
+
+  private static String endpoint(String url) {
+    int q = url.indexOf('?');
+    return q >= 0 ? url.substring(0, q) : url;
+  }
+
+  /**
+   * Counts the body bytes and reports them once, when the body ends, is
+   * closed or the response is released.
+   */
+  private class MeteredResponse implements Response {
+    private final String command;
+    private final String endpoint;
+    private final Response response;
+    private InputStream body;
+    private long bytes = 0;
+    private boolean reported = false;
+
+    MeteredResponse(String command, String endpoint, Response response) {
+      this.command = command;
+      this.endpoint = endpoint;
+      this.response = response;
+    }
+
+    @Override
+    public int getStatusCode() {
+      return response.getStatusCode();
+    }
+
+    @Override
+    public String getHeader(String name) {
+      return response.getHeader(name);
+    }
+
+    @Override
+    public InputStream getBody() throws IOException {
+      if (body == null) {
+        body = new FilterInputStream(response.getBody()) {
+          @Override
+          public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+              report();
+            } else {
+              bytes++;
+            }
+            return b;
+          }
+
+          @Override
+          public int read(byte[] buf, int off, int len) throws IOException {
+            int n = super.read(buf, off, len);
+            if (n == -1) {
+              report();
+            } else {
+              bytes += n;
+            }
+            return n;
+          }
+
+          @Override
+          public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            bytes += skipped;
+            return skipped;
+          }
+
+          @Override
+          public void close() throws IOException {
+            report();
+            super.close();
+          }
+        };
+      }
+      return body;
+    }
+
+    @Override
+    public void release() {
+      report();
+      response.release();
+    }
+
+    private void report() {
+      if (!reported) {
+        reported = true;
+        metrics.received(command, endpoint, bytes);
+      }
+    }
+  }
+}
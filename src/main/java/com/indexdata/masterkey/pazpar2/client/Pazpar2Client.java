@@ -8,6 +8,7 @@ package com.indexdata.masterkey.pazpar2.client;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
 
 import org.w3c.dom.Document;
 
@@ -17,7 +18,8 @@ import com.indexdata.masterkey.pazpar2.client.exceptions.ProxyErrorException;
 
 /**
  * Pazpar2 proxy API. The proxy class is always instantiated per request. 
- * No backend HTTP connection reuse occurs.
+ * Backend HTTP connections are pooled and reused by the underlying
+ * {@link Pazpar2Transport}.
  * @author jakub
  */
 public interface Pazpar2Client {
@@ -74,6 +76,54 @@ public interface Pazpar2Client {
      * @throws Pazpar2ErrorException
      */    
     Pazpar2HttpResponse executeCommand(ClientCommand command, OutputStream os) throws  IOException, Pazpar2ErrorException;
+
+    /**
+     * Forwards any Pazpar2 command and writes the results to the OutputStream
+     * compressed with the given HTTP content coding. When pazpar2 sent the
+     * results in the same coding they are relayed without being recompressed.
+     * 
+     * @param command
+     * @param os
+     * @param contentEncoding 'gzip' or 'deflate', e.g as negotiated with
+     * {@link com.indexdata.utils.HttpContentEncoding#negotiate(String)}, any
+     * other value results in an unencoded relay, as does the default
+     * implementation
+     * @return HTTP status of pazpar2 request, its content encoding tells how
+     * the relayed body is encoded
+     * @throws IOException
+     * @throws Pazpar2ErrorException
+     */
+    default Pazpar2HttpResponse executeCommand(ClientCommand command, OutputStream os, String contentEncoding) throws  IOException, Pazpar2ErrorException {
+      //clients that cannot encode relay unencoded
+      return executeCommand(command, os);
+    }
+
+    /**
+     * Forwards any Pazpar2 command without blocking the calling thread. The
+     * command is executed with the same session bootstrap and record retry
+     * logic as {@link #executeCommand(ClientCommand, OutputStream)}.
+     * Asynchronous commands on the same client are executed one at a time,
+     * in the order they were submitted. The default implementation executes
+     * the command on the calling thread and returns a completed future.
+     * 
+     * @param command
+     * @param os
+     * @return future completed with the HTTP status of the pazpar2 request or
+     * completed exceptionally with IOException or Pazpar2ErrorException, or
+     * with RejectedExecutionException if too many commands are waiting
+     */
+    default CompletableFuture<Pazpar2HttpResponse> executeCommandAsync(ClientCommand command, OutputStream os) {
+      //clients without an executor of their own complete it on the calling thread
+      CompletableFuture<Pazpar2HttpResponse> future = new CompletableFuture<Pazpar2HttpResponse>();
+      try {
+        future.complete(executeCommand(command, os));
+      } catch (IOException ioe) {
+        future.completeExceptionally(ioe);
+      } catch (Pazpar2ErrorException pe) {
+        future.completeExceptionally(pe);
+      }
+      return future;
+    }
     
     /**
      * Returns the results of the latest command of the kind processed by this proxy client
@@ -32,6 +32,83 @@ public class Pazpar2ClientConfiguration implements Serializable {
   public String XML_FILE_PATH = null;
   public String USE_OPAQUE_ID;
   public String CF_ENGINE_ADDRESS = "";
+  //pazpar2 connection pool, timeouts in milliseconds (0 means no timeout)
+  public int PAZPAR2_CONNECT_TIMEOUT = 10000;
+  public int PAZPAR2_READ_TIMEOUT = 0;
+  public int PAZPAR2_MAX_CONNECTIONS_PER_HOST = 20;
+  public int PAZPAR2_MAX_TOTAL_CONNECTIONS = 200;
+  //threads shared by all clients for executeCommandAsync, and the most
+  //commands waiting for them before new ones are rejected
+  public int PAZPAR2_ASYNC_THREADS = 50;
+  public int PAZPAR2_ASYNC_QUEUE = 1000;
+  //sessions that answered within the TTL are not pinged (0 disables),
+  //idle sessions are kept alive with background pings (0 disables)
+  public int PAZPAR2_SESSION_ALIVE_TTL = 10000;
+  public int PAZPAR2_SESSION_KEEPALIVE = 0;
+  public int PAZPAR2_SESSION_KEEPALIVE_MAX_IDLE = 600000;
+  //Accept-Encoding sent to pazpar2 (e.g gzip) when it sits behind a
+  //compressing front, responses are decoded transparently
+  public String PAZPAR2_ACCEPT_ENCODING = null;
+  //several pazpar2 endpoints (whitespace or comma separated) to spread new
+  //sessions over with PAZPAR2_ROUTING: least-sessions, weighted (see
+  //PAZPAR2_WEIGHTS), realm-hash or a Pazpar2RoutingPolicy class name
+  public String PAZPAR2_URLS = null;
+  public String PAZPAR2_ROUTING = "least-sessions";
+  public String PAZPAR2_WEIGHTS = null;
+  //time in milliseconds a failed endpoint is avoided for new sessions
+  public int PAZPAR2_BACKEND_RETRY = 30000;
+  //per endpoint circuit breaker: opens after this many consecutive failures
+  //(0 disables) and lets a ping probe through after the open time
+  public int PAZPAR2_CIRCUIT_FAILURES = 5;
+  public int PAZPAR2_CIRCUIT_OPEN_TIME = 10000;
+  //adaptive read timeout: p99 latency times the factor, clamped to min..max,
+  //max 0 disables it and PAZPAR2_READ_TIMEOUT applies
+  public int PAZPAR2_TIMEOUT_FACTOR = 3;
+  public int PAZPAR2_TIMEOUT_MIN = 5000;
+  public int PAZPAR2_TIMEOUT_MAX = 0;
+  //identical concurrent show/stat/termlist requests on a session are sent
+  //once, the response is replayed to the others and, for this many
+  //milliseconds after it arrived, to repeated requests (-1 disables)
+  public int PAZPAR2_COALESCE_WINDOW = 0;
+  //show/stat requests with the 'longpoll' parameter are held for at most this
+  //many milliseconds until the search progresses (0 disables long-poll), one
+  //upstream poller per session runs on the long-poll threads
+  public int PAZPAR2_LONGPOLL_MAX = 30000;
+  public int PAZPAR2_LONGPOLL_THREADS = 10;
+  public int PAZPAR2_LONGPOLL_INTERVAL = 250;
+  //a record missing from a running search is requested again with exponential
+  //backoff starting at PAZPAR2_RECORD_BACKOFF ms, for at most
+  //PAZPAR2_RECORD_WAIT ms in total
+  public int PAZPAR2_RECORD_WAIT = 60000;
+  public int PAZPAR2_RECORD_BACKOFF = 100;
+  //most pre-initialized torus sessions kept idle per realm, torus parameters
+  //and service definition (0 disables the pool), idle sessions are dropped
+  //after PAZPAR2_SESSION_POOL_MAX_AGE ms, which must stay below pazpar2's
+  //session timeout, and the pool is refilled every PAZPAR2_SESSION_POOL_REFILL ms
+  public int PAZPAR2_SESSION_POOL = 0;
+  public int PAZPAR2_SESSION_POOL_MAX_AGE = 45000;
+  public int PAZPAR2_SESSION_POOL_REFILL = 5000;
+  //bytes of cached results kept by all clients of the process together, the
+  //least recently used results are dropped and re-requested when needed
+  //(0 for no limit)
+  public long PAZPAR2_RESULTS_BUDGET = 0;
+  //request latency, size and status metrics: jmx (exported as an MBean), none,
+  //or a Pazpar2Metrics class name
+  public String PAZPAR2_METRICS = "jmx";
+  //records of the first PAZPAR2_PREFETCH hits of every show page are fetched
+  //ahead of the record commands (0 disables), by PAZPAR2_PREFETCH_THREADS
+  //threads shared by all clients
+  public int PAZPAR2_PREFETCH = 0;
+  public int PAZPAR2_PREFETCH_THREADS = 8;
+  //bytes of record responses cached across all sessions, keyed by session,
+  //search and record request (0 disables the cache)
+  public long PAZPAR2_RECORD_CACHE = 0;
+  //cached torus target settings are served without contacting the torus and
+  //revalidated in the background every TORUS_REFRESH_INTERVAL ms (0 for a
+  //conditional GET to the torus on every init)
+  public int TORUS_REFRESH_INTERVAL = 0;
+  //binding of torus searchables: 'jaxb' or 'stax' (reflection-free, faster)
+  public String TORUS_BINDING = "jaxb";
   //
   public final String CACHE_LISTENER;
   
@@ -79,7 +156,13 @@ public class Pazpar2ClientConfiguration implements Serializable {
   public Pazpar2ClientConfiguration(ModuleConfigurationGetter cfg) throws ProxyErrorException {
     if (cfg != null) {
       try {
-        PAZPAR2_URL = cfg.getMandatory("PAZPAR2_URL");
+        PAZPAR2_URLS = cfg.get("PAZPAR2_URLS");
+        if (PAZPAR2_URLS != null && !PAZPAR2_URLS.trim().isEmpty()) {
+          //the first endpoint is the default
+          PAZPAR2_URL = cfg.get("PAZPAR2_URL", PAZPAR2_URLS.trim().split("[\\s,]+")[0]);
+        } else {
+          PAZPAR2_URL = cfg.getMandatory("PAZPAR2_URL");
+        }
         PROXY_MODE = Integer.parseInt(cfg.getMandatory("PROXY_MODE"));
         STREAMBUFF_SIZE = Integer.parseInt(cfg.getMandatory("STREAMBUFF_SIZE"));
         if (PROXY_MODE == 2) {
@@ -101,6 +184,69 @@ public class Pazpar2ClientConfiguration implements Serializable {
         USE_OPAQUE_ID = cfg.get("USE_OPAQUE_ID", "no");
         CF_ENGINE_ADDRESS = cfg.get("CF_ENGINE_ADDRESS");
         CACHE_LISTENER = cfg.get("CACHE_LISTENER");
+        PAZPAR2_CONNECT_TIMEOUT = Integer.parseInt(cfg.get("PAZPAR2_CONNECT_TIMEOUT",
+          Integer.toString(PAZPAR2_CONNECT_TIMEOUT)));
+        PAZPAR2_READ_TIMEOUT = Integer.parseInt(cfg.get("PAZPAR2_READ_TIMEOUT",
+          Integer.toString(PAZPAR2_READ_TIMEOUT)));
+        PAZPAR2_MAX_CONNECTIONS_PER_HOST = Integer.parseInt(cfg.get("PAZPAR2_MAX_CONNECTIONS_PER_HOST",
+          Integer.toString(PAZPAR2_MAX_CONNECTIONS_PER_HOST)));
+        PAZPAR2_MAX_TOTAL_CONNECTIONS = Integer.parseInt(cfg.get("PAZPAR2_MAX_TOTAL_CONNECTIONS",
+          Integer.toString(PAZPAR2_MAX_TOTAL_CONNECTIONS)));
+        PAZPAR2_ASYNC_THREADS = Integer.parseInt(cfg.get("PAZPAR2_ASYNC_THREADS",
+          Integer.toString(PAZPAR2_ASYNC_THREADS)));
+        PAZPAR2_ASYNC_QUEUE = Integer.parseInt(cfg.get("PAZPAR2_ASYNC_QUEUE",
+          Integer.toString(PAZPAR2_ASYNC_QUEUE)));
+        PAZPAR2_SESSION_ALIVE_TTL = Integer.parseInt(cfg.get("PAZPAR2_SESSION_ALIVE_TTL",
+          Integer.toString(PAZPAR2_SESSION_ALIVE_TTL)));
+        PAZPAR2_SESSION_KEEPALIVE = Integer.parseInt(cfg.get("PAZPAR2_SESSION_KEEPALIVE",
+          Integer.toString(PAZPAR2_SESSION_KEEPALIVE)));
+        PAZPAR2_SESSION_KEEPALIVE_MAX_IDLE = Integer.parseInt(cfg.get("PAZPAR2_SESSION_KEEPALIVE_MAX_IDLE",
+          Integer.toString(PAZPAR2_SESSION_KEEPALIVE_MAX_IDLE)));
+        PAZPAR2_ACCEPT_ENCODING = cfg.get("PAZPAR2_ACCEPT_ENCODING");
+        PAZPAR2_ROUTING = cfg.get("PAZPAR2_ROUTING", PAZPAR2_ROUTING);
+        PAZPAR2_WEIGHTS = cfg.get("PAZPAR2_WEIGHTS");
+        PAZPAR2_BACKEND_RETRY = Integer.parseInt(cfg.get("PAZPAR2_BACKEND_RETRY",
+          Integer.toString(PAZPAR2_BACKEND_RETRY)));
+        PAZPAR2_CIRCUIT_FAILURES = Integer.parseInt(cfg.get("PAZPAR2_CIRCUIT_FAILURES",
+          Integer.toString(PAZPAR2_CIRCUIT_FAILURES)));
+        PAZPAR2_CIRCUIT_OPEN_TIME = Integer.parseInt(cfg.get("PAZPAR2_CIRCUIT_OPEN_TIME",
+          Integer.toString(PAZPAR2_CIRCUIT_OPEN_TIME)));
+        PAZPAR2_TIMEOUT_FACTOR = Integer.parseInt(cfg.get("PAZPAR2_TIMEOUT_FACTOR",
+          Integer.toString(PAZPAR2_TIMEOUT_FACTOR)));
+        PAZPAR2_TIMEOUT_MIN = Integer.parseInt(cfg.get("PAZPAR2_TIMEOUT_MIN",
+          Integer.toString(PAZPAR2_TIMEOUT_MIN)));
+        PAZPAR2_TIMEOUT_MAX = Integer.parseInt(cfg.get("PAZPAR2_TIMEOUT_MAX",
+          Integer.toString(PAZPAR2_TIMEOUT_MAX)));
+        PAZPAR2_COALESCE_WINDOW = Integer.parseInt(cfg.get("PAZPAR2_COALESCE_WINDOW",
+          Integer.toString(PAZPAR2_COALESCE_WINDOW)));
+        PAZPAR2_LONGPOLL_MAX = Integer.parseInt(cfg.get("PAZPAR2_LONGPOLL_MAX",
+          Integer.toString(PAZPAR2_LONGPOLL_MAX)));
+        PAZPAR2_LONGPOLL_THREADS = Integer.parseInt(cfg.get("PAZPAR2_LONGPOLL_THREADS",
+          Integer.toString(PAZPAR2_LONGPOLL_THREADS)));
+        PAZPAR2_LONGPOLL_INTERVAL = Integer.parseInt(cfg.get("PAZPAR2_LONGPOLL_INTERVAL",
+          Integer.toString(PAZPAR2_LONGPOLL_INTERVAL)));
+        PAZPAR2_RECORD_WAIT = Integer.parseInt(cfg.get("PAZPAR2_RECORD_WAIT",
+          Integer.toString(PAZPAR2_RECORD_WAIT)));
+        PAZPAR2_RECORD_BACKOFF = Integer.parseInt(cfg.get("PAZPAR2_RECORD_BACKOFF",
+          Integer.toString(PAZPAR2_RECORD_BACKOFF)));
+        PAZPAR2_SESSION_POOL = Integer.parseInt(cfg.get("PAZPAR2_SESSION_POOL",
+          Integer.toString(PAZPAR2_SESSION_POOL)));
+        PAZPAR2_SESSION_POOL_MAX_AGE = Integer.parseInt(cfg.get("PAZPAR2_SESSION_POOL_MAX_AGE",
+          Integer.toString(PAZPAR2_SESSION_POOL_MAX_AGE)));
+        PAZPAR2_SESSION_POOL_REFILL = Integer.parseInt(cfg.get("PAZPAR2_SESSION_POOL_REFILL",
+          Integer.toString(PAZPAR2_SESSION_POOL_REFILL)));
+        PAZPAR2_RESULTS_BUDGET = Long.parseLong(cfg.get("PAZPAR2_RESULTS_BUDGET",
+          Long.toString(PAZPAR2_RESULTS_BUDGET)));
+        PAZPAR2_METRICS = cfg.get("PAZPAR2_METRICS", PAZPAR2_METRICS);
+        PAZPAR2_PREFETCH = Integer.parseInt(cfg.get("PAZPAR2_PREFETCH",
+          Integer.toString(PAZPAR2_PREFETCH)));
+        PAZPAR2_PREFETCH_THREADS = Integer.parseInt(cfg.get("PAZPAR2_PREFETCH_THREADS",
+          Integer.toString(PAZPAR2_PREFETCH_THREADS)));
+        PAZPAR2_RECORD_CACHE = Long.parseLong(cfg.get("PAZPAR2_RECORD_CACHE",
+          Long.toString(PAZPAR2_RECORD_CACHE)));
+        TORUS_REFRESH_INTERVAL = Integer.parseInt(cfg.get("TORUS_REFRESH_INTERVAL",
+          Integer.toString(TORUS_REFRESH_INTERVAL)));
+        TORUS_BINDING = cfg.get("TORUS_BINDING", TORUS_BINDING);
 
         CCLMAP_TERM = cfg.get("CCLMAP_TERM", CCLMAP_TERM_FB);
         CCLMAP_SU = cfg.get("CCLMAP_SU", CCLMAP_SU_FB);
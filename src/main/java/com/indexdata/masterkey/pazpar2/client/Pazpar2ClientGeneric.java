@@ -31,6 +31,12 @@ public class Pazpar2ClientGeneric extends AbstractPazpar2Client {
     super(cfg);
   }
 
+  /**
+   * For deserialization only.
+   */
+  public Pazpar2ClientGeneric() {
+  }
+
   @Override
   protected boolean requiresForcedInit() {
     return false;
@@ -48,7 +54,7 @@ public class Pazpar2ClientGeneric extends AbstractPazpar2Client {
       try {
         Document pz2TargetSettings = loadSettingsXml(pz2SettingsXmlFileName);
         sendInit(true);
-        post("command=settings", pz2TargetSettings);
+        post("command=settings", pz2TargetSettings).release();
       } catch (SAXException e) {
         logger.error("Error in generic Pazpar2 client - could not load target settings.");
         throw new Pazpar2ErrorException("SAX error while attempting to load target settings from file " + pz2SettingsXmlFileName,0,e.getMessage(),e.toString());
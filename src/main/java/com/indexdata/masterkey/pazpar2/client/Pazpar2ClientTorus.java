@@ -8,29 +8,59 @@ package com.indexdata.masterkey.pazpar2.client;
 import com.indexdata.masterkey.pazpar2.client.exceptions.Pazpar2ErrorException;
 import com.indexdata.masterkey.pazpar2.client.exceptions.Pazpar2IOException;
 import com.indexdata.masterkey.pazpar2.client.exceptions.ProxyErrorException;
+import com.indexdata.rest.client.JAXBContextRegistry;
 import com.indexdata.rest.client.ResourceConnectionException;
 import com.indexdata.rest.client.ResourceConnector;
 import com.indexdata.rest.client.TorusConnectorFactory;
+import com.indexdata.rest.client.TorusStaxBinder;
+import com.indexdata.torus.Record;
 import com.indexdata.torus.Records;
 import com.indexdata.utils.CacheEntry;
 import com.indexdata.utils.LRUCache;
 import com.indexdata.utils.PerformanceLogger;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.bind.JAXBException;
 import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
 
 /**
  * Creates a Pazpar2 client with settings retrieved from the torus 
+ * <p/>
+ * The target settings and the target cache are not serialized with the
+ * client. A deserialized client reloads the settings from the torus when
+ * they are first needed, callers must set the target cache again with
+ * {@link #setTargetCache(LRUCache)} to have them served from it.
  *
  * @author jakub
  */
 public class Pazpar2ClientTorus extends AbstractPazpar2Client {
-  private static final long serialVersionUID = 6228919774442869371L;
+  private static final long serialVersionUID = 6228919774442869372L;
   private static Logger logger = Logger.getLogger(Pazpar2ClientTorus.class);
-  private Pazpar2Settings targetSettings = null;
+  //bound packages of the target searchables
+  private static final String TORUS_PACKAGES = "com.indexdata.torus.layer:com.indexdata.torus";
+  private transient Pazpar2Settings targetSettings = null;
   private String realm = null;
-  private LRUCache<String, CacheEntry> targetCache;
+  private transient LRUCache<String, CacheEntry> targetCache;
+  //settings last sent on the session and their record filters
+  private transient Pazpar2Settings appliedSettings;
+  private transient Map<String, String> appliedRecordFilters;
+  //fingerprint of the applied settings, null until computed
+  private byte[] appliedFingerprint = null;
+  private transient boolean recordFilterPending = false;
+
+  /**
+   * For deserialization only.
+   */
+  public Pazpar2ClientTorus() {
+  }
 
   /**
    * Instantiates MODE 2 client
@@ -57,10 +87,39 @@ public class Pazpar2ClientTorus extends AbstractPazpar2Client {
   }
     
 
+  /**
+   * Creates the JAXB context for the torus searchables, call at application
+   * start to spare the first search the cost.
+   * @throws JAXBException if the context cannot be created
+   */
+  public static void warmUp() throws JAXBException {
+    JAXBContextRegistry.warmUp(TORUS_PACKAGES);
+  }
+
+  /**
+   * Returns the target settings, reloading them from the torus if the
+   * client was deserialized and has not needed them since.
+   */
   @Override
   public Pazpar2Settings getSettings() {
+    if (targetSettings == null && isDeserialized()) {
+      try {
+        targetSettings = loadTargetSettings(getTorusParams());
+      } catch (ProxyErrorException pe) {
+        logger.error("Cannot reload target settings of session ["
+          + pazpar2Session.getSessionId() + "]", pe);
+      }
+    }
     return targetSettings;
   }
+
+  /**
+   * @return true if the settings were set up on the session before the
+   * client was serialized and have not been reloaded since
+   */
+  private boolean isDeserialized() {
+    return appliedSettings == null && appliedFingerprint != null;
+  }
   
   private void setSettings(Pazpar2Settings settings) {
     targetSettings = settings;
@@ -84,11 +143,75 @@ public class Pazpar2ClientTorus extends AbstractPazpar2Client {
         + pazpar2Session.getSearchCommand().getRecordFilter()
         + "] on session [" + pazpar2Session.getSessionId()
         + "]. Setting filtering before sending search to Pazpar2.");
-      needsInit = true;
+      if (!needsInit && isDeserialized()) {
+        //deserialized, the settings are reloaded and checked before the search
+        recordFilterPending = true;
+      } else if (needsInit || targetSettings == null || targetSettings != appliedSettings) {
+        needsInit = true;
+      } else {
+        recordFilterPending = true;
+      }
     }
     return needsInit;
   }
 
+  /**
+   * Sends only the record filters that changed since the settings were last
+   * sent on the session.
+   */
+  @Override
+  protected void updateSettings() throws Pazpar2IOException,
+    Pazpar2ErrorException {
+    if (!recordFilterPending) {
+      return;
+    }
+    recordFilterPending = false;
+    if (appliedSettings == null && !reloadAppliedSettings()) {
+      init();
+      return;
+    }
+    applyRecordFilter(targetSettings, pazpar2Session.getSearchCommand());
+    Document delta = targetSettings.recordFilterDelta(appliedRecordFilters);
+    if (delta == null) {
+      logger.debug("Record filters already set on session ["
+        + pazpar2Session.getSessionId() + "]");
+      return;
+    }
+    logger.info("Sending changed record filters on session ["
+      + pazpar2Session.getSessionId() + "]");
+    post("command=settings", delta).release();
+    appliedRecordFilters = targetSettings.getRecordFilters();
+  }
+
+  /**
+   * Reloads the target settings of a deserialized client and checks that
+   * they are still the ones the session was set up with.
+   * @return false if the settings changed and the session must be set up again
+   */
+  private boolean reloadAppliedSettings() throws ProxyErrorException {
+    if (targetSettings == null) {
+      targetSettings = loadTargetSettings(getTorusParams());
+    }
+    if (!Arrays.equals(targetSettings.fingerprint(), appliedFingerprint)) {
+      logger.info("Target settings changed since session ["
+        + pazpar2Session.getSessionId() + "] was set up, reinitializing.");
+      return false;
+    }
+    applyRecordFilter(targetSettings, pazpar2Session.getPreviousSearchCommand());
+    appliedSettings = targetSettings;
+    appliedRecordFilters = targetSettings.getRecordFilters();
+    return true;
+  }
+
+  private void applyRecordFilter(Pazpar2Settings settings, ClientCommand cmd) {
+    String recordFilter = null, recordFilterCriteria = null;
+    if (cmd != null && cmd.hasRecordFilter()) {
+      recordFilter = cmd.getRecordFilter();
+      recordFilterCriteria = cmd.getRecordFilterTargetCriteria();
+    }
+    settings.setRecordFilter(recordFilter, recordFilterCriteria);
+  }
+
   /**
    * Initializes a Pazpar2 sessions while clearing any statically defined
    * databases from Pazpar2's configuration and loading and from the target 
@@ -96,36 +219,93 @@ public class Pazpar2ClientTorus extends AbstractPazpar2Client {
    */
   @Override
   public void init() throws Pazpar2IOException, Pazpar2ErrorException {
+    String torusParams = getTorusParams();
+    if (!initFromPool(torusParams)) {
+      initSession(torusParams);
+    }
+  }
+
+  private void initSession(String torusParams)
+    throws Pazpar2IOException, Pazpar2ErrorException {
     sendInit(true);
     long startTime = PerformanceLogger.start(" >SETTS", "Target Settings");
     if (targetSettings == null) {
       logger.info("Fetching target settings...");
-      targetSettings = loadTargetSettings();
-    }
-    String recordFilter = null, recordFilterCriteria = null;
-    ClientCommand cmd = pazpar2Session.getSearchCommand();
-    if (cmd != null && cmd.hasRecordFilter()) {
-      recordFilter = cmd.getRecordFilter();
-      recordFilterCriteria = cmd.getRecordFilterTargetCriteria();
+      targetSettings = loadTargetSettings(torusParams);
     }
     logger.info("Re-instating 'recordfilter' on target settings...");
-    targetSettings.setRecordFilter(recordFilter, recordFilterCriteria);
+    applyRecordFilter(targetSettings, pazpar2Session.getSearchCommand());
     setup(targetSettings);
     PerformanceLogger.finish(" <SETTS DONE", "Target Settings", startTime);
   }
   
+  /**
+   * Takes a pre-initialized session from the session pool. Pooled sessions
+   * are set up without a record filter, so searches with one are not served.
+   * @return true if a pooled session was taken
+   */
+  private boolean initFromPool(final String torusParams) {
+    Pazpar2SessionPool pool = Pazpar2SessionPool.forConfiguration(cfg);
+    ClientCommand cmd = pazpar2Session.getSearchCommand();
+    if (pool == null || (cmd != null && cmd.hasRecordFilter())) {
+      return false;
+    }
+    final Pazpar2ClientConfiguration poolCfg = cfg;
+    final String poolRealm = realm;
+    final LRUCache<String, CacheEntry> poolCache = targetCache;
+    Pazpar2SessionPool.PooledSession session = pool.take(poolKey(torusParams),
+      new Pazpar2SessionPool.Factory() {
+        @Override
+        public Pazpar2SessionPool.PooledSession create() throws Exception {
+          Pazpar2ClientTorus client = new Pazpar2ClientTorus(poolCfg, poolRealm);
+          client.setTargetCache(poolCache);
+          client.initSession(torusParams);
+          return new Pazpar2SessionPool.PooledSession(client.getPazpar2Url(),
+            client.getSessionId(), client.getSettings());
+        }
+      });
+    if (session == null) {
+      return false;
+    }
+    adoptSession(session.getPazpar2Url(), session.getSessionId());
+    targetSettings = session.getSettings();
+    appliedSettings = targetSettings;
+    appliedFingerprint = null;
+    //pooled sessions are set up without record filters
+    appliedRecordFilters = new HashMap<String, String>();
+    recordFilterPending = false;
+    return true;
+  }
+
+  private String poolKey(String torusParams) {
+    return realm + "|" + torusParams + "|" + cfg.PAZPAR2_SERVICE_ID + "|"
+      + cfg.PAZPAR2_SERVICE_XML + "|" + cfg.PAZPAR2_URL + "|" + cfg.PAZPAR2_URLS;
+  }
+
+  private String getTorusParams() {
+    return (pazpar2Session.getSearchCommand() == null || pazpar2Session
+      .getSearchCommand().getTorusParams() == null)
+      ? cfg.TORUS_PARAMS
+      : pazpar2Session.getSearchCommand().getTorusParams();
+  }
+
   private void setup(Pazpar2Settings settings)
     throws ProxyErrorException, Pazpar2IOException, Pazpar2ErrorException {
-    post("command=settings", settings.toXml(null));
+    post("command=settings", settings.toXml(null)).release();
+    appliedSettings = settings;
+    appliedFingerprint = null;
+    appliedRecordFilters = settings.getRecordFilters();
+    recordFilterPending = false;
   }
   
-  private Pazpar2Settings loadTargetSettings() throws ProxyErrorException {
-    String torusParams = (pazpar2Session.getSearchCommand() == null || pazpar2Session
-	.getSearchCommand().getTorusParams() == null) 
-      ? cfg.TORUS_PARAMS 
-      : pazpar2Session.getSearchCommand().getTorusParams();
+  private Pazpar2Settings loadTargetSettings(String torusParams)
+    throws ProxyErrorException {
     String torusURI = TorusConnectorFactory.getTorusURL(cfg.TORUS_BASEURL, 
       "searchable", realm, torusParams);
+    TorusSettingsRefresher refresher = TorusSettingsRefresher.forConfiguration(cfg);
+    if (refresher != null && targetCache != null) {
+      return refresher.get(torusURI, targetCache, loaderFor(cfg));
+    }
     Date lastModified = null;
     Pazpar2Settings settings = null;
     if (targetCache != null) { 
@@ -141,39 +321,71 @@ public class Pazpar2ClientTorus extends AbstractPazpar2Client {
         }
       }
     }
+    Pazpar2Settings loaded = fetchTargetSettings(cfg, torusURI,
+      settings != null ? lastModified : null);
+    if (loaded == null) { //not-modified
+      logger.info("Target settings were not modified upstream since "+lastModified);
+    } else {
+      settings = loaded;
+      //revalidation uses the server's validators cached by the connector
+      if (targetCache != null)
+        targetCache.put(torusURI, new CacheEntry(new Date(), settings));
+    }
+    return settings;
+  }
+
+  /**
+   * Loader of target settings for the background refresh, it must not hold
+   * on to the client.
+   */
+  private static TorusSettingsRefresher.Loader loaderFor(
+    final Pazpar2ClientConfiguration cfg) {
+    return new TorusSettingsRefresher.Loader() {
+      @Override
+      public Pazpar2Settings load(String torusURI, Date lastModified)
+        throws ProxyErrorException {
+        return fetchTargetSettings(cfg, torusURI, lastModified);
+      }
+    };
+  }
+
+  /**
+   * Retrieves target settings from the torus.
+   * @param lastModified time of the cached settings for a conditional GET,
+   * null to retrieve them unconditionally
+   * @return settings or null if not modified since lastModified
+   */
+  private static Pazpar2Settings fetchTargetSettings(Pazpar2ClientConfiguration cfg,
+    String torusURI, Date lastModified) throws ProxyErrorException {
+    Pazpar2Settings settings = null;
     try {
       URL torusUrl = new URL(torusURI);
       logger.info("Connecting to target torus at " + torusUrl.toExternalForm()
 	  + "...");
       ResourceConnector<Records> torusConn = new ResourceConnector<Records>(torusUrl,
-	  "com.indexdata.torus.layer" + ":com.indexdata.torus");
-      //cache is populated
-      if (lastModified != null && settings != null) {
-        Records records = (Records) torusConn.getIfModified(lastModified);
-        if (records == null) { //not-modified
-          logger.info("Target settings were not modified upstream since "+lastModified);
-        } else { //modified
-            logger.info("Target settings were modified upstream, new values will be cached");
-            settings = records.getRecords() != null 
-              ? Pazpar2Settings.fromSearchables(records, cfg)
-              : null;
-            //todo use server timestamp
-            if (targetCache != null && settings != null)
-              targetCache.put(torusURI, new CacheEntry(new Date(), settings));
-        }
-      //cache is not or semi populated
-      } else {
-        Records records = (Records) torusConn.get();
-        if (records != null) {
-            logger.info("New target settings retrieved, values will be cached");
-            settings = records.getRecords() != null 
-              ? Pazpar2Settings.fromSearchables(records, cfg)
-              : null;
-            //todo use server timestamp
-            if (targetCache != null && settings != null)
-              targetCache.put(torusURI, new CacheEntry(new Date(), settings));
+	  TORUS_PACKAGES);
+      if ("stax".equalsIgnoreCase(cfg.TORUS_BINDING)) {
+        torusConn.setBinder(TorusStaxBinder.INSTANCE);
+      }
+      //records are bound and loaded one at a time, so large realms are never
+      //held in memory as a whole
+      final Pazpar2Settings loaded = new Pazpar2Settings(cfg);
+      Integer count = torusConn.streamIfModified(lastModified, "record", Record.class,
+        new JAXBContextRegistry.ElementHandler<Record>() {
+          @Override
+          public void handle(Record record) {
+            loaded.loadSearchable(record);
           }
+        });
+      if (count == null) { //not-modified
+        return null;
       }
+      if (lastModified != null) {
+        logger.info("Target settings were modified upstream, new values will be cached");
+      } else {
+        logger.info("New target settings retrieved, values will be cached");
+      }
+      settings = count > 0 ? loaded : null;
       //final sanity check
       if (settings == null) {
 	logger.debug("Got no resources to search from Torus");
@@ -217,10 +429,46 @@ public class Pazpar2ClientTorus extends AbstractPazpar2Client {
     return client;
   }
 
+  /**
+   * Places sessions by the realm of this client, which in proxy mode 3 need
+   * not be the configured one.
+   */
+  @Override
+  protected String getRoutingKey() {
+    return realm;
+  }
+
+  /**
+   * Adds the realm and the fingerprint of the applied target settings, the
+   * settings themselves are reloaded only if the session needs them.
+   */
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    super.writeExternal(out);
+    out.writeObject(realm);
+    if (appliedFingerprint == null && appliedSettings != null) {
+      appliedFingerprint = appliedSettings.fingerprint();
+    }
+    out.writeObject(appliedFingerprint);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException,
+    ClassNotFoundException {
+    super.readExternal(in);
+    realm = (String) in.readObject();
+    appliedFingerprint = (byte[]) in.readObject();
+  }
+
   public LRUCache<String, CacheEntry> getTargetCache() {
     return targetCache;
   }
 
+  /**
+   * Sets the cache of target settings shared by the clients. The cache is not
+   * serialized with the client and must be set again after deserialization.
+   * @param targetCache cache keyed by torus URL
+   */
   public void setTargetCache(LRUCache<String, CacheEntry> targetCache) {
     this.targetCache = targetCache;
   }
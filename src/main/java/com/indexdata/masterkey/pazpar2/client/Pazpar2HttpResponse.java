@@ -12,4 +12,9 @@ package com.indexdata.masterkey.pazpar2.client;
 public interface Pazpar2HttpResponse {
   public int getStatusCode();
   public String getContentType();
+  /**
+   * @return content coding of the body written to the caller's output
+   * stream, null if the body is not encoded
+   */
+  public String getContentEncoding();
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.io.IOException;
+
+/**
+ * Receives measurements of the requests the client makes to pazpar2. An
+ * implementation is shared by all clients with the same configuration and
+ * called from many threads, it must be thread-safe and cheap.
+ * <p/>
+ * Custom implementations are plugged in by naming their class (with a public
+ * no-arg constructor) in PAZPAR2_METRICS.
+ *
+ * @see Pazpar2MetricsRegistry
+ * @author jakub
+ */
+public interface Pazpar2Metrics {
+
+  /**
+   * A response arrived.
+   * @param command pazpar2 command, e.g 'show'
+   * @param endpoint pazpar2 endpoint URL without the query string
+   * @param statusCode HTTP status of the response
+   * @param latency milliseconds until the response headers arrived
+   */
+  void responded(String command, String endpoint, int statusCode, long latency);
+
+  /**
+   * The body of a response was consumed or released.
+   * @param command pazpar2 command
+   * @param endpoint pazpar2 endpoint URL without the query string
+   * @param bytes bytes read from the body, as sent on the wire
+   */
+  void received(String command, String endpoint, long bytes);
+
+  /**
+   * The request failed without a response.
+   * @param command pazpar2 command
+   * @param endpoint pazpar2 endpoint URL without the query string
+   * @param latency milliseconds until the failure
+   * @param cause the failure
+   */
+  void failed(String command, String endpoint, long latency, IOException cause);
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import com.indexdata.rest.client.HttpResponseCache;
+import com.indexdata.utils.BufferPool;
+import com.indexdata.utils.Histogram;
+
+/**
+ * Default {@link Pazpar2Metrics}: latency and response size histograms per
+ * command and per endpoint, counters per HTTP status and failure type. The
+ * registry also collects the counters of the other shared client components
+ * (connection pool, circuit breakers, liveness tracker, coalescer, long-poll
+ * aggregator, session pool, buffer pool, result budget, record cache, torus
+ * settings refresh and torus response cache), and exports all of it as read-only
+ * attributes of a JMX MBean.
+ *
+ * @author jakub
+ */
+public class Pazpar2MetricsRegistry implements Pazpar2Metrics {
+  private static Logger logger = Logger.getLogger(Pazpar2MetricsRegistry.class);
+  private static final Map<String, Pazpar2Metrics> registries =
+    new ConcurrentHashMap<String, Pazpar2Metrics>();
+  public static final String JMX_DOMAIN = "com.indexdata.masterkey.pazpar2";
+  private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+  private final Map<String, Stats> commands = new ConcurrentHashMap<String, Stats>();
+  private final Map<String, Stats> endpoints = new ConcurrentHashMap<String, Stats>();
+  private final Map<Integer, AtomicLong> statuses =
+    new ConcurrentHashMap<Integer, AtomicLong>();
+  private final Map<String, AtomicLong> failures =
+    new ConcurrentHashMap<String, AtomicLong>();
+  private final List<Source> sources = new CopyOnWriteArrayList<Source>();
+
+  /**
+   * Contributes the counters of some other component to the snapshot.
+   */
+  public interface Source {
+    void collect(Map<String, Object> into);
+  }
+
+  private static class Stats {
+    private final Histogram latency = new Histogram();
+    private final Histogram size = new Histogram();
+    private final AtomicLong failures = new AtomicLong();
+  }
+
+  /**
+   * Returns the metrics shared by all clients of the same pazpar2 with the
+   * same PAZPAR2_METRICS: 'jmx' (the default) for this registry exported
+   * over JMX, 'none' for no metrics, or the class name of a custom
+   * implementation.
+   * @param cfg client configuration
+   * @return shared metrics or null if disabled
+   */
+  public static Pazpar2Metrics forConfiguration(Pazpar2ClientConfiguration cfg) {
+    String name = cfg.PAZPAR2_METRICS;
+    if (name == null || name.isEmpty() || "none".equals(name)) {
+      return null;
+    }
+    String key = name + "|" + cfg.PAZPAR2_URL;
+    Pazpar2Metrics metrics = registries.get(key);
+    if (metrics == null) {
+      synchronized (registries) {
+        metrics = registries.get(key);
+        if (metrics == null) {
+          metrics = create(name);
+          if (metrics instanceof Pazpar2MetricsRegistry) {
+            Pazpar2MetricsRegistry registry = (Pazpar2MetricsRegistry) metrics;
+            registry.addSource(componentsOf(cfg));
+            registry.export(objectName(cfg));
+          }
+          registries.put(key, metrics);
+        }
+      }
+    }
+    return metrics;
+  }
+
+  static Pazpar2Metrics create(String name) {
+    if ("jmx".equals(name)) {
+      return new Pazpar2MetricsRegistry();
+    }
+    try {
+      return (Pazpar2Metrics) Class.forName(name).newInstance();
+    } catch (Exception e) {
+      logger.error("Cannot create pazpar2 metrics '" + name + "', using jmx", e);
+      return new Pazpar2MetricsRegistry();
+    }
+  }
+
+  private static ObjectName objectName(Pazpar2ClientConfiguration cfg) {
+    try {
+      return new ObjectName(JMX_DOMAIN + ":type=Pazpar2Client,pazpar2="
+        + ObjectName.quote(String.valueOf(cfg.PAZPAR2_URL)));
+    } catch (Exception e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  public void addSource(Source source) {
+    sources.add(source);
+  }
+
+  @Override
+  public void responded(String command, String endpoint, int statusCode,
+    long latency) {
+    statsOf(commands, command).latency.record(latency);
+    statsOf(endpoints, endpoint).latency.record(latency);
+    AtomicLong counter = statuses.get(statusCode);
+    if (counter == null) {
+      statuses.putIfAbsent(statusCode, new AtomicLong());
+      counter = statuses.get(statusCode);
+    }
+    counter.incrementAndGet();
+  }
+
+  @Override
+  public void received(String command, String endpoint, long bytes) {
+    statsOf(commands, command).size.record(bytes);
+    statsOf(endpoints, endpoint).size.record(bytes);
+  }
+
+  @Override
+  public void failed(String command, String endpoint, long latency,
+    IOException cause) {
+    statsOf(commands, command).failures.incrementAndGet();
+    statsOf(endpoints, endpoint).failures.incrementAndGet();
+    String type = cause.getClass().getSimpleName();
+    AtomicLong counter = failures.get(type);
+    if (counter == null) {
+      failures.putIfAbsent(type, new AtomicLong());
+      counter = failures.get(type);
+    }
+    counter.incrementAndGet();
+  }
+
+  private static Stats statsOf(Map<String, Stats> map, String name) {
+    Stats stats = map.get(name);
+    if (stats == null) {
+      synchronized (map) {
+        stats = map.get(name);
+        if (stats == null) {
+          stats = new Stats();
+          map.put(name, stats);
+        }
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * @param command pazpar2 command
+   * @return latency histogram of the command, null if it was never sent
+   */
+  public Histogram getLatency(String command) {
+    Stats stats = commands.get(command);
+    return stats != null ? stats.latency : null;
+  }
+
+  /**
+   * @param command pazpar2 command
+   * @return response size histogram of the command, null if it was never sent
+   */
+  public Histogram getSize(String command) {
+    Stats stats = commands.get(command);
+    return stats != null ? stats.size : null;
+  }
+
+  /**
+   * @param statusCode HTTP status
+   * @return number of responses with the status
+   */
+  public long getStatusCount(int statusCode) {
+    AtomicLong counter = statuses.get(statusCode);
+    return counter != null ? counter.get() : 0;
+  }
+
+  /**
+   * Returns all measurements and the counters of the registered sources
+   * under dotted names, e.g 'command.show.latency.p99'.
+   * @return current values by name
+   */
+  public SortedMap<String, Object> snapshot() {
+    SortedMap<String, Object> values = new TreeMap<String, Object>();
+    for (Map.Entry<String, Stats> e : commands.entrySet()) {
+      collect(values, "command." + e.getKey(), e.getValue());
+    }
+    for (Map.Entry<String, Stats> e : endpoints.entrySet()) {
+      collect(values, "endpoint." + e.getKey(), e.getValue());
+    }
+    for (Map.Entry<Integer, AtomicLong> e : statuses.entrySet()) {
+      values.put("status." + e.getKey(), e.getValue().get());
+    }
+    for (Map.Entry<String, AtomicLong> e : failures.entrySet()) {
+      values.put("failure." + e.getKey(), e.getValue().get());
+    }
+    for (Source source : sources) {
+      try {
+        source.collect(values);
+      } catch (RuntimeException re) {
+        logger.warn("Cannot collect pazpar2 client metrics: " + re.getMessage());
+      }
+    }
+    return values;
+  }
+
+  private static void collect(Map<String, Object> values, String prefix,
+    Stats stats) {
+    collect(values, prefix + ".latency", stats.latency);
+    collect(values, prefix + ".bytes", stats.size);
+    values.put(prefix + ".failures", stats.failures.get());
+  }
+
+  private static void collect(Map<String, Object> values, String prefix,
+    Histogram histogram) {
+    values.put(prefix + ".count", histogram.getCount());
+    values.put(prefix + ".mean", histogram.getMean());
+    values.put(prefix + ".max", histogram.getMax());
+    for (double p : PERCENTILES) {
+      values.put(prefix + ".p" + Math.round(p * 100), histogram.getPercentile(p));
+    }
+  }
+
+  /**
+   * Counters of the shared components the clients of the configuration use,
+   * looked up when collected.
+   */
+  static Source componentsOf(final Pazpar2ClientConfiguration cfg) {
+    return new Source() {
+      @Override
+      public void collect(Map<String, Object> into) {
+        HttpClientPazpar2Transport pooled = HttpClientPazpar2Transport.forConfiguration(cfg);
+        into.put("pool.leases", pooled.getLeaseCount());
+        into.put("pool.waits", pooled.getWaitCount());
+        into.put("pool.connections", pooled.getConnectionsInPool());
+        Pazpar2Transport transport = CircuitBreakingPazpar2Transport.forConfiguration(cfg);
+        if (transport instanceof CircuitBreakingPazpar2Transport) {
+          for (CircuitBreaker cb
+            : ((CircuitBreakingPazpar2Transport) transport).getBreakers()) {
+            String prefix = "breaker." + cb.getEndpoint();
+            into.put(prefix + ".state", cb.getState().name());
+            into.put(prefix + ".trips", cb.getTrips());
+            into.put(prefix + ".rejected", cb.getRejected());
+          }
+        }
+        for (Pazpar2Router.Backend backend : Pazpar2Router.forConfiguration(cfg).getBackends()) {
+          into.put("router." + backend.getUrl() + ".sessions", backend.getActiveSessions());
+        }
+        SessionLivenessTracker tracker = SessionLivenessTracker.forConfiguration(cfg);
+        into.put("liveness.pingsAvoided", tracker.getPingsAvoided());
+        into.put("liveness.pingsSent", tracker.getPingsSent());
+        into.put("liveness.keepalivePings", tracker.getKeepalivePings());
+        into.put("liveness.sessions", tracker.getTrackedSessions());
+        CommandCoalescer coalescer = CommandCoalescer.forConfiguration(cfg);
+        if (coalescer != null) {
+          into.put("coalescer.executed", coalescer.getExecuted());
+          into.put("coalescer.coalesced", coalescer.getCoalesced());
+          into.put("coalescer.failedLeaders", coalescer.getFailedLeaders());
+        }
+        if (cfg.PAZPAR2_LONGPOLL_MAX > 0) {
+          LongPollAggregator aggregator = LongPollAggregator.forConfiguration(cfg);
+          into.put("longpoll.upstreamPolls", aggregator.getUpstreamPolls());
+          into.put("longpoll.parked", aggregator.getParked());
+          into.put("longpoll.woken", aggregator.getWoken());
+          into.put("longpoll.expired", aggregator.getExpired());
+        }
+        Pazpar2SessionPool pool = Pazpar2SessionPool.forConfiguration(cfg);
+        if (pool != null) {
+          into.put("sessionPool.hits", pool.getHits());
+          into.put("sessionPool.misses", pool.getMisses());
+          into.put("sessionPool.created", pool.getCreated());
+          into.put("sessionPool.expired", pool.getExpired());
+        }
+        if (cfg.STREAMBUFF_SIZE > 0) {
+          BufferPool buffers = BufferPool.forSize(cfg.STREAMBUFF_SIZE);
+          into.put("buffers.allocations", buffers.getAllocations());
+          into.put("buffers.reuses", buffers.getReuses());
+          into.put("buffers.idle", buffers.getIdle());
+        }
+        ResultMemoryGovernor governor = ResultMemoryGovernor.forConfiguration(cfg);
+        if (governor != null) {
+          into.put("results.budget", governor.getBudget());
+          into.put("results.used", governor.getUsed());
+          into.put("results.entries", governor.getEntries());
+          into.put("results.evictions", governor.getEvictions());
+          into.put("results.evictedBytes", governor.getEvictedBytes());
+        }
+        RecordCache records = RecordCache.forConfiguration(cfg);
+        if (records != null) {
+          into.put("records.used", records.getUsed());
+          into.put("records.entries", records.getEntries());
+          into.put("records.hits", records.getHits());
+          into.put("records.misses", records.getMisses());
+          into.put("records.evictions", records.getEvictions());
+        }
+        TorusSettingsRefresher refresher = TorusSettingsRefresher.forConfiguration(cfg);
+        if (refresher != null) {
+          into.put("torus.hits", refresher.getHits());
+          into.put("torus.loads", refresher.getLoads());
+          into.put("torus.joined", refresher.getJoined());
+          into.put("torus.revalidations", refresher.getRevalidations());
+          into.put("torus.refreshed", refresher.getRefreshed());
+          into.put("torus.watched", refresher.getWatched());
+        }
+        HttpResponseCache http = HttpResponseCache.getDefault();
+        if (http != null) {
+          into.put("http.cache.hits", http.getHits());
+          into.put("http.cache.revalidated", http.getRevalidated());
+          into.put("http.cache.misses", http.getMisses());
+          into.put("http.cache.used", http.getUsed());
+          into.put("http.cache.entries", http.getEntries());
+          into.put("http.cache.evictions", http.getEvictions());
+        }
+      }
+    };
+  }
+
+  /**
+   * Registers the registry with the platform MBean server, failures are
+   * logged and otherwise ignored.
+   * @param name object name of the MBean
+   */
+  public void export(ObjectName name) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), name);
+    } catch (Exception e) {
+      logger.warn("Cannot export pazpar2 client metrics as " + name + ": "
+        + e.getMessage());
+    }
+  }
+
+  /**
+   * Read-only view of the snapshot, attributes appear as new commands,
+   * endpoints and statuses are seen.
+   */
+  private class MBean implements DynamicMBean {
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      Object value = snapshot().get(attribute);
+      if (value == null) {
+        throw new AttributeNotFoundException(attribute);
+      }
+      return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("Read-only attribute " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      SortedMap<String, Object> values = snapshot();
+      AttributeList list = new AttributeList();
+      for (String attribute : attributes) {
+        Object value = values.get(attribute);
+        if (value != null) {
+          list.add(new Attribute(attribute, value));
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+      throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+      for (Map.Entry<String, Object> e : snapshot().entrySet()) {
+        attributes.add(new MBeanAttributeInfo(e.getKey(),
+          e.getValue().getClass().getName(), e.getKey(), true, false, false));
+      }
+      return new MBeanInfo(Pazpar2MetricsRegistry.class.getName(),
+        "pazpar2 client metrics",
+        attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+        null, new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+    }
+  }
+}
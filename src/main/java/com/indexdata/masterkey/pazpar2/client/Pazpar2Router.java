@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Spreads pazpar2 sessions over several pazpar2 endpoints. New sessions are
+ * placed with a {@link Pazpar2RoutingPolicy}, endpoints that failed are
+ * avoided for a while and the sessions they held are re-created elsewhere by
+ * the client.
+ *
+ * @author jakub
+ */
+public class Pazpar2Router {
+  private static Logger logger = Logger.getLogger(Pazpar2Router.class);
+  private static final Map<String, Pazpar2Router> routers =
+    new ConcurrentHashMap<String, Pazpar2Router>();
+  //pazpar2's default session timeout, sessions idle for longer are not counted
+  static final long SESSION_WINDOW = 60000;
+  //least time between two sweeps of the sessions of an endpoint
+  static final long PRUNE_INTERVAL = SESSION_WINDOW / 10;
+  private final List<Backend> backends;
+  private final Pazpar2RoutingPolicy policy;
+  private final long retryAfter;
+
+  /**
+   * A pazpar2 endpoint and the sessions recently used on it.
+   */
+  public static class Backend {
+    private final String url;
+    private final int weight;
+    private final Map<String, Long> sessions = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong lastPruned = new AtomicLong();
+    private volatile long downUntil = 0;
+
+    Backend(String url, int weight) {
+      this.url = url;
+      this.weight = weight;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    public int getWeight() {
+      return weight;
+    }
+
+    /**
+     * @return number of sessions used on this endpoint within the session
+     * timeout
+     */
+    public int getActiveSessions() {
+      prune(System.currentTimeMillis());
+      return sessions.size();
+    }
+
+    /**
+     * Records use of a session, dropping sessions idle for longer than the
+     * session timeout now and then, whatever the routing policy.
+     */
+    void touched(String sessionId, long now) {
+      sessions.put(sessionId, now);
+      long last = lastPruned.get();
+      if (now - last >= PRUNE_INTERVAL && lastPruned.compareAndSet(last, now)) {
+        prune(now);
+      }
+    }
+
+    private void prune(long now) {
+      long horizon = now - SESSION_WINDOW;
+      Iterator<Long> it = sessions.values().iterator();
+      while (it.hasNext()) {
+        if (it.next() < horizon) {
+          it.remove();
+        }
+      }
+    }
+
+    int getTrackedSessions() {
+      return sessions.size();
+    }
+
+    public boolean isDown() {
+      return downUntil > System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Places new sessions on the endpoint with the fewest active sessions.
+   */
+  public static class LeastSessionsPolicy implements Pazpar2RoutingPolicy {
+    @Override
+    public Backend choose(List<Backend> candidates, String realm) {
+      Backend best = null;
+      int bestCount = Integer.MAX_VALUE;
+      for (Backend b : candidates) {
+        int count = b.getActiveSessions();
+        if (count < bestCount) {
+          best = b;
+          bestCount = count;
+        }
+      }
+      return best;
+    }
+  }
+
+  /**
+   * Places new sessions randomly, proportionally to the endpoint weights.
+   */
+  public static class WeightedPolicy implements Pazpar2RoutingPolicy {
+    @Override
+    public Backend choose(List<Backend> candidates, String realm) {
+      int total = 0;
+      for (Backend b : candidates) {
+        total += b.getWeight();
+      }
+      int pick = ThreadLocalRandom.current().nextInt(Math.max(total, 1));
+      for (Backend b : candidates) {
+        pick -= b.getWeight();
+        if (pick < 0) {
+          return b;
+        }
+      }
+      return candidates.get(0);
+    }
+  }
+
+  /**
+   * Places all sessions of a realm on the same endpoint using a consistent
+   * hash, so that only the realms of a failed endpoint move elsewhere.
+   */
+  public static class RealmHashPolicy implements Pazpar2RoutingPolicy {
+    private static final int REPLICAS = 100;
+    //ring of the last candidate list, rebuilt only when the list changes
+    private volatile Ring ring;
+
+    private static class Ring {
+      private final List<Backend> candidates;
+      private final TreeMap<Long, Backend> points = new TreeMap<Long, Backend>();
+
+      Ring(List<Backend> candidates) {
+        this.candidates = new ArrayList<Backend>(candidates);
+        for (Backend b : candidates) {
+          for (int i = 0; i < REPLICAS * b.getWeight(); i++) {
+            points.put(hash(b.getUrl() + "#" + i), b);
+          }
+        }
+      }
+    }
+
+    @Override
+    public Backend choose(List<Backend> candidates, String realm) {
+      Ring r = ring;
+      //backends are fixed, so the same list means the same weights
+      if (r == null || !r.candidates.equals(candidates)) {
+        r = new Ring(candidates);
+        ring = r;
+      }
+      if (r.points.isEmpty()) {
+        return null;
+      }
+      SortedMap<Long, Backend> tail = r.points.tailMap(hash(realm != null ? realm : ""));
+      return tail.isEmpty() ? r.points.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    private static long hash(String key) {
+      CRC32 crc = new CRC32();
+      crc.update(key.getBytes(StandardCharsets.UTF_8));
+      return crc.getValue();
+    }
+  }
+
+  /**
+   * @param urls pazpar2 endpoints
+   * @param weights weight of each endpoint, null for equal weights
+   * @param policy placement policy
+   * @param retryAfter time in milliseconds a failed endpoint is avoided
+   */
+  public Pazpar2Router(List<String> urls, int[] weights,
+    Pazpar2RoutingPolicy policy, long retryAfter) {
+    if (urls.isEmpty()) {
+      throw new IllegalArgumentException("No pazpar2 endpoints");
+    }
+    List<Backend> list = new ArrayList<Backend>(urls.size());
+    for (int i = 0; i < urls.size(); i++) {
+      int weight = weights != null && i < weights.length ? weights[i] : 1;
+      list.add(new Backend(urls.get(i), Math.max(weight, 0)));
+    }
+    this.backends = Collections.unmodifiableList(list);
+    this.policy = policy;
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * Returns the router shared by all clients with the same endpoints and
+   * routing settings.
+   * @param cfg client configuration
+   * @return shared router
+   */
+  public static Pazpar2Router forConfiguration(Pazpar2ClientConfiguration cfg) {
+    String key = cfg.PAZPAR2_URL + "|" + cfg.PAZPAR2_URLS + "|" + cfg.PAZPAR2_ROUTING
+      + "|" + cfg.PAZPAR2_WEIGHTS + "|" + cfg.PAZPAR2_BACKEND_RETRY;
+    Pazpar2Router router = routers.get(key);
+    if (router == null) {
+      synchronized (routers) {
+        router = routers.get(key);
+        if (router == null) {
+          router = new Pazpar2Router(parseList(cfg.PAZPAR2_URLS, cfg.PAZPAR2_URL),
+            parseWeights(cfg.PAZPAR2_WEIGHTS), createPolicy(cfg.PAZPAR2_ROUTING),
+            cfg.PAZPAR2_BACKEND_RETRY);
+          routers.put(key, router);
+        }
+      }
+    }
+    return router;
+  }
+
+  static List<String> parseList(String urls, String defaultUrl) {
+    List<String> list = new ArrayList<String>();
+    if (urls != null) {
+      for (String url : urls.trim().split("[\\s,]+")) {
+        if (!url.isEmpty()) {
+          list.add(url);
+        }
+      }
+    }
+    if (list.isEmpty()) {
+      list.add(defaultUrl);
+    }
+    return list;
+  }
+
+  static int[] parseWeights(String weights) {
+    if (weights == null || weights.trim().isEmpty()) {
+      return null;
+    }
+    String[] parts = weights.trim().split("[\\s,]+");
+    int[] result = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      try {
+        result[i] = Integer.parseInt(parts[i]);
+      } catch (NumberFormatException nfe) {
+        logger.error("Invalid pazpar2 endpoint weight '" + parts[i] + "', using 1");
+        result[i] = 1;
+      }
+    }
+    return result;
+  }
+
+  static Pazpar2RoutingPolicy createPolicy(String name) {
+    if (name == null || name.isEmpty() || "least-sessions".equals(name)) {
+      return new LeastSessionsPolicy();
+    } else if ("weighted".equals(name)) {
+      return new WeightedPolicy();
+    } else if ("realm-hash".equals(name)) {
+      return new RealmHashPolicy();
+    }
+    try {
+      return (Pazpar2RoutingPolicy) Class.forName(name).newInstance();
+    } catch (Exception e) {
+      logger.error("Cannot create pazpar2 routing policy '" + name
+        + "', using least-sessions", e);
+      return new LeastSessionsPolicy();
+    }
+  }
+
+  /**
+   * @return true if there is more than one endpoint to choose from
+   */
+  public boolean isMultiBackend() {
+    return backends.size() > 1;
+  }
+
+  public List<Backend> getBackends() {
+    return backends;
+  }
+
+  /**
+   * Chooses the endpoint for a new session. Failed endpoints are skipped
+   * unless all of them failed.
+   * @param realm realm the session is created for, may be null
+   * @return endpoint URL
+   */
+  public String place(String realm) {
+    if (backends.size() == 1) {
+      return backends.get(0).url;
+    }
+    List<Backend> candidates = new ArrayList<Backend>(backends.size());
+    for (Backend b : backends) {
+      if (!b.isDown() && b.weight > 0) {
+        candidates.add(b);
+      }
+    }
+    if (candidates.isEmpty()) {
+      logger.warn("All pazpar2 endpoints failed recently, trying all of them");
+      candidates.addAll(backends);
+    }
+    Backend chosen = policy.choose(candidates, realm);
+    return (chosen != null ? chosen : candidates.get(0)).url;
+  }
+
+  /**
+   * Records use of a session on an endpoint.
+   * @param url endpoint URL
+   * @param sessionId pazpar2 session id
+   */
+  public void touched(String url, String sessionId) {
+    Backend b = find(url);
+    if (b != null && sessionId != null) {
+      b.touched(sessionId, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Forgets a session, e.g after it was re-created elsewhere.
+   * @param url endpoint URL
+   * @param sessionId pazpar2 session id
+   */
+  public void released(String url, String sessionId) {
+    Backend b = find(url);
+    if (b != null && sessionId != null) {
+      b.sessions.remove(sessionId);
+    }
+  }
+
+  /**
+   * Takes the endpoint out of rotation for new sessions for the retry period.
+   * @param url endpoint URL
+   */
+  public void markDown(String url) {
+    Backend b = find(url);
+    if (b != null) {
+      logger.warn("Pazpar2 endpoint " + url + " failed, avoiding it for "
+        + retryAfter + " ms");
+      b.downUntil = System.currentTimeMillis() + retryAfter;
+      b.sessions.clear();
+    }
+  }
+
+  private Backend find(String url) {
+    for (Backend b : backends) {
+      if (b.url.equals(url)) {
+        return b;
+      }
+    }
+    return null;
+  }
+}
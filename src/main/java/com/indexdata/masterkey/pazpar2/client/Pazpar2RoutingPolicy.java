@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.util.List;
+
+/**
+ * Decides which pazpar2 endpoint a new session is created on. Once created,
+ * a session stays on its endpoint. Implementations are shared between threads
+ * and must have a public no-arg constructor to be configurable by class name
+ * in PAZPAR2_ROUTING.
+ *
+ * @author jakub
+ */
+public interface Pazpar2RoutingPolicy {
+
+  /**
+   * @param candidates endpoints currently considered healthy, never empty
+   * @param realm realm the session is created for, may be null
+   * @return one of the candidates
+   */
+  Pazpar2Router.Backend choose(List<Pazpar2Router.Backend> candidates, String realm);
+}
@@ -1,6 +1,9 @@
 package com.indexdata.masterkey.pazpar2.client;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
 import org.apache.log4j.Logger;
 
@@ -20,9 +23,11 @@ import org.apache.log4j.Logger;
  * 
  * @author jakub
  */
-public class Pazpar2Session implements Serializable {
+public class Pazpar2Session implements Externalizable {
   private static final long serialVersionUID = 6251032233249975769L;
   private String sessionId;
+  private String pazpar2Url;
+  private String progress;
   private ClientCommand latestSearchCommand = null;
   private ClientCommand previousSearchCommand = null;
   private static Logger logger = Logger.getLogger(Pazpar2Session.class);
@@ -51,6 +56,10 @@ public class Pazpar2Session implements Serializable {
     return latestSearchCommand;
   }
 
+  public ClientCommand getPreviousSearchCommand() {
+    return previousSearchCommand;
+  }
+
   public String getSearchQueryString() {
     return (latestSearchCommand == null) ? "" : latestSearchCommand.
       getQueryString();
@@ -147,6 +156,29 @@ public class Pazpar2Session implements Serializable {
     this.sessionId = sessionId;
   }
 
+  /**
+   * @return pazpar2 endpoint that owns the session, null if not known
+   */
+  public String getPazpar2Url() {
+    return pazpar2Url;
+  }
+
+  public void setPazpar2Url(String pazpar2Url) {
+    this.pazpar2Url = pazpar2Url;
+  }
+
+  /**
+   * @return search progress last delivered to a long-poll request, null if
+   * none was delivered since the last search
+   */
+  public String getProgress() {
+    return progress;
+  }
+
+  public void setProgress(String progress) {
+    this.progress = progress;
+  }
+
   /**
    * Compares the torus query on the current search with the 
    * previous search
@@ -173,4 +205,25 @@ public class Pazpar2Session implements Serializable {
     return changed;
 
   }
+
+  /**
+   * Writes the session id, its endpoint and the search commands, the long-poll
+   * progress is only meaningful on the node that delivered it.
+   */
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeObject(sessionId);
+    out.writeObject(pazpar2Url);
+    out.writeObject(latestSearchCommand);
+    out.writeObject(previousSearchCommand);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException,
+    ClassNotFoundException {
+    sessionId = (String) in.readObject();
+    pazpar2Url = (String) in.readObject();
+    latestSearchCommand = (ClientCommand) in.readObject();
+    previousSearchCommand = (ClientCommand) in.readObject();
+  }
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of pazpar2 sessions that were initialized and set up with target
+ * settings ahead of time, so that a new user can search right away.
+ * <p/>
+ * Sessions are pooled per key (realm, torus parameters and service
+ * definition). A background refiller keeps as many idle sessions per key as
+ * were requested during the last refill period, decaying towards zero when
+ * the demand stops, and drops sessions before pazpar2 would time them out.
+ *
+ * @author jakub
+ */
+public class Pazpar2SessionPool {
+  private static Logger logger = Logger.getLogger(Pazpar2SessionPool.class);
+  private static final Map<String, Pazpar2SessionPool> pools =
+    new ConcurrentHashMap<String, Pazpar2SessionPool>();
+  //distinct keys pooled at most, e.g torus parameters are open ended
+  static final int MAX_KEYS = 100;
+  private final int maxSize;
+  private final long maxAge;
+  private final Map<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+  private final ScheduledExecutorService refiller;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong created = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+
+  /**
+   * Creates a pre-initialized session for a key.
+   */
+  public interface Factory {
+    PooledSession create() throws Exception;
+  }
+
+  /**
+   * An initialized pazpar2 session and the target settings it was set up
+   * with.
+   */
+  public static class PooledSession {
+    private final String pazpar2Url;
+    private final String sessionId;
+    private final Pazpar2Settings settings;
+    private final long createdAt = System.currentTimeMillis();
+
+    public PooledSession(String pazpar2Url, String sessionId,
+      Pazpar2Settings settings) {
+      this.pazpar2Url = pazpar2Url;
+      this.sessionId = sessionId;
+      this.settings = settings;
+    }
+
+    public String getPazpar2Url() {
+      return pazpar2Url;
+    }
+
+    public String getSessionId() {
+      return sessionId;
+    }
+
+    public Pazpar2Settings getSettings() {
+      return settings;
+    }
+
+    public long getCreatedAt() {
+      return createdAt;
+    }
+  }
+
+  private static class Slot {
+    private final Factory factory;
+    private final Deque<PooledSession> idle = new ArrayDeque<PooledSession>();
+    private int requests = 0;
+    private int target = 0;
+
+    Slot(Factory factory) {
+      this.factory = factory;
+    }
+  }
+
+  /**
+   * @param maxSize most idle sessions kept per key
+   * @param maxAge time in milliseconds after which an idle session is
+   * dropped, must be shorter than pazpar2's session timeout
+   * @param refillInterval time in milliseconds between refills, 0 to refill
+   * only on explicit calls to {@link #refill()}
+   */
+  public Pazpar2SessionPool(int maxSize, long maxAge, long refillInterval) {
+    this.maxSize = maxSize;
+    this.maxAge = maxAge;
+    refiller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "pazpar2-session-pool");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    if (refillInterval > 0) {
+      refiller.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            refill();
+          } catch (RuntimeException re) {
+            logger.error("Refilling the pazpar2 session pool failed", re);
+          }
+        }
+      }, refillInterval, refillInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Returns the pool shared by all clients with the same pool settings, null
+   * if pooling is disabled.
+   * @param cfg client configuration
+   * @return shared pool or null
+   */
+  public static Pazpar2SessionPool forConfiguration(Pazpar2ClientConfiguration cfg) {
+    if (cfg.PAZPAR2_SESSION_POOL <= 0) {
+      return null;
+    }
+    String key = cfg.PAZPAR2_SESSION_POOL + ":" + cfg.PAZPAR2_SESSION_POOL_MAX_AGE
+      + ":" + cfg.PAZPAR2_SESSION_POOL_REFILL;
+    Pazpar2SessionPool pool = pools.get(key);
+    if (pool == null) {
+      synchronized (pools) {
+        pool = pools.get(key);
+        if (pool == null) {
+          pool = new Pazpar2SessionPool(cfg.PAZPAR2_SESSION_POOL,
+            cfg.PAZPAR2_SESSION_POOL_MAX_AGE, cfg.PAZPAR2_SESSION_POOL_REFILL);
+          pools.put(key, pool);
+        }
+      }
+    }
+    return pool;
+  }
+
+  /**
+   * Takes an idle session for the key. A miss registers the demand, the
+   * refiller will have sessions ready for later requests.
+   * @param key pool key
+   * @param factory creates sessions for the key
+   * @return pre-initialized session or null if none is idle
+   */
+  public PooledSession take(String key, Factory factory) {
+    Slot slot = slots.get(key);
+    if (slot == null) {
+      if (slots.size() >= MAX_KEYS) {
+        misses.incrementAndGet();
+        return null;
+      }
+      slots.putIfAbsent(key, new Slot(factory));
+      slot = slots.get(key);
+    }
+    synchronized (slot) {
+      slot.requests++;
+      PooledSession session;
+      while ((session = slot.idle.pollFirst()) != null) {
+        if (!isExpired(session)) {
+          hits.incrementAndGet();
+          return session;
+        }
+        expired.incrementAndGet();
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Drops expired sessions, sizes each key by its recent demand and creates
+   * the missing sessions.
+   */
+  void refill() {
+    for (Map.Entry<String, Slot> entry : slots.entrySet()) {
+      Slot slot = entry.getValue();
+      int missing;
+      synchronized (slot) {
+        Iterator<PooledSession> it = slot.idle.iterator();
+        while (it.hasNext()) {
+          if (isExpired(it.next())) {
+            it.remove();
+            expired.incrementAndGet();
+          }
+        }
+        slot.target = Math.min(maxSize, Math.max(slot.requests, slot.target / 2));
+        slot.requests = 0;
+        if (slot.target == 0 && slot.idle.isEmpty()) {
+          slots.remove(entry.getKey(), slot);
+          continue;
+        }
+        missing = slot.target - slot.idle.size();
+      }
+      for (int i = 0; i < missing; i++) {
+        try {
+          PooledSession session = slot.factory.create();
+          created.incrementAndGet();
+          synchronized (slot) {
+            slot.idle.addLast(session);
+          }
+        } catch (Exception e) {
+          logger.warn("Cannot pre-initialize pazpar2 session for [" + entry.getKey()
+            + "]: " + e.getMessage());
+          break;
+        }
+      }
+    }
+  }
+
+  private boolean isExpired(PooledSession session) {
+    return System.currentTimeMillis() - session.createdAt > maxAge;
+  }
+
+  /**
+   * @return number of idle sessions for the key
+   */
+  public int getIdle(String key) {
+    Slot slot = slots.get(key);
+    if (slot == null) {
+      return 0;
+    }
+    synchronized (slot) {
+      return slot.idle.size();
+    }
+  }
+
+  /**
+   * @return number of requests served with a pooled session
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of requests that found no idle session
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return number of sessions created by the refiller
+   */
+  public long getCreated() {
+    return created.get();
+  }
+
+  /**
+   * @return number of idle sessions dropped because of their age
+   */
+  public long getExpired() {
+    return expired.get();
+  }
+}
@@ -6,14 +6,18 @@
 package com.indexdata.masterkey.pazpar2.client;
 
 import java.io.StringReader;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
@@ -596,5 +600,100 @@ public class Pazpar2Settings {
         setts.put("pz:recordfilter", new Setting(rF));
     }
   }
+
+  /**
+   * @return record filter of each target that has one
+   */
+  public Map<String, String> getRecordFilters() {
+    Map<String, String> filters = new HashMap<String, String>();
+    for (Entry<String, Map<String, Setting>> target : settings.entrySet()) {
+      Setting s = target.getValue().get("pz:recordfilter");
+      if (s != null && s.string != null)
+        filters.put(target.getKey(), s.string);
+    }
+    return filters;
+  }
+
+  /**
+   * Encodes the record filters that differ from the ones already applied on a
+   * session. Filters removed since then are encoded as empty values, which
+   * clears them in pazpar2.
+   *
+   * @param applied record filters as returned by {@link #getRecordFilters()}
+   * when the settings were last sent
+   * @return XML Document with the changed settings, null if nothing changed
+   */
+  public Document recordFilterDelta(Map<String, String> applied) {
+    Document doc = XmlUtils.newDoc("settings");
+    Element root = doc.getDocumentElement();
+    Map<String, String> current = getRecordFilters();
+    for (Entry<String, String> filter : current.entrySet()) {
+      if (!filter.getValue().equals(applied.get(filter.getKey())))
+        appendSet(root, filter.getKey(), "pz:recordfilter", filter.getValue());
+    }
+    for (String targetId : applied.keySet()) {
+      if (!current.containsKey(targetId))
+        appendSet(root, targetId, "pz:recordfilter", "");
+    }
+    return root.hasChildNodes() ? doc : null;
+  }
+
+  /**
+   * SHA-256 digest of all settings except the record filters, which are
+   * tracked separately, to tell whether reloaded settings match the ones a
+   * session was set up with.
+   *
+   * @return settings fingerprint
+   */
+  public byte[] fingerprint() {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new Error(nsae);
+    }
+    for (String targetId : new TreeSet<String>(settings.keySet())) {
+      Map<String, Setting> setts = settings.get(targetId);
+      for (String name : new TreeSet<String>(setts.keySet())) {
+        if ("pz:recordfilter".equals(name))
+          continue;
+        Setting setting = setts.get(name);
+        String value = setting.string;
+        if (setting.xml != null) {
+          StringWriter sw = new StringWriter();
+          try {
+            XmlUtils.serialize(setting.xml, sw);
+            value = sw.toString();
+          } catch (Exception e) {
+            logger.warn("Cannot serialize XML setting " + name + " for fingerprint");
+          }
+        }
+        update(digest, targetId);
+        update(digest, name);
+        update(digest, value);
+      }
+    }
+    return digest.digest();
+  }
+
+  private static void update(MessageDigest digest, String value) {
+    if (value != null) {
+      try {
+        digest.update(value.getBytes("UTF-8"));
+      } catch (UnsupportedEncodingException uee) {
+        throw new Error(uee);
+      }
+    }
+    digest.update((byte) 0);
+  }
+
+  private static void appendSet(Element root, String targetId, String name,
+    String value) {
+    Element setElm = root.getOwnerDocument().createElement("set");
+    setElm.setAttribute("target", targetId);
+    setElm.setAttribute("name", name);
+    setElm.setAttribute("value", value);
+    root.appendChild(setElm);
+  }
   
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Carries pazpar2 protocol requests over the wire. A transport is shared by
+ * many client instances (and threads) so implementations must be thread-safe.
+ * <p/>
+ * The body of each {@link Response} must be either read to the end, closed
+ * or explicitly released, otherwise the underlying connection is not returned
+ * for reuse.
+ *
+ * @author jakub
+ */
+public interface Pazpar2Transport {
+
+  interface Response {
+    int getStatusCode();
+
+    /**
+     * @param name header name
+     * @return value of the response header or null if not present
+     */
+    String getHeader(String name);
+
+    InputStream getBody() throws IOException;
+
+    /**
+     * Gives up the response, discarding any unread part of the body, and
+     * returns the connection to the transport.
+     */
+    void release();
+  }
+
+  /**
+   * Sends a GET request.
+   * @param url full request URL, including the encoded query string
+   * @return response, never null
+   * @throws IOException on connection errors
+   */
+  Response get(String url) throws IOException;
+
+  /**
+   * Sends a GET request with a read timeout overriding the transport default.
+   * @param url full request URL, including the encoded query string
+   * @param readTimeout socket read timeout in milliseconds, 0 for the default
+   * @return response, never null
+   * @throws IOException on connection errors and timeouts
+   */
+  Response get(String url, int readTimeout) throws IOException;
+
+  /**
+   * Sends a POST request.
+   * @param url full request URL
+   * @param entity request body
+   * @param contentType media type of the request body
+   * @return response, never null
+   * @throws IOException on connection errors
+   */
+  Response post(String url, String entity, String contentType)
+    throws IOException;
+
+  /**
+   * Sends a POST request with a read timeout overriding the transport default.
+   * @param url full request URL
+   * @param entity request body
+   * @param contentType media type of the request body
+   * @param readTimeout socket read timeout in milliseconds, 0 for the default
+   * @return response, never null
+   * @throws IOException on connection errors and timeouts
+   */
+  Response post(String url, String entity, String contentType, int readTimeout)
+    throws IOException;
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Process-wide cache of pazpar2 'record' responses, bounded by the total
+ * bytes of the cached records. A record is cached under its pazpar2 session,
+ * the search that produced it (search number and query) and the query string
+ * of the record request, which carries the record id, offset and syntax.
+ * Records of a session are dropped as soon as it runs a new search, and the
+ * least recently used records of all sessions are dropped to stay within
+ * the budget.
+ *
+ * @author jakub
+ */
+public class RecordCache {
+  private static Logger logger = Logger.getLogger(RecordCache.class);
+  private static final Map<Long, RecordCache> caches =
+    new ConcurrentHashMap<Long, RecordCache>();
+  //bookkeeping cost of an entry on top of its bytes
+  static final int ENTRY_OVERHEAD = 256;
+  private final long budget;
+  //least recently used first, guarded by this
+  private final LinkedHashMap<String, Entry> entries =
+    new LinkedHashMap<String, Entry>(256, 0.75f, true);
+  //keys of the cached records by session, guarded by this
+  private final Map<String, Set<String>> sessions = new HashMap<String, Set<String>>();
+  private long used = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   * A cached record response.
+   */
+  static class Entry {
+    private final String session;
+    private final CachedResult record;
+    private final String contentType;
+    private final long size;
+
+    Entry(String session, CachedResult record, String contentType) {
+      this.session = session;
+      this.record = record;
+      this.contentType = contentType;
+      this.size = record.getBytes().length + ENTRY_OVERHEAD;
+    }
+
+    CachedResult getRecord() {
+      return record;
+    }
+
+    String getContentType() {
+      return contentType;
+    }
+  }
+
+  /**
+   * @param budget bytes of cached records kept across all sessions
+   */
+  public RecordCache(long budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * Returns the cache shared by all clients with the same budget, null if
+   * record caching is disabled.
+   * @param cfg client configuration
+   * @return shared cache or null
+   */
+  public static RecordCache forConfiguration(Pazpar2ClientConfiguration cfg) {
+    if (cfg.PAZPAR2_RECORD_CACHE <= 0) {
+      return null;
+    }
+    Long key = Long.valueOf(cfg.PAZPAR2_RECORD_CACHE);
+    RecordCache cache = caches.get(key);
+    if (cache == null) {
+      synchronized (caches) {
+        cache = caches.get(key);
+        if (cache == null) {
+          cache = new RecordCache(cfg.PAZPAR2_RECORD_CACHE);
+          caches.put(key, cache);
+        }
+      }
+    }
+    return cache;
+  }
+
+  private static String key(String session, String search, String queryString) {
+    return session + "|" + search + "|" + queryString;
+  }
+
+  /**
+   * @param session pazpar2 endpoint and session id
+   * @param search identifies the current search of the session
+   * @param queryString record request
+   * @return cached record or null
+   */
+  synchronized Entry get(String session, String search, String queryString) {
+    Entry entry = entries.get(key(session, search, queryString));
+    if (entry != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return entry;
+  }
+
+  /**
+   * Caches a record, evicting the least recently used records if the budget
+   * is exceeded. Records larger than the budget are not cached.
+   * @param session pazpar2 endpoint and session id
+   * @param search identifies the current search of the session
+   * @param queryString record request
+   * @param record record response
+   * @param contentType media type of the response
+   */
+  synchronized void put(String session, String search, String queryString,
+    CachedResult record, String contentType) {
+    Entry entry = new Entry(session, record, contentType);
+    if (entry.size > budget) {
+      return;
+    }
+    String key = key(session, search, queryString);
+    Entry replaced = entries.put(key, entry);
+    if (replaced != null) {
+      used -= replaced.size;
+    }
+    used += entry.size;
+    Set<String> keys = sessions.get(session);
+    if (keys == null) {
+      keys = new HashSet<String>();
+      sessions.put(session, keys);
+    }
+    keys.add(key);
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (used > budget && it.hasNext()) {
+      Map.Entry<String, Entry> eldest = it.next();
+      it.remove();
+      used -= eldest.getValue().size;
+      evictions++;
+      Set<String> sessionKeys = sessions.get(eldest.getValue().session);
+      if (sessionKeys != null) {
+        sessionKeys.remove(eldest.getKey());
+        if (sessionKeys.isEmpty()) {
+          sessions.remove(eldest.getValue().session);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops all cached records of the session, e.g because its search changed.
+   * @param session pazpar2 endpoint and session id
+   */
+  synchronized void invalidate(String session) {
+    Set<String> keys = sessions.remove(session);
+    if (keys == null) {
+      return;
+    }
+    for (String key : keys) {
+      Entry entry = entries.remove(key);
+      if (entry != null) {
+        used -= entry.size;
+      }
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("Dropped " + keys.size() + " cached records of " + session);
+    }
+  }
+
+  public long getBudget() {
+    return budget;
+  }
+
+  /**
+   * @return bytes of cached records
+   */
+  public synchronized long getUsed() {
+    return used;
+  }
+
+  /**
+   * @return number of cached records
+   */
+  public synchronized int getEntries() {
+    return entries.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return number of records evicted to stay within the budget
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+}
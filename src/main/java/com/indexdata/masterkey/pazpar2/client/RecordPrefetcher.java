@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Fetches the records of the hits on a client's current show page ahead of
+ * the 'record' commands that usually follow, and keeps them for the session
+ * until the search changes. Fetches of all clients run on a shared pool, so
+ * the number of threads bounds the parallel record requests sent to pazpar2.
+ * <p/>
+ * Only plain records (no offset, syntax or other parameters) are prefetched.
+ *
+ * @author jakub
+ */
+class RecordPrefetcher {
+  private static Logger logger = Logger.getLogger(RecordPrefetcher.class);
+  private static final Map<Integer, ThreadPoolExecutor> executors =
+    new ConcurrentHashMap<Integer, ThreadPoolExecutor>();
+  private final Executor executor;
+  private final int limit;
+  //prefetched records by recid
+  private final Map<String, CachedResult> records =
+    new ConcurrentHashMap<String, CachedResult>();
+  private final Map<String, Prefetch> pending = new ConcurrentHashMap<String, Prefetch>();
+  //bumped when the search changes, fetches of older generations are dropped
+  private long generation = 0;
+  private final AtomicLong fetched = new AtomicLong();
+  private final AtomicLong served = new AtomicLong();
+
+  /**
+   * Requests a single record from pazpar2.
+   */
+  interface Fetcher {
+    /**
+     * @param recid record id
+     * @return the record or null if pazpar2 has none
+     */
+    CachedResult fetch(String recid) throws Exception;
+  }
+
+  private class Prefetch extends FutureTask<CachedResult> {
+    private final String recid;
+    private final long gen;
+
+    Prefetch(final String recid, final Fetcher fetcher, final long gen) {
+      super(new Callable<CachedResult>() {
+        @Override
+        public CachedResult call() throws Exception {
+          return isCurrent(gen) ? fetcher.fetch(recid) : null;
+        }
+      });
+      this.recid = recid;
+      this.gen = gen;
+    }
+
+    @Override
+    protected void done() {
+      pending.remove(recid, this);
+      if (isCancelled()) {
+        return;
+      }
+      try {
+        CachedResult record = get();
+        if (record != null) {
+          stored(gen, recid, record);
+        }
+      } catch (ExecutionException ee) {
+        logger.debug("Prefetch of record " + recid + " failed: " + ee.getCause());
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * @param executor runs the fetches
+   * @param limit most records prefetched from one show page
+   */
+  RecordPrefetcher(Executor executor, int limit) {
+    this.executor = executor;
+    this.limit = limit;
+  }
+
+  /**
+   * Returns a prefetcher over the pool shared by all clients with the same
+   * number of prefetch threads, null if prefetching is disabled.
+   * @param cfg client configuration
+   * @return new prefetcher for one client, or null
+   */
+  static RecordPrefetcher forConfiguration(Pazpar2ClientConfiguration cfg) {
+    if (cfg.PAZPAR2_PREFETCH <= 0 || cfg.PAZPAR2_PREFETCH_THREADS <= 0) {
+      return null;
+    }
+    final Integer threads = cfg.PAZPAR2_PREFETCH_THREADS;
+    ThreadPoolExecutor executor = executors.get(threads);
+    if (executor == null) {
+      synchronized (executors) {
+        executor = executors.get(threads);
+        if (executor == null) {
+          final AtomicInteger threadCount = new AtomicInteger();
+          executor = new ThreadPoolExecutor(threads, threads, 60L,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "pazpar2-prefetch-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+              }
+            });
+          executor.allowCoreThreadTimeOut(true);
+          executors.put(threads, executor);
+        }
+      }
+    }
+    return new RecordPrefetcher(executor, cfg.PAZPAR2_PREFETCH);
+  }
+
+  /**
+   * Starts fetching the records of a new show page. Records of the previous
+   * page that are not on this one are dropped, and so are their pending
+   * fetches.
+   * @param recids record ids of the hits, in page order
+   * @param fetcher requests a record from pazpar2
+   */
+  synchronized void prefetch(Collection<String> recids, Fetcher fetcher) {
+    Set<String> wanted = new LinkedHashSet<String>();
+    for (String recid : recids) {
+      if (wanted.size() >= limit) {
+        break;
+      }
+      wanted.add(recid);
+    }
+    records.keySet().retainAll(wanted);
+    Iterator<Map.Entry<String, Prefetch>> it = pending.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Prefetch> e = it.next();
+      if (!wanted.contains(e.getKey())) {
+        it.remove();
+        e.getValue().cancel(false);
+      }
+    }
+    for (String recid : wanted) {
+      if (!records.containsKey(recid) && !pending.containsKey(recid)) {
+        Prefetch prefetch = new Prefetch(recid, fetcher, generation);
+        pending.put(recid, prefetch);
+        executor.execute(prefetch);
+      }
+    }
+  }
+
+  /**
+   * Drops all prefetched records and cancels the pending fetches, as the
+   * search has changed.
+   */
+  synchronized void cancel() {
+    generation++;
+    for (Prefetch prefetch : pending.values()) {
+      prefetch.cancel(false);
+    }
+    pending.clear();
+    records.clear();
+  }
+
+  /**
+   * @param recid record id
+   * @return prefetched record or null
+   */
+  CachedResult get(String recid) {
+    CachedResult record = records.get(recid);
+    if (record != null) {
+      served.incrementAndGet();
+    }
+    return record;
+  }
+
+  private synchronized boolean isCurrent(long gen) {
+    return gen == generation;
+  }
+
+  private synchronized void stored(long gen, String recid, CachedResult record) {
+    if (gen == generation) {
+      records.put(recid, record);
+      fetched.incrementAndGet();
+    }
+  }
+
+  int getPending() {
+    return pending.size();
+  }
+
+  /**
+   * @return number of records prefetched
+   */
+  long getFetched() {
+    return fetched.get();
+  }
+
+  /**
+   * @return number of record requests answered from prefetched records
+   */
+  long getServed() {
+    return served.get();
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Process-wide memory budget for the results cached by pazpar2 clients.
+ * Clients register every cached result with its size, and once the total
+ * exceeds the budget the least recently used results of any client are
+ * dropped from their owners' caches. A client that finds its results evicted
+ * requests them from pazpar2 again.
+ * <p/>
+ * Only the raw bytes of a result are accounted, parsed documents are held
+ * softly and reclaimed by the collector on their own.
+ *
+ * @author jakub
+ */
+public class ResultMemoryGovernor {
+  private static Logger logger = Logger.getLogger(ResultMemoryGovernor.class);
+  private static final Map<Long, ResultMemoryGovernor> governors =
+    new ConcurrentHashMap<Long, ResultMemoryGovernor>();
+  //bookkeeping cost of an entry on top of its bytes
+  static final int ENTRY_OVERHEAD = 128;
+  private final long budget;
+  //least recently used first, guarded by this
+  private final LinkedHashMap<CachedResult, Entry> entries =
+    new LinkedHashMap<CachedResult, Entry>(256, 0.75f, true);
+  private long used = 0;
+  private long evictions = 0;
+  private long evictedBytes = 0;
+
+  private static class Entry {
+    private final Map<String, CachedResult> owner;
+    private final String command;
+    private final CachedResult result;
+    private final long size;
+
+    Entry(Map<String, CachedResult> owner, String command, CachedResult result) {
+      this.owner = owner;
+      this.command = command;
+      this.result = result;
+      this.size = result.getBytes().length + ENTRY_OVERHEAD;
+    }
+  }
+
+  /**
+   * @param budget bytes of cached results kept across all clients
+   */
+  public ResultMemoryGovernor(long budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * Returns the governor shared by all clients with the same budget, null if
+   * no budget is configured.
+   * @param cfg client configuration
+   * @return shared governor or null
+   */
+  public static ResultMemoryGovernor forConfiguration(Pazpar2ClientConfiguration cfg) {
+    if (cfg.PAZPAR2_RESULTS_BUDGET <= 0) {
+      return null;
+    }
+    Long key = Long.valueOf(cfg.PAZPAR2_RESULTS_BUDGET);
+    ResultMemoryGovernor governor = governors.get(key);
+    if (governor == null) {
+      synchronized (governors) {
+        governor = governors.get(key);
+        if (governor == null) {
+          governor = new ResultMemoryGovernor(cfg.PAZPAR2_RESULTS_BUDGET);
+          governors.put(key, governor);
+        }
+      }
+    }
+    return governor;
+  }
+
+  /**
+   * Accounts a result just stored in a client's cache and evicts the least
+   * recently used results if the budget is exceeded.
+   * @param owner cache the result was stored in
+   * @param command key of the result in the cache
+   * @param result the stored result
+   * @param replaced result previously stored under the key, may be null
+   */
+  synchronized void admitted(Map<String, CachedResult> owner, String command,
+    CachedResult result, CachedResult replaced) {
+    if (replaced != null) {
+      forget(replaced);
+    }
+    Entry entry = new Entry(owner, command, result);
+    entries.put(result, entry);
+    used += entry.size;
+    Iterator<Entry> it = entries.values().iterator();
+    while (used > budget && it.hasNext()) {
+      Entry eldest = it.next();
+      if (eldest.result == result) {
+        //a single result larger than the budget is still served once
+        continue;
+      }
+      it.remove();
+      used -= eldest.size;
+      evictions++;
+      evictedBytes += eldest.size;
+      eldest.owner.remove(eldest.command, eldest.result);
+      if (logger.isDebugEnabled()) {
+        logger.debug("Evicted cached " + eldest.command + " results of "
+          + eldest.size + " bytes, " + used + " of " + budget + " bytes used");
+      }
+    }
+  }
+
+  /**
+   * Marks a result as recently used.
+   */
+  synchronized void touched(CachedResult result) {
+    entries.get(result);
+  }
+
+  /**
+   * Stops accounting a result that left its owner's cache.
+   */
+  synchronized void forget(CachedResult result) {
+    Entry entry = entries.remove(result);
+    if (entry != null) {
+      used -= entry.size;
+    }
+  }
+
+  public long getBudget() {
+    return budget;
+  }
+
+  /**
+   * @return bytes of cached results currently accounted
+   */
+  public synchronized long getUsed() {
+    return used;
+  }
+
+  /**
+   * @return number of cached results currently accounted
+   */
+  public synchronized int getEntries() {
+    return entries.size();
+  }
+
+  /**
+   * @return number of results evicted to stay within the budget
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * @return bytes of results evicted to stay within the budget
+   */
+  public synchronized long getEvictedBytes() {
+    return evictedBytes;
+  }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Remembers when each pazpar2 session last answered successfully, so that a
+ * session that responded within the configured TTL is considered alive without
+ * sending an extra 'ping'.
+ * <p/>
+ * Optionally runs a background keepalive that pings sessions which have been
+ * used recently but have been idle for longer than the keepalive interval,
+ * preventing pazpar2 from expiring them between user requests.
+ * <p/>
+ * Session ids are only unique within a pazpar2 instance, so sessions are
+ * tracked by the endpoint together with the id. Sessions that are no longer
+ * used are dropped by a periodic sweep once they are past the TTL, or past
+ * the keepalive max idle time if the keepalive is on.
+ *
+ * @author jakub
+ */
+public class SessionLivenessTracker {
+  private static Logger logger = Logger.getLogger(SessionLivenessTracker.class);
+  private static final Map<String, SessionLivenessTracker> trackers =
+    new ConcurrentHashMap<String, SessionLivenessTracker>();
+  private final long ttl;
+  private final long keepaliveInterval;
+  private final long keepaliveMaxIdle;
+  //keyed by endpoint and session id
+  private final Map<String, Entry> sessions = new ConcurrentHashMap<String, Entry>();
+  private final AtomicLong pingsAvoided = new AtomicLong();
+  private final AtomicLong pingsSent = new AtomicLong();
+  private final AtomicLong keepalivePings = new AtomicLong();
+  private ScheduledExecutorService scheduler;
+
+  private static class Entry {
+    final String sessionId;
+    final String pazpar2Url;
+    final Pazpar2Transport transport;
+    volatile long lastConfirmed;
+    volatile long lastUsed;
+
+    Entry(String sessionId, String pazpar2Url, Pazpar2Transport transport,
+      long now) {
+      this.sessionId = sessionId;
+      this.pazpar2Url = pazpar2Url;
+      this.transport = transport;
+      this.lastConfirmed = now;
+      this.lastUsed = now;
+    }
+  }
+
+  /**
+   * @param ttl time in milliseconds a successful response vouches for the
+   * session, 0 disables the tracking
+   * @param keepaliveInterval idle time in milliseconds after which the
+   * background keepalive pings a session, 0 disables the keepalive
+   * @param keepaliveMaxIdle time in milliseconds after the last use at which
+   * the keepalive gives up on a session
+   */
+  public SessionLivenessTracker(long ttl, long keepaliveInterval,
+    long keepaliveMaxIdle) {
+    this.ttl = ttl;
+    this.keepaliveInterval = keepaliveInterval;
+    this.keepaliveMaxIdle = keepaliveMaxIdle;
+    if (ttl > 0) {
+      startScheduler();
+    }
+  }
+
+  /**
+   * Returns the tracker shared by all clients with the same liveness settings.
+   * @param cfg client configuration
+   * @return shared tracker
+   */
+  public static SessionLivenessTracker forConfiguration(Pazpar2ClientConfiguration cfg) {
+    String key = cfg.PAZPAR2_SESSION_ALIVE_TTL + ":" + cfg.PAZPAR2_SESSION_KEEPALIVE
+      + ":" + cfg.PAZPAR2_SESSION_KEEPALIVE_MAX_IDLE;
+    SessionLivenessTracker tracker = trackers.get(key);
+    if (tracker == null) {
+      synchronized (trackers) {
+        tracker = trackers.get(key);
+        if (tracker == null) {
+          tracker = new SessionLivenessTracker(cfg.PAZPAR2_SESSION_ALIVE_TTL,
+            cfg.PAZPAR2_SESSION_KEEPALIVE, cfg.PAZPAR2_SESSION_KEEPALIVE_MAX_IDLE);
+          trackers.put(key, tracker);
+        }
+      }
+    }
+    return tracker;
+  }
+
+  private static String key(String sessionId, String pazpar2Url) {
+    return pazpar2Url + "|" + sessionId;
+  }
+
+  /**
+   * Records a successful pazpar2 response on behalf of the session.
+   * @param sessionId pazpar2 session id
+   * @param pazpar2Url pazpar2 endpoint the session lives on
+   * @param transport transport used for the keepalive pings
+   */
+  public void confirmed(String sessionId, String pazpar2Url,
+    Pazpar2Transport transport) {
+    if (sessionId == null || ttl <= 0) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    String key = key(sessionId, pazpar2Url);
+    Entry e = sessions.get(key);
+    if (e == null) {
+      sessions.put(key, new Entry(sessionId, pazpar2Url, transport, now));
+    } else {
+      e.lastConfirmed = now;
+      e.lastUsed = now;
+    }
+  }
+
+  /**
+   * Checks if the session answered within the TTL. A positive answer means
+   * the caller can skip the 'ping'.
+   * @param sessionId pazpar2 session id
+   * @param pazpar2Url pazpar2 endpoint the session lives on
+   * @return true if the session is known to be alive
+   */
+  public boolean isAlive(String sessionId, String pazpar2Url) {
+    if (sessionId == null || ttl <= 0) {
+      return false;
+    }
+    String key = key(sessionId, pazpar2Url);
+    Entry e = sessions.get(key);
+    if (e == null) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    if (now - e.lastConfirmed < ttl) {
+      pingsAvoided.incrementAndGet();
+      return true;
+    }
+    if (isExpired(e, now)) {
+      sessions.remove(key, e);
+    }
+    return false;
+  }
+
+  /**
+   * Counts a 'ping' that had to be sent because the session was not known to
+   * be alive.
+   */
+  public void pinged() {
+    pingsSent.incrementAndGet();
+  }
+
+  /**
+   * Drops the session, e.g when pazpar2 reports it as non-existent.
+   * @param sessionId pazpar2 session id
+   * @param pazpar2Url pazpar2 endpoint the session lives on
+   */
+  public void forget(String sessionId, String pazpar2Url) {
+    if (sessionId != null) {
+      sessions.remove(key(sessionId, pazpar2Url));
+    }
+  }
+
+  /**
+   * @return number of 'ping' requests avoided thanks to a recent response
+   */
+  public long getPingsAvoided() {
+    return pingsAvoided.get();
+  }
+
+  /**
+   * @return number of 'ping' requests sent on the request path
+   */
+  public long getPingsSent() {
+    return pingsSent.get();
+  }
+
+  /**
+   * @return number of 'ping' requests sent by the background keepalive
+   */
+  public long getKeepalivePings() {
+    return keepalivePings.get();
+  }
+
+  /**
+   * @return number of sessions currently tracked
+   */
+  public int getTrackedSessions() {
+    return sessions.size();
+  }
+
+  /**
+   * @return true if the session was not used for longer than it is kept
+   */
+  private boolean isExpired(Entry e, long now) {
+    long retention = keepaliveInterval > 0 ? Math.max(ttl, keepaliveMaxIdle) : ttl;
+    return now - e.lastUsed > retention;
+  }
+
+  private void startScheduler() {
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "pazpar2-keepalive");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    //the keepalive drops idle sessions itself
+    final boolean keepalive = keepaliveInterval > 0;
+    long period = keepalive ? keepaliveInterval : ttl;
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (keepalive) {
+            keepalive();
+          } else {
+            sweep();
+          }
+        } catch (RuntimeException re) {
+          logger.error("Pazpar2 session keepalive failed", re);
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Drops sessions that were not used for longer than they are kept.
+   */
+  void sweep() {
+    long now = System.currentTimeMillis();
+    Iterator<Entry> it = sessions.values().iterator();
+    while (it.hasNext()) {
+      if (isExpired(it.next(), now)) {
+        it.remove();
+      }
+    }
+  }
+
+  void keepalive() {
+    long now = System.currentTimeMillis();
+    Iterator<Entry> it = sessions.values().iterator();
+    while (it.hasNext()) {
+      Entry e = it.next();
+      if (now - e.lastUsed > keepaliveMaxIdle) {
+        logger.debug("Session [" + e.sessionId + "] idle for too long, no more keepalive");
+        it.remove();
+        continue;
+      }
+      if (now - e.lastConfirmed < keepaliveInterval) {
+        continue;
+      }
+      Pazpar2Transport.Response response = null;
+      try {
+        keepalivePings.incrementAndGet();
+        response = e.transport.get(e.pazpar2Url + "?command=ping&session=" + e.sessionId);
+        if (response.getStatusCode() == 200) {
+          e.lastConfirmed = System.currentTimeMillis();
+        } else {
+          logger.debug("Keepalive ping for session [" + e.sessionId
+            + "] returned " + response.getStatusCode() + ", session dropped");
+          it.remove();
+        }
+      } catch (Exception ex) {
+        logger.warn("Keepalive ping for session [" + e.sessionId + "] failed: "
+          + ex.getMessage());
+        it.remove();
+      } finally {
+        if (response != null) {
+          response.release();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.indexdata.masterkey.pazpar2.client.exceptions.ProxyErrorException;
+import com.indexdata.utils.CacheEntry;
+import com.indexdata.utils.LRUCache;
+
+/**
+ * Serves torus target settings from the target cache right away and keeps
+ * them fresh in the background (stale-while-revalidate). Every torus URI
+ * served is revalidated with a conditional GET at a fixed interval on a
+ * shared scheduler, for as long as it stays in the cache and is being used.
+ * <p/>
+ * When settings are not cached, concurrent requests for the same URI share
+ * a single load (single-flight).
+ * <p/>
+ * Cached settings of a URI that has not been checked with the torus for
+ * {@link #MAX_IDLE_INTERVALS} intervals, e.g. because it was not used and
+ * is no longer revalidated, are revalidated before they are served.
+ *
+ * @author jakub
+ */
+public class TorusSettingsRefresher {
+  private static Logger logger = Logger.getLogger(TorusSettingsRefresher.class);
+  private static final Map<Long, TorusSettingsRefresher> refreshers =
+    new ConcurrentHashMap<Long, TorusSettingsRefresher>();
+  //URIs not used for this many intervals are no longer revalidated
+  static final int MAX_IDLE_INTERVALS = 10;
+  private final long interval;
+  private final ScheduledExecutorService scheduler;
+  private final Map<String, Watch> watches = new ConcurrentHashMap<String, Watch>();
+  //time each watched URI was last checked with the torus
+  private final Map<String, Long> checked = new ConcurrentHashMap<String, Long>();
+  private final Map<String, CompletableFuture<Pazpar2Settings>> flights =
+    new ConcurrentHashMap<String, CompletableFuture<Pazpar2Settings>>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong loads = new AtomicLong();
+  private final AtomicLong joined = new AtomicLong();
+  private final AtomicLong revalidations = new AtomicLong();
+  private final AtomicLong refreshed = new AtomicLong();
+
+  /**
+   * Loads target settings from the torus.
+   */
+  interface Loader {
+    /**
+     * @param torusURI URI of the searchables
+     * @param lastModified time the cached settings were loaded, null to load
+     * unconditionally
+     * @return settings, or null if not modified since lastModified
+     * @throws ProxyErrorException if the torus cannot be reached or has no
+     * targets
+     */
+    Pazpar2Settings load(String torusURI, Date lastModified) throws ProxyErrorException;
+  }
+
+  private static class Watch {
+    private final LRUCache<String, CacheEntry> cache;
+    private final Loader loader;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    Watch(LRUCache<String, CacheEntry> cache, Loader loader) {
+      this.cache = cache;
+      this.loader = loader;
+    }
+  }
+
+  /**
+   * @param interval milliseconds between revalidations of a torus URI
+   */
+  public TorusSettingsRefresher(long interval) {
+    this.interval = interval;
+    final AtomicInteger threadCount = new AtomicInteger();
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "torus-refresh-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          refresh();
+        } catch (RuntimeException re) {
+          logger.error("Torus settings refresh failed", re);
+        }
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns the refresher shared by all clients with the same refresh
+   * interval, null if background refresh is disabled.
+   * @param cfg client configuration
+   * @return shared refresher or null
+   */
+  public static TorusSettingsRefresher forConfiguration(Pazpar2ClientConfiguration cfg) {
+    if (cfg.TORUS_REFRESH_INTERVAL <= 0) {
+      return null;
+    }
+    Long key = Long.valueOf(cfg.TORUS_REFRESH_INTERVAL);
+    TorusSettingsRefresher refresher = refreshers.get(key);
+    if (refresher == null) {
+      synchronized (refreshers) {
+        refresher = refreshers.get(key);
+        if (refresher == null) {
+          refresher = new TorusSettingsRefresher(cfg.TORUS_REFRESH_INTERVAL);
+          refreshers.put(key, refresher);
+        }
+      }
+    }
+    return refresher;
+  }
+
+  /**
+   * Returns the cached settings without contacting the torus, or loads them
+   * once for all concurrent callers if they are not cached. Either way the
+   * URI is revalidated in the background from now on. Cached settings that
+   * have not been checked for too long are revalidated first.
+   * @param torusURI URI of the searchables
+   * @param cache target cache
+   * @param loader loads the settings from the torus
+   * @return settings
+   * @throws ProxyErrorException if settings are not cached and cannot be
+   * loaded
+   */
+  Pazpar2Settings get(String torusURI, LRUCache<String, CacheEntry> cache,
+    Loader loader) throws ProxyErrorException {
+    CacheEntry e = cache.get(torusURI);
+    if (e != null && e.getPayload() instanceof Pazpar2Settings) {
+      hits.incrementAndGet();
+      watch(torusURI, cache, loader);
+      Long lastChecked = checked.get(torusURI);
+      if (lastChecked == null
+        || System.currentTimeMillis() - lastChecked > MAX_IDLE_INTERVALS * interval) {
+        logger.debug("Target settings at " + torusURI + " not checked for too long, revalidating");
+        return revalidateNow(torusURI, cache, loader, e);
+      }
+      return (Pazpar2Settings) e.getPayload();
+    }
+    CompletableFuture<Pazpar2Settings> flight = new CompletableFuture<Pazpar2Settings>();
+    CompletableFuture<Pazpar2Settings> existing;
+    while ((existing = flights.putIfAbsent(torusURI, flight)) != null) {
+      joined.incrementAndGet();
+      Pazpar2Settings settings = await(existing);
+      if (settings != null) {
+        return settings;
+      }
+      //a revalidation that had nothing to offer, load them ourselves
+    }
+    try {
+      loads.incrementAndGet();
+      Pazpar2Settings settings = loader.load(torusURI, null);
+      if (settings == null) {
+        throw new ProxyErrorException("No search targets retrieved from the torus",
+          ProxyErrorException.ErrorCode.TARGET_TORUS_ERROR);
+      }
+      cache.put(torusURI, new CacheEntry(new Date(), settings));
+      checked.put(torusURI, System.currentTimeMillis());
+      watch(torusURI, cache, loader);
+      flight.complete(settings);
+      return settings;
+    } catch (ProxyErrorException pee) {
+      flight.completeExceptionally(pee);
+      throw pee;
+    } catch (RuntimeException re) {
+      flight.completeExceptionally(re);
+      throw re;
+    } finally {
+      flights.remove(torusURI, flight);
+    }
+  }
+
+  private static Pazpar2Settings await(CompletableFuture<Pazpar2Settings> flight)
+    throws ProxyErrorException {
+    try {
+      return flight.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new ProxyErrorException("Interrupted while loading target settings",
+        ProxyErrorException.ErrorCode.TARGET_TORUS_ERROR);
+    } catch (ExecutionException ee) {
+      if (ee.getCause() instanceof ProxyErrorException) {
+        throw (ProxyErrorException) ee.getCause();
+      }
+      logger.debug(ee.getCause());
+      throw new ProxyErrorException("Cannot load target settings: " + ee.getCause(),
+        ProxyErrorException.ErrorCode.TARGET_TORUS_ERROR);
+    }
+  }
+
+  /**
+   * Revalidates cached settings on the calling thread, or waits for a load
+   * or revalidation already under way.
+   */
+  private Pazpar2Settings revalidateNow(String torusURI,
+    LRUCache<String, CacheEntry> cache, Loader loader, CacheEntry e) {
+    Pazpar2Settings settings = revalidate(torusURI, cache, loader, e);
+    if (settings == null) {
+      CompletableFuture<Pazpar2Settings> flight = flights.get(torusURI);
+      if (flight != null) {
+        try {
+          settings = await(flight);
+        } catch (ProxyErrorException pee) {
+          logger.debug("Load of target settings at " + torusURI + " failed: "
+            + pee.getMessage());
+        }
+      }
+    }
+    if (settings == null) {
+      //revalidated meanwhile
+      CacheEntry current = cache.get(torusURI);
+      settings = (Pazpar2Settings) (current != null
+        && current.getPayload() instanceof Pazpar2Settings ? current : e).getPayload();
+    }
+    return settings;
+  }
+
+  private void watch(String torusURI, LRUCache<String, CacheEntry> cache,
+    Loader loader) {
+    Watch watch = watches.get(torusURI);
+    if (watch == null || watch.cache != cache) {
+      watches.put(torusURI, new Watch(cache, loader));
+    } else {
+      watch.lastUsed = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Revalidates all watched URIs, dropping those that left the cache or have
+   * not been used recently.
+   */
+  void refresh() {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<String, Watch>> it = watches.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Watch> w = it.next();
+      CacheEntry e = w.getValue().cache.get(w.getKey());
+      if (e == null || now - w.getValue().lastUsed > MAX_IDLE_INTERVALS * interval) {
+        it.remove();
+        checked.remove(w.getKey());
+        continue;
+      }
+      revalidate(w.getKey(), w.getValue().cache, w.getValue().loader, e);
+    }
+  }
+
+  /**
+   * @return the current settings, null if they are being loaded already
+   */
+  private Pazpar2Settings revalidate(String torusURI,
+    LRUCache<String, CacheEntry> cache, Loader loader, CacheEntry e) {
+    CompletableFuture<Pazpar2Settings> flight = new CompletableFuture<Pazpar2Settings>();
+    if (flights.putIfAbsent(torusURI, flight) != null) {
+      return null; //being loaded already
+    }
+    Pazpar2Settings current = e.getPayload() instanceof Pazpar2Settings
+      ? (Pazpar2Settings) e.getPayload() : null;
+    try {
+      revalidations.incrementAndGet();
+      Pazpar2Settings settings = loader.load(torusURI, e.getTimestamp());
+      if (settings != null) {
+        logger.info("Target settings at " + torusURI + " were modified upstream, refreshed");
+        cache.put(torusURI, new CacheEntry(new Date(), settings));
+        refreshed.incrementAndGet();
+        current = settings;
+      }
+    } catch (Exception ex) {
+      logger.warn("Cannot revalidate target settings at " + torusURI
+        + ", keeping cached ones: " + ex.getMessage());
+    } finally {
+      //a failed check keeps the cached settings until the next one
+      checked.put(torusURI, System.currentTimeMillis());
+      flight.complete(current);
+      flights.remove(torusURI, flight);
+    }
+    return current;
+  }
+
+  /**
+   * @return number of settings served from the cache
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of settings loaded because they were not cached
+   */
+  public long getLoads() {
+    return loads.get();
+  }
+
+  /**
+   * @return number of requests that waited for another request's load
+   */
+  public long getJoined() {
+    return joined.get();
+  }
+
+  public long getRevalidations() {
+    return revalidations.get();
+  }
+
+  /**
+   * @return number of revalidations that found modified settings
+   */
+  public long getRefreshed() {
+    return refreshed.get();
+  }
+
+  public int getWatched() {
+    return watches.size();
+  }
+}
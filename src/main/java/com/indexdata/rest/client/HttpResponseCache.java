@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+
+package com.indexdata.rest.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/**
+ * Cache of resource representations retrieved with GET, bounded by the total
+ * bytes of the cached bodies. Responses are cached as the server permits:
+ * they are served without a request while fresh according to
+ * <code>Cache-Control: max-age</code> (or <code>Expires</code>), and once
+ * stale they are revalidated with <code>If-None-Match</code> and the
+ * server's <code>Last-Modified</code>. Responses with <code>no-store</code>,
+ * or that carry neither freshness nor validators, are not cached.
+ * <p/>
+ * The default cache is shared by all {@link ResourceConnector}s, its budget
+ * is set with the <code>com.indexdata.rest.client.cacheSize</code> system
+ * property (bytes, 0 disables it).
+ *
+ * @author jakub
+ */
+public class HttpResponseCache {
+    private static final Logger logger = Logger.getLogger(HttpResponseCache.class);
+    public static final String CACHE_SIZE_PROPERTY = "com.indexdata.rest.client.cacheSize";
+    public static final long DEFAULT_CACHE_SIZE = 8 * 1024 * 1024;
+    //bookkeeping cost of an entry on top of its body
+    static final int ENTRY_OVERHEAD = 256;
+    //expiry of responses that may not be stored
+    static final long NO_STORE = -1;
+    private static volatile HttpResponseCache defaultCache;
+    private static volatile boolean defaultResolved = false;
+    private final long budget;
+    //least recently used first, guarded by this
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private long used = 0;
+    private long hits = 0;
+    private long revalidated = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * A cached response body with its validators.
+     */
+    static class Entry {
+        private final byte[] body;
+        private final String etag;
+        private final long lastModified;
+        private final long received;
+        private volatile long expires;
+
+        Entry(byte[] body, String etag, long lastModified, long received, long expires) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.received = received;
+            this.expires = expires;
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+
+        boolean isFresh(long now) {
+            return now < expires;
+        }
+
+        boolean hasValidators() {
+            return etag != null || lastModified > 0;
+        }
+
+        /**
+         * @param since time the caller got the resource
+         * @return true if the cached body was received after that time
+         */
+        boolean isModifiedSince(Date since) {
+            return received > since.getTime();
+        }
+
+        long size() {
+            return body.length + ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * Copies a response body as it is parsed, giving up the copy once it
+     * grows past the limit, so a body too large to be cached is never held
+     * in memory as a whole.
+     */
+    static class BodyRecorder extends FilterInputStream {
+        private final long limit;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        BodyRecorder(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                record(new byte[] {(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                record(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            //skipped bytes would be missing from the copy
+            copy = null;
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        //the parser must not close the connection before the body is drained
+        @Override
+        public void close() {
+        }
+
+        private void record(byte[] b, int off, int len) {
+            if (copy == null) {
+                return;
+            }
+            if (copy.size() + len > limit) {
+                copy = null;
+                return;
+            }
+            copy.write(b, off, len);
+        }
+
+        /**
+         * Reads what the parser left of the body, e.g. trailing whitespace.
+         * @throws IOException
+         */
+        void drain() throws IOException {
+            byte[] buf = new byte[4096];
+            int n;
+            do {
+                n = read(buf, 0, buf.length);
+            } while (n >= 0 && copy != null);
+        }
+
+        /**
+         * @return the body read so far, null if it outgrew the limit
+         */
+        byte[] getBody() {
+            return copy != null ? copy.toByteArray() : null;
+        }
+    }
+
+    /**
+     * @param budget bytes of cached bodies
+     */
+    public HttpResponseCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @return the cache shared by all connectors, null if disabled
+     */
+    public static HttpResponseCache getDefault() {
+        if (!defaultResolved) {
+            synchronized (HttpResponseCache.class) {
+                if (!defaultResolved) {
+                    long size = DEFAULT_CACHE_SIZE;
+                    String prop = System.getProperty(CACHE_SIZE_PROPERTY);
+                    if (prop != null) {
+                        try {
+                            size = Long.parseLong(prop.trim());
+                        } catch (NumberFormatException nfe) {
+                            logger.warn("Invalid " + CACHE_SIZE_PROPERTY + " '" + prop
+                                + "', using " + DEFAULT_CACHE_SIZE);
+                        }
+                    }
+                    defaultCache = size > 0 ? new HttpResponseCache(size) : null;
+                    defaultResolved = true;
+                }
+            }
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Computes until when a response may be served without revalidation.
+     * @param cacheControl value of the Cache-Control header or null
+     * @param expires value of the Expires header, 0 if none
+     * @param now time the response was received
+     * @return expiry time, <code>now</code> or earlier if the response must
+     * be revalidated, {@link #NO_STORE} if it may not be cached
+     */
+    static long expiry(String cacheControl, long expires, long now) {
+        if (cacheControl != null) {
+            long maxAge = -1;
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase();
+                if (directive.equals("no-store") || directive.equals("private")) {
+                    return NO_STORE;
+                } else if (directive.equals("no-cache")) {
+                    return now;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAge = Long.parseLong(directive.substring(8).replace("\"", ""));
+                    } catch (NumberFormatException nfe) {
+                        return now;
+                    }
+                }
+            }
+            if (maxAge >= 0) {
+                return now + maxAge * 1000;
+            }
+        }
+        return expires > 0 ? expires : now;
+    }
+
+    /**
+     * @param key request URL
+     * @return cached entry, fresh or stale, or null
+     */
+    synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Makes a request for a stale entry conditional.
+     * @param conn unconnected request
+     * @param entry stale entry
+     */
+    static void addValidators(HttpURLConnection conn, Entry entry) {
+        if (entry.etag != null) {
+            conn.setRequestProperty("If-None-Match", entry.etag);
+        }
+        if (entry.lastModified > 0) {
+            conn.setIfModifiedSince(entry.lastModified);
+        }
+    }
+
+    /**
+     * Records a fresh entry served without a request.
+     */
+    synchronized void hit() {
+        hits++;
+    }
+
+    /**
+     * Extends the freshness of a stale entry confirmed by a 304 response.
+     * @param entry stale entry
+     * @param conn the 304 response
+     * @param now time the response was received
+     */
+    void revalidated(Entry entry, HttpURLConnection conn, long now) {
+        long expires = expiry(conn.getHeaderField("Cache-Control"), conn.getExpiration(), now);
+        entry.expires = expires;
+        synchronized (this) {
+            revalidated++;
+        }
+    }
+
+    /**
+     * Wraps a response body so it is copied, up to the largest body that
+     * fits in the budget, as it is read.
+     * @param body response body
+     * @return stream to read the body from
+     */
+    BodyRecorder record(InputStream body) {
+        return new BodyRecorder(body, budget - ENTRY_OVERHEAD);
+    }
+
+    /**
+     * Caches a 200 response if the server permits it, evicting the least
+     * recently used entries to stay within the budget.
+     * @param key request URL
+     * @param conn the response
+     * @param body response body, null if it was too large to be recorded
+     * @param now time the response was received
+     */
+    void put(String key, HttpURLConnection conn, byte[] body, long now) {
+        if (body == null) {
+            synchronized (this) {
+                misses++;
+            }
+            invalidate(key);
+            return;
+        }
+        long expires = expiry(conn.getHeaderField("Cache-Control"), conn.getExpiration(), now);
+        Entry entry = new Entry(body, conn.getHeaderField("ETag"), conn.getLastModified(),
+            now, expires);
+        synchronized (this) {
+            misses++;
+        }
+        if (expires == NO_STORE || (!entry.isFresh(now) && !entry.hasValidators())) {
+            invalidate(key);
+            return;
+        }
+        put(key, entry);
+    }
+
+    synchronized void put(String key, Entry entry) {
+        if (entry.size() > budget) {
+            invalidate(key);
+            return;
+        }
+        Entry replaced = entries.put(key, entry);
+        if (replaced != null) {
+            used -= replaced.size();
+        }
+        used += entry.size();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (used > budget && it.hasNext()) {
+            used -= it.next().getValue().size();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops the cached entry, e.g. because the resource was updated.
+     * @param key request URL
+     */
+    synchronized void invalidate(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            used -= entry.size();
+        }
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return bytes of cached bodies
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of fresh entries served without a request
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of stale entries confirmed by a 304 response
+     */
+    public synchronized long getRevalidated() {
+        return revalidated;
+    }
+
+    /**
+     * @return number of bodies retrieved from the server
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+
+package com.indexdata.rest.client;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.log4j.Logger;
+
+/**
+ * Process-wide registry of JAXB contexts, created at most once per package
+ * list or bound class, each with a bounded pool of unmarshallers and
+ * marshallers. Creating a context is expensive, creating (un)marshallers is
+ * not free either, and neither is thread-safe, so they are borrowed for a
+ * single call and returned to the pool.
+ * <p/>
+ * Call {@link #warmUp(String...)} at application start to create the
+ * contexts ahead of the first request.
+ *
+ * @author jakub
+ */
+public class JAXBContextRegistry {
+  private static final Logger logger = Logger.getLogger(JAXBContextRegistry.class);
+  //most idle (un)marshallers kept per context
+  public static final int POOL_SIZE = 16;
+  //keyed by the package list or the bound class
+  private static final Map<Object, Binding> bindings = new ConcurrentHashMap<Object, Binding>();
+  private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+  static {
+    xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
+  /**
+   * A JAXB context with its pooled unmarshallers and marshallers.
+   */
+  public static class Binding implements ResourceBinder {
+    private final JAXBContext context;
+    private final BlockingQueue<Unmarshaller> unmarshallers =
+      new ArrayBlockingQueue<Unmarshaller>(POOL_SIZE);
+    private final BlockingQueue<Marshaller> marshallers =
+      new ArrayBlockingQueue<Marshaller>(POOL_SIZE);
+
+    Binding(JAXBContext context) {
+      this.context = context;
+    }
+
+    public JAXBContext getContext() {
+      return context;
+    }
+
+    @Override
+    public Object unmarshal(InputStream is) throws JAXBException {
+      Unmarshaller u = unmarshallers.poll();
+      if (u == null) {
+        u = context.createUnmarshaller();
+      }
+      Object obj = u.unmarshal(is);
+      //not returned on failure, its state is unknown
+      unmarshallers.offer(u);
+      return obj;
+    }
+
+    @Override
+    public void marshal(Object obj, OutputStream os) throws JAXBException {
+      Marshaller m = marshallers.poll();
+      if (m == null) {
+        m = context.createMarshaller();
+      }
+      m.marshal(obj, os);
+      marshallers.offer(m);
+    }
+
+    /**
+     * Unmarshals the elements with the given name one at a time and hands
+     * each to the handler, so only one of them is held in memory at a time.
+     * @param is XML document
+     * @param elementName local name of the elements
+     * @param type bound class of the elements
+     * @param handler receives each element
+     * @return number of elements handled
+     * @throws JAXBException if an element cannot be bound
+     * @throws XMLStreamException if the document cannot be parsed
+     */
+    @Override
+    public <E> int unmarshalEach(InputStream is, String elementName, Class<E> type,
+      ElementHandler<E> handler) throws JAXBException, XMLStreamException {
+      Unmarshaller u = unmarshallers.poll();
+      if (u == null) {
+        u = context.createUnmarshaller();
+      }
+      XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(is);
+      int count = 0;
+      try {
+        while (reader.hasNext()) {
+          if (reader.getEventType() == XMLStreamConstants.START_ELEMENT
+            && elementName.equals(reader.getLocalName())) {
+            //leaves the reader past the end of the element
+            handler.handle(u.unmarshal(reader, type).getValue());
+            count++;
+          } else {
+            reader.next();
+          }
+        }
+      } finally {
+        reader.close();
+      }
+      unmarshallers.offer(u);
+      return count;
+    }
+
+    int getIdleUnmarshallers() {
+      return unmarshallers.size();
+    }
+
+    int getIdleMarshallers() {
+      return marshallers.size();
+    }
+
+    private void warmUp() throws JAXBException {
+      unmarshallers.offer(context.createUnmarshaller());
+      marshallers.offer(context.createMarshaller());
+    }
+  }
+
+  /**
+   * Receives elements unmarshalled one at a time.
+   * @param <E> bound type of the elements
+   */
+  public interface ElementHandler<E> {
+    void handle(E element);
+  }
+
+  /**
+   * Factory of a JAXB context, invoked once per key.
+   */
+  private interface ContextFactory {
+    JAXBContext create() throws JAXBException;
+  }
+
+  private JAXBContextRegistry() {
+  }
+
+  /**
+   * @param packages colon-separated list of packages with bound classes
+   * @return shared binding for the packages
+   * @throws JAXBException if the context cannot be created
+   */
+  public static Binding forPackages(final String packages) throws JAXBException {
+    return lookup(packages, new ContextFactory() {
+      @Override
+      public JAXBContext create() throws JAXBException {
+        return JAXBContext.newInstance(packages);
+      }
+    });
+  }
+
+  /**
+   * @param type bound class
+   * @return shared binding for the class
+   * @throws JAXBException if the context cannot be created
+   */
+  public static Binding forClass(final Class<?> type) throws JAXBException {
+    return lookup(type, new ContextFactory() {
+      @Override
+      public JAXBContext create() throws JAXBException {
+        return JAXBContext.newInstance(type);
+      }
+    });
+  }
+
+  private static Binding lookup(Object key, ContextFactory factory) throws JAXBException {
+    Binding binding = bindings.get(key);
+    if (binding == null) {
+      synchronized (bindings) {
+        binding = bindings.get(key);
+        if (binding == null) {
+          long start = System.currentTimeMillis();
+          binding = new Binding(factory.create());
+          bindings.put(key, binding);
+          logger.debug("Created JAXB context for " + key + " in "
+            + (System.currentTimeMillis() - start) + " ms");
+        }
+      }
+    }
+    return binding;
+  }
+
+  /**
+   * Creates the contexts for the package lists, and an unmarshaller and a
+   * marshaller for each, so the first requests do not pay for it.
+   * @param packages colon-separated package lists
+   * @throws JAXBException if a context cannot be created
+   */
+  public static void warmUp(String... packages) throws JAXBException {
+    for (String p : packages) {
+      forPackages(p).warmUp();
+    }
+  }
+
+  /**
+   * Like {@link #warmUp(String...)} for bound classes.
+   * @param types bound classes
+   * @throws JAXBException if a context cannot be created
+   */
+  public static void warmUp(Class<?>... types) throws JAXBException {
+    for (Class<?> type : types) {
+      forClass(type).warmUp();
+    }
+  }
+}
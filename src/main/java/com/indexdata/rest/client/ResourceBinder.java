@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+
+package com.indexdata.rest.client;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Binds resources to and from XML for a {@link ResourceConnector}. JAXB
+ * ({@link JAXBContextRegistry.Binding}) is the default, {@link TorusStaxBinder}
+ * is a reflection-free alternative for the torus model.
+ *
+ * @author jakub
+ */
+public interface ResourceBinder {
+  Object unmarshal(InputStream is) throws JAXBException, XMLStreamException;
+
+  void marshal(Object obj, OutputStream os) throws JAXBException, XMLStreamException;
+
+  /**
+   * Unmarshals the elements with the given name one at a time.
+   * @param is XML document
+   * @param elementName local name of the elements
+   * @param type bound class of the elements
+   * @param handler receives each element
+   * @return number of elements handled
+   */
+  <E> int unmarshalEach(InputStream is, String elementName, Class<E> type,
+    JAXBContextRegistry.ElementHandler<E> handler) throws JAXBException, XMLStreamException;
+}
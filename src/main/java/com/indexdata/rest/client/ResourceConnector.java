@@ -8,12 +8,14 @@ package com.indexdata.rest.client;
 
 import com.indexdata.utils.PerformanceLogger;
 import com.indexdata.utils.TextUtils;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.Date;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
 import org.apache.log4j.Logger;
 
 /**
@@ -26,7 +28,8 @@ public class ResourceConnector<T> {
     private String mimeType = "application/xml";
     private String entityPackages;
     private Class<T> entityType;
-    private JAXBContext jaxbCtx;
+    private ResourceBinder binder;
+    private HttpResponseCache cache = HttpResponseCache.getDefault();
 
     public ResourceConnector(URL url, Class<T> type) {
         this.url = url;
@@ -38,71 +41,182 @@ public class ResourceConnector<T> {
         this.entityPackages = entityPackages;
     }
 
-    private JAXBContext getJAXBContext() throws JAXBException {
-        if (jaxbCtx == null) {
+    private ResourceBinder getBinder() throws JAXBException {
+        if (binder == null) {
             if (entityPackages != null) {
-                jaxbCtx = JAXBContext.newInstance(entityPackages);
+                binder = JAXBContextRegistry.forPackages(entityPackages);
             } else {
-                jaxbCtx = JAXBContext.newInstance(entityType);
+                binder = JAXBContextRegistry.forClass(entityType);
             }
         }
-        return jaxbCtx;
+        return binder;
     }
 
     public URL getURL() {
       return url;
     }
 
+    /**
+     * Sets the cache for GET responses, the shared default unless set.
+     * @param cache response cache, null to disable caching
+     */
+    public void setCache(HttpResponseCache cache) {
+      this.cache = cache;
+    }
+
+    /**
+     * Sets the XML binding of resources, JAXB unless set.
+     * @param binder e.g. {@link TorusStaxBinder} for the torus model
+     */
+    public void setBinder(ResourceBinder binder) {
+      this.binder = binder;
+    }
+
+    /**
+     * Retrieves the resource, from the {@link HttpResponseCache} if a fresh
+     * copy is cached.
+     * @return the resource
+     * @throws ResourceConnectionException
+     */
     @SuppressWarnings("unchecked")
     public T get() throws ResourceConnectionException {
-    	long start = PerformanceLogger.start();
-        Object obj = null;
-        try {        
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            new BasicAuth().setCredentials(conn);
-            conn.setRequestMethod("GET");
-            int responseCode = conn.getResponseCode();        
-            if (responseCode == 200) {            
-                JAXBContext context = getJAXBContext();
-                obj = context.createUnmarshaller().unmarshal(conn.getInputStream());                
-            } else {
-                throw new ResourceConnectionException("Cannot retrieve resource " + url.toString() + " - status code " + responseCode);
-            }
-            Logger.getLogger(getClass()).debug("GET " + url.toString() + ". Status: " + responseCode +  ". Location: " + conn.getHeaderField("Location"));
-        } catch (JAXBException jaxbe) {
-            throw new ResourceConnectionException("Get URL " + url.toString() + " failed: " + jaxbe.getMessage(), jaxbe);
-        } catch (IOException ioe) {
-            throw new ResourceConnectionException("Get URL " + url.toString() + " failed: " + ioe.getMessage(), ioe);
-        }
-        PerformanceLogger.finish("TORUS",url.getPath()+"?"+url.getQuery(),start);
-        return (T) obj;
+        return (T) fetch(null, wholeBody);
     }
-    
+
+    /**
+     * Retrieves the resource unless it has not changed since the given time.
+     * Cached copies are revalidated with the server's validators (ETag and
+     * Last-Modified) rather than the given time.
+     * @param modifiedSince time the caller retrieved the resource
+     * @return the resource or null if not modified
+     * @throws ResourceConnectionException
+     */
     @SuppressWarnings("unchecked")
     public T getIfModified(Date modifiedSince) throws ResourceConnectionException {
+        return (T) fetch(modifiedSince, wholeBody);
+    }
+
+    /**
+     * Retrieves the resource and unmarshals the elements with the given name
+     * one at a time, instead of binding the whole resource, e.g. the records
+     * of a large torus realm. Served from the {@link HttpResponseCache} like
+     * {@link #get()}.
+     * @param elementName local name of the elements
+     * @param type bound class of the elements
+     * @param handler receives each element
+     * @return number of elements handled
+     * @throws ResourceConnectionException
+     */
+    public <E> int stream(String elementName, Class<E> type,
+        JAXBContextRegistry.ElementHandler<E> handler) throws ResourceConnectionException {
+        return streamIfModified(null, elementName, type, handler);
+    }
+
+    /**
+     * Like {@link #stream(String, Class, JAXBContextRegistry.ElementHandler)}
+     * unless the resource has not changed since the given time.
+     * @param modifiedSince time the caller retrieved the resource, null to
+     * retrieve it unconditionally
+     * @return number of elements handled or null if not modified
+     * @throws ResourceConnectionException
+     */
+    public <E> Integer streamIfModified(Date modifiedSince, final String elementName,
+        final Class<E> type, final JAXBContextRegistry.ElementHandler<E> handler)
+        throws ResourceConnectionException {
+        return (Integer) fetch(modifiedSince, new BodyReader() {
+            @Override
+            public Object read(InputStream is) throws JAXBException, XMLStreamException {
+                return getBinder().unmarshalEach(is, elementName, type, handler);
+            }
+        });
+    }
+
+    /**
+     * Binds a response body.
+     */
+    private interface BodyReader {
+        Object read(InputStream is) throws JAXBException, XMLStreamException;
+    }
+
+    private final BodyReader wholeBody = new BodyReader() {
+        @Override
+        public Object read(InputStream is) throws JAXBException, XMLStreamException {
+            return getBinder().unmarshal(is);
+        }
+    };
+
+    private Object fetch(Date modifiedSince, BodyReader reader) throws ResourceConnectionException {
     	long start = PerformanceLogger.start();
+        String key = url.toExternalForm();
+        HttpResponseCache.Entry cached = cache != null ? cache.get(key) : null;
         Object obj = null;
-        try {        
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            conn.setIfModifiedSince(modifiedSince.getTime());
-            int responseCode = conn.getResponseCode();        
-            if (responseCode == 200) {            
-                JAXBContext context = getJAXBContext();
-                obj = context.createUnmarshaller().unmarshal(conn.getInputStream());
-            } else if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
-              return null;
+        try {
+            if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+                cache.hit();
+                Logger.getLogger(getClass()).debug("GET " + url.toString() + ". Served from cache");
+                if (modifiedSince != null && !cached.isModifiedSince(modifiedSince)) {
+                    return null;
+                }
+                obj = reader.read(new ByteArrayInputStream(cached.getBody()));
             } else {
-                throw new ResourceConnectionException("Cannot retrieve resource " + url.toString() + " - status code " + responseCode);
+                if (cached != null && !cached.hasValidators()) {
+                    cached = null;
+                }
+                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+                new BasicAuth().setCredentials(conn);
+                conn.setRequestMethod("GET");
+                if (cached != null) {
+                    HttpResponseCache.addValidators(conn, cached);
+                } else if (modifiedSince != null) {
+                    conn.setIfModifiedSince(modifiedSince.getTime());
+                }
+                int responseCode = conn.getResponseCode();
+                if (responseCode == 200) {
+                    if (cache != null) {
+                        //parsed as it arrives, copied only while it fits in the cache
+                        InputStream is = conn.getInputStream();
+                        try {
+                            HttpResponseCache.BodyRecorder body = cache.record(is);
+                            obj = reader.read(body);
+                            body.drain();
+                            cache.put(key, conn, body.getBody(), System.currentTimeMillis());
+                        } finally {
+                            is.close();
+                        }
+                    } else {
+                        obj = reader.read(conn.getInputStream());
+                    }
+                } else if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    if (cached == null) {
+                        return null;
+                    }
+                    cache.revalidated(cached, conn, System.currentTimeMillis());
+                    if (modifiedSince != null && !cached.isModifiedSince(modifiedSince)) {
+                        return null;
+                    }
+                    obj = reader.read(new ByteArrayInputStream(cached.getBody()));
+                } else {
+                    throw new ResourceConnectionException("Cannot retrieve resource " + url.toString() + " - status code " + responseCode);
+                }
+                Logger.getLogger(getClass()).debug("GET " + url.toString() + ". Status: " + responseCode +  ". Location: " + conn.getHeaderField("Location"));
             }
-            Logger.getLogger(getClass()).debug("GET " + url.toString() + ". Status: " + responseCode +  ". Location: " + conn.getHeaderField("Location"));
         } catch (JAXBException jaxbe) {
             throw new ResourceConnectionException("Get URL " + url.toString() + " failed: " + jaxbe.getMessage(), jaxbe);
+        } catch (XMLStreamException xse) {
+            throw new ResourceConnectionException("Get URL " + url.toString() + " failed: " + xse.getMessage(), xse);
         } catch (IOException ioe) {
             throw new ResourceConnectionException("Get URL " + url.toString() + " failed: " + ioe.getMessage(), ioe);
+        } finally {
+            PerformanceLogger.finish("TORUS",url.getPath()+"?"+url.getQuery(),start);
+        }
+        return obj;
+    }
+
+    //a modified resource must not be served from the cache
+    private void invalidate() {
+        if (cache != null) {
+            cache.invalidate(url.toExternalForm());
         }
-        PerformanceLogger.finish("TORUS",url.getPath()+"?"+url.getQuery(),start);
-        return (T) obj;
     }
 
     public void put(T t) throws ResourceConnectionException {
@@ -112,8 +226,7 @@ public class ResourceConnector<T> {
             conn.setRequestProperty("Content-Type", mimeType);
             conn.setRequestMethod("PUT");
 
-            JAXBContext context = getJAXBContext();
-            context.createMarshaller().marshal(t, conn.getOutputStream());
+            getBinder().marshal(t, conn.getOutputStream());
 
             int responseCode = conn.getResponseCode();
             switch (responseCode) {
@@ -131,9 +244,12 @@ public class ResourceConnector<T> {
                 default:
                     throw new ResourceConnectionException("Cannot update resource " + url.toString() + " status code " + responseCode);
             }
+            invalidate();
             Logger.getLogger(getClass()).debug("PUT " + url.toString() + ". Status: " + responseCode +  ". Location: " + conn.getHeaderField("Location"));
         } catch (JAXBException jaxbe) {
             throw new ResourceConnectionException("Put URL " + url.toString() + " failed: " + jaxbe.getMessage(), jaxbe);
+        } catch (XMLStreamException xse) {
+            throw new ResourceConnectionException("Put URL " + url.toString() + " failed: " + xse.getMessage(), xse);
         } catch (IOException ioe) {
             throw new ResourceConnectionException("Put URL " + url.toString() + " failed: " + ioe.getMessage(), ioe);
         }
@@ -162,6 +278,7 @@ public class ResourceConnector<T> {
                 default:
                     throw new ResourceConnectionException("Cannot delete resource " + url.toString() + " - status code " + responseCode);
             }
+            invalidate();
             Logger.getLogger(getClass()).debug("DELETE "+ url.toString() + ". Status: " + responseCode +  ". Location: " + conn.getHeaderField("Location"));
         } catch (IOException ioe) {
             throw new ResourceConnectionException("Delete URL " + url.toString() + " failed: " + ioe.getMessage(), ioe);
@@ -176,8 +293,7 @@ public class ResourceConnector<T> {
             conn.setRequestProperty("Content-Type", mimeType);
             conn.setRequestMethod("POST");
 
-            JAXBContext context = getJAXBContext();
-            context.createMarshaller().marshal(t, conn.getOutputStream());
+            getBinder().marshal(t, conn.getOutputStream());
 
             int responseCode = conn.getResponseCode();
             switch (responseCode) {
@@ -194,12 +310,15 @@ public class ResourceConnector<T> {
                 default:
                     throw new ResourceConnectionException("Cannot create resource " + url.toString() + " - status code " + responseCode);
             }        
+            invalidate();
             Logger.getLogger(getClass()).debug("POST " + url.toString() + ". Status: " + responseCode +  ". Location: " + conn.getHeaderField("Location"));
             return new URL(conn.getHeaderField("Location"));
         } catch (IOException ioe) {
             throw new ResourceConnectionException("Post URL " + url.toString() + " failed: " + ioe.getMessage(), ioe);
         } catch (JAXBException jaxbe) {
             throw new ResourceConnectionException("Post URL " + url.toString() + " failed: " + jaxbe.getMessage(), jaxbe);
+        } catch (XMLStreamException xse) {
+            throw new ResourceConnectionException("Post URL " + url.toString() + " failed: " + xse.getMessage(), xse);
         }
     }
 
@@ -211,8 +330,7 @@ public class ResourceConnector<T> {
             conn.setRequestProperty("Content-Type", mimeType);
             conn.setRequestMethod("POST");
 
-            JAXBContext context = getJAXBContext();
-            context.createMarshaller().marshal(obj, conn.getOutputStream());
+            getBinder().marshal(obj, conn.getOutputStream());
 
             int responseCode = conn.getResponseCode();
             switch (responseCode) {
@@ -229,12 +347,15 @@ public class ResourceConnector<T> {
                 default:
                     throw new ResourceConnectionException("Cannot create resource " + url.toString() + " - staus code " + responseCode);
             }
+            invalidate();
             Logger.getLogger(getClass()).debug("POST Any " + url.toString() + ". Status: " + responseCode +  ". Location: " + conn.getHeaderField("Location"));
             return new URL(conn.getHeaderField("Location"));
         } catch (IOException ioe) {
             throw new ResourceConnectionException("PostAny URL " + url.toString() + " failed: " + ioe.getMessage(), ioe);
         } catch (JAXBException jaxbe) {
             throw new ResourceConnectionException("PostAny URL " + url.toString() + " failed: " + jaxbe.getMessage(), jaxbe);
+        } catch (XMLStreamException xse) {
+            throw new ResourceConnectionException("PostAny URL " + url.toString() + " failed: " + xse.getMessage(), xse);
         }
     }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+
+package com.indexdata.rest.client;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.indexdata.torus.Layer;
+import com.indexdata.torus.Record;
+import com.indexdata.torus.Records;
+import com.indexdata.torus.TorusXml;
+
+/**
+ * Binds the torus model (records, record and layer elements) with
+ * {@link TorusXml} instead of JAXB. It is stateless and thread-safe.
+ *
+ * @author jakub
+ */
+public class TorusStaxBinder implements ResourceBinder {
+  public static final TorusStaxBinder INSTANCE = new TorusStaxBinder();
+  private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+  private static final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
+
+  static {
+    xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
+  @Override
+  public Object unmarshal(InputStream is) throws XMLStreamException {
+    XMLStreamReader r = xmlInputFactory.createXMLStreamReader(is);
+    try {
+      r.nextTag();
+      String name = r.getLocalName();
+      if ("records".equals(name)) {
+        return TorusXml.readRecords(r);
+      } else if ("record".equals(name)) {
+        return TorusXml.readRecord(r);
+      } else if ("layer".equals(name)) {
+        return TorusXml.readLayer(r);
+      }
+      throw new XMLStreamException("Unexpected element '" + name + "'", r.getLocation());
+    } finally {
+      r.close();
+    }
+  }
+
+  @Override
+  public void marshal(Object obj, OutputStream os) throws XMLStreamException {
+    XMLStreamWriter w = xmlOutputFactory.createXMLStreamWriter(os, "UTF-8");
+    w.writeStartDocument("UTF-8", "1.0");
+    if (obj instanceof Records) {
+      TorusXml.writeRecords(w, (Records) obj);
+    } else if (obj instanceof Record) {
+      TorusXml.writeRecord(w, (Record) obj);
+    } else if (obj instanceof Layer) {
+      TorusXml.writeLayer(w, (Layer) obj);
+    } else {
+      throw new XMLStreamException("Cannot bind " + obj.getClass().getName());
+    }
+    w.writeEndDocument();
+    w.flush();
+    w.close();
+  }
+
+  @Override
+  public <E> int unmarshalEach(InputStream is, String elementName, Class<E> type,
+    JAXBContextRegistry.ElementHandler<E> handler) throws XMLStreamException {
+    boolean records = type == Record.class;
+    if (!records && !Layer.class.isAssignableFrom(type)) {
+      throw new IllegalArgumentException("Cannot bind " + type.getName());
+    }
+    XMLStreamReader r = xmlInputFactory.createXMLStreamReader(is);
+    int count = 0;
+    try {
+      while (r.hasNext()) {
+        if (r.next() == XMLStreamConstants.START_ELEMENT
+          && elementName.equals(r.getLocalName())) {
+          //leaves the reader at the end of the element
+          handler.handle(type.cast(records ? TorusXml.readRecord(r) : TorusXml.readLayer(r)));
+          count++;
+        }
+      }
+    } finally {
+      r.close();
+    }
+    return count;
+  }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+
+package com.indexdata.torus;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.indexdata.torus.layer.CategoryTypeLayer;
+import com.indexdata.torus.layer.IdentityTypeLayer;
+import com.indexdata.torus.layer.KeyValue;
+import com.indexdata.torus.layer.SearchableTypeLayer;
+
+/**
+ * Reads and writes the torus model with plain StAX, without the reflection
+ * JAXB uses to bind it. The XML is the same as with JAXB: layer classes are
+ * told apart by <code>xsi:type</code>, known layer elements are bound to
+ * their properties and any other element becomes a dynamic element.
+ * <p/>
+ * The property tables mirror the JAXB mappings of the layer classes,
+ * TorusXmlTest checks that they stay in sync when properties are added.
+ *
+ * @author jakub
+ */
+public class TorusXml {
+    public static final String XSI_NS = "http://www.w3.org/2001/XMLSchema-instance";
+    static final String SEARCHABLE = "searchableTypeLayer";
+    static final String IDENTITY = "identityTypeLayer";
+    static final String CATEGORY = "categoryTypeLayer";
+
+    private TorusXml() {
+    }
+
+    /**
+     * @param r reader at the start of a records element, left at its end
+     * @return the records
+     * @throws XMLStreamException
+     */
+    public static Records readRecords(XMLStreamReader r) throws XMLStreamException {
+        Records records = new Records();
+        String uri = r.getAttributeValue(null, "uri");
+        if (uri != null) {
+            records.setUri(URI.create(uri));
+        }
+        List<Record> list = null;
+        while (nextChild(r)) {
+            if ("record".equals(r.getLocalName())) {
+                if (list == null) {
+                    list = new ArrayList<Record>();
+                }
+                list.add(readRecord(r));
+            } else {
+                readText(r);
+            }
+        }
+        records.setRecords(list);
+        return records;
+    }
+
+    /**
+     * @param r reader at the start of a record element, left at its end
+     * @return the record
+     * @throws XMLStreamException
+     */
+    public static Record readRecord(XMLStreamReader r) throws XMLStreamException {
+        Record record = new Record(r.getAttributeValue(null, "type"));
+        String uri = r.getAttributeValue(null, "uri");
+        if (uri != null) {
+            record.setUri(URI.create(uri));
+        }
+        List<Layer> layers = new ArrayList<Layer>();
+        while (nextChild(r)) {
+            if ("layer".equals(r.getLocalName())) {
+                layers.add(readLayer(r));
+            } else {
+                readText(r);
+            }
+        }
+        record.setLayers(layers);
+        return record;
+    }
+
+    /**
+     * @param r reader at the start of a layer element, left at its end
+     * @return the layer, of the class named by its xsi:type
+     * @throws XMLStreamException if the layer type is unknown
+     */
+    public static Layer readLayer(XMLStreamReader r) throws XMLStreamException {
+        String type = r.getAttributeValue(XSI_NS, "type");
+        if (type != null && type.indexOf(':') != -1) {
+            type = type.substring(type.indexOf(':') + 1);
+        }
+        Layer layer;
+        if (SEARCHABLE.equals(type)) {
+            layer = new SearchableTypeLayer();
+        } else if (IDENTITY.equals(type)) {
+            layer = new IdentityTypeLayer();
+        } else if (CATEGORY.equals(type)) {
+            layer = new CategoryTypeLayer();
+        } else {
+            throw new XMLStreamException("Unknown layer type '" + type + "'", r.getLocation());
+        }
+        layer.setLayerName(r.getAttributeValue(null, "name"));
+        while (nextChild(r)) {
+            String name = r.getLocalName();
+            String value = readText(r);
+            if ("id".equals(name)) {
+                layer.setId(value);
+            } else if (!readProperty(layer, name, value)) {
+                layer.getDynamicElements().add(new KeyValue(name, value));
+            }
+        }
+        return layer;
+    }
+
+    public static void writeRecords(XMLStreamWriter w, Records records)
+        throws XMLStreamException {
+        w.writeStartElement("records");
+        if (records.getUri() != null) {
+            w.writeAttribute("uri", records.getUri().toString());
+        }
+        if (records.getRecords() != null) {
+            for (Record record : records.getRecords()) {
+                writeRecord(w, record);
+            }
+        }
+        w.writeEndElement();
+    }
+
+    public static void writeRecord(XMLStreamWriter w, Record record)
+        throws XMLStreamException {
+        w.writeStartElement("record");
+        if (record.getType() != null) {
+            w.writeAttribute("type", record.getType());
+        }
+        if (record.getUri() != null) {
+            w.writeAttribute("uri", record.getUri().toString());
+        }
+        if (record.getLayers() != null) {
+            for (Layer layer : record.getLayers()) {
+                writeLayer(w, layer);
+            }
+        }
+        w.writeEndElement();
+    }
+
+    public static void writeLayer(XMLStreamWriter w, Layer layer)
+        throws XMLStreamException {
+        String type;
+        if (layer instanceof SearchableTypeLayer) {
+            type = SEARCHABLE;
+        } else if (layer instanceof IdentityTypeLayer) {
+            type = IDENTITY;
+        } else if (layer instanceof CategoryTypeLayer) {
+            type = CATEGORY;
+        } else {
+            throw new XMLStreamException("Unknown layer class " + layer.getClass().getName());
+        }
+        w.writeStartElement("layer");
+        w.writeNamespace("xsi", XSI_NS);
+        if (layer.getLayerName() != null) {
+            w.writeAttribute("name", layer.getLayerName());
+        }
+        w.writeAttribute("xsi", XSI_NS, "type", type);
+        writeElement(w, "id", layer.getId());
+        if (layer instanceof SearchableTypeLayer) {
+            writeProperties(w, (SearchableTypeLayer) layer);
+        } else if (layer instanceof IdentityTypeLayer) {
+            writeProperties(w, (IdentityTypeLayer) layer);
+        } else {
+            writeProperties(w, (CategoryTypeLayer) layer);
+        }
+        if (layer.getDynamicElements() != null) {
+            for (KeyValue kv : layer.getDynamicElements()) {
+                w.writeStartElement(kv.getName());
+                if (kv.getValue() != null) {
+                    w.writeCharacters(kv.getValue());
+                }
+                w.writeEndElement();
+            }
+        }
+        w.writeEndElement();
+    }
+
+    /**
+     * Moves to the next child element of the current element.
+     * @return false at the end of the current element
+     */
+    private static boolean nextChild(XMLStreamReader r) throws XMLStreamException {
+        while (r.hasNext()) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the text content of the current element, like DOM's
+     * getTextContent(), and leaves the reader at its end.
+     */
+    private static String readText(XMLStreamReader r) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        int depth = 1;
+        while (depth > 0) {
+            switch (r.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    text.append(r.getText());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return text.toString();
+    }
+
+    private static void writeElement(XMLStreamWriter w, String name, String value)
+        throws XMLStreamException {
+        if (value != null) {
+            w.writeStartElement(name);
+            w.writeCharacters(value);
+            w.writeEndElement();
+        }
+    }
+
+    private static boolean readProperty(Layer layer, String name, String value) {
+        if (layer instanceof SearchableTypeLayer) {
+            return readProperty((SearchableTypeLayer) layer, name, value);
+        } else if (layer instanceof IdentityTypeLayer) {
+            return readProperty((IdentityTypeLayer) layer, name, value);
+        } else {
+            return readProperty((CategoryTypeLayer) layer, name, value);
+        }
+    }
+
+    private static boolean readProperty(SearchableTypeLayer l, String name, String value) {
+        switch (name) {
+            case "literalTransform": l.setLiteralTransform(value); return true;
+            case "recordEncoding": l.setRecordEncoding(value); return true;
+            case "requestSyntax": l.setRequestSyntax(value); return true;
+            case "useTurboMarc": l.setUseTurboMarc(value); return true;
+            case "transform": l.setTransform(value); return true;
+            case "elementSet": l.setElementSet(value); return true;
+            case "displayName": l.setName(value); return true;
+            case "zurl": l.setZurl(value); return true;
+            case "cclmap_au": l.setCclMapAu(value); return true;
+            case "cclmap_date": l.setCclMapDate(value); return true;
+            case "cclmap_su": l.setCclMapSu(value); return true;
+            case "cclmap_isbn": l.setCclMapIsbn(value); return true;
+            case "cclmap_issn": l.setCclMapIssn(value); return true;
+            case "cclmap_term": l.setCclMapTerm(value); return true;
+            case "piggyback": l.setPiggyback(value); return true;
+            case "cclmap_ti": l.setCclMapTi(value); return true;
+            case "cclmap_jt": l.setCclMapJournalTitle(value); return true;
+            case "queryEncoding": l.setQueryEncoding(value); return true;
+            case "authentication": l.setAuthentication(value); return true;
+            case "authenticationMode": l.setAuthenticationMode(value); return true;
+            case "urlRecipe": l.setUrlRecipe(value); return true;
+            case "serviceProvider": l.setServiceProvider(value); return true;
+            case "categories": l.setCategories(value); return true;
+            case "contentLevel": l.setContentLevel(value); return true;
+            case "medium": l.setMedium(value); return true;
+            case "fullTextTarget": l.setFullTextTarget(value); return true;
+            case "comment": l.setComment(value); return true;
+            case "explode": l.setExplode(value); return true;
+            case "useUrlProxy": l.setUseUrlProxy(value); return true;
+            case "useThumbnails": l.setUseThumbnails(value); return true;
+            case "cfAuth": l.setCfAuth(value); return true;
+            case "cfProxy": l.setCfProxy(value); return true;
+            case "cfSubDB": l.setCfSubDB(value); return true;
+            case "secondaryRequestSyntax": l.setSecondaryRequestSyntax(value); return true;
+            case "sruVersion": l.setSruVersion(value); return true;
+            case "pqfPrefix": l.setPqfPrefix(value); return true;
+            case "sru": l.setSRU(value); return true;
+            case "termlistTermSort": l.setTermlistTermSort(value); return true;
+            case "termlistTermCount": l.setTermlistTermCount(value); return true;
+            case "preferredTarget": l.setPreferredTarget(value); return true;
+            case "blockTimeout": l.setBlockTimeout(value); return true;
+            case "apduLog": l.setApduLog(value); return true;
+            case "maxRecords": l.setMaxRecords(value); return true;
+            case "extendRecords": l.setExtendRecords(value); return true;
+            case "termlistUseTermFactor": l.setTermlistUseTermFactor(value); return true;
+            case "extraArgs": l.setExtraArgs(value); return true;
+            case "querySyntax": l.setQuerySyntax(value); return true;
+            case "fieldMap": l.setFieldMap(value); return true;
+            case "placeHolds": l.setPlaceHolds(value); return true;
+            case "contentConnector": l.setContentConnector(value); return true;
+            case "contentAuthentication": l.setContentAuthentication(value); return true;
+            case "contentProxy": l.setContentProxy(value); return true;
+            case "udb": l.setUdb(value); return true;
+            case "openAccess": l.setOpenAccess(value); return true;
+            case "aceHitsThreshold": l.setAceHitsThreshold(value); return true;
+            case "sortStrategy": l.setSortStrategy(value); return true;
+            case "noCproxy": l.setNoCproxy(value); return true;
+            default: return false;
+        }
+    }
+
+    private static void writeProperties(XMLStreamWriter w, SearchableTypeLayer l)
+        throws XMLStreamException {
+        writeElement(w, "literalTransform", l.getLiteralTransform());
+        writeElement(w, "recordEncoding", l.getRecordEncoding());
+        writeElement(w, "requestSyntax", l.getRequestSyntax());
+        writeElement(w, "useTurboMarc", l.getUseTurboMarc());
+        writeElement(w, "transform", l.getTransform());
+        writeElement(w, "elementSet", l.getElementSet());
+        writeElement(w, "displayName", l.getName());
+        writeElement(w, "zurl", l.getZurl());
+        writeElement(w, "cclmap_au", l.getCclMapAu());
+        writeElement(w, "cclmap_date", l.getCclMapDate());
+        writeElement(w, "cclmap_su", l.getCclMapSu());
+        writeElement(w, "cclmap_isbn", l.getCclMapIsbn());
+        writeElement(w, "cclmap_issn", l.getCclMapIssn());
+        writeElement(w, "cclmap_term", l.getCclMapTerm());
+        writeElement(w, "piggyback", l.getPiggyback());
+        writeElement(w, "cclmap_ti", l.getCclMapTi());
+        writeElement(w, "cclmap_jt", l.getCclMapJournalTitle());
+        writeElement(w, "queryEncoding", l.getQueryEncoding());
+        writeElement(w, "authentication", l.getAuthentication());
+        writeElement(w, "authenticationMode", l.getAuthenticationMode());
+        writeElement(w, "urlRecipe", l.getUrlRecipe());
+        writeElement(w, "serviceProvider", l.getServiceProvider());
+        writeElement(w, "categories", l.getCategories());
+        writeElement(w, "contentLevel", l.getContentLevel());
+        writeElement(w, "medium", l.getMedium());
+        writeElement(w, "fullTextTarget", l.getFullTextTarget());
+        writeElement(w, "comment", l.getComment());
+        writeElement(w, "explode", l.getExplode());
+        writeElement(w, "useUrlProxy", l.getUseUrlProxy());
+        writeElement(w, "useThumbnails", l.getUseThumbnails());
+        writeElement(w, "cfAuth", l.getCfAuth());
+        writeElement(w, "cfProxy", l.getCfProxy());
+        writeElement(w, "cfSubDB", l.getCfSubDB());
+        writeElement(w, "secondaryRequestSyntax", l.getSecondaryRequestSyntax());
+        writeElement(w, "sruVersion", l.getSruVersion());
+        writeElement(w, "pqfPrefix", l.getPqfPrefix());
+        writeElement(w, "sru", l.getSRU());
+        writeElement(w, "termlistTermSort", l.getTermlistTermSort());
+        writeElement(w, "termlistTermCount", l.getTermlistTermCount());
+        writeElement(w, "preferredTarget", l.getPreferredTarget());
+        writeElement(w, "blockTimeout", l.getBlockTimeout());
+        writeElement(w, "apduLog", l.getApduLog());
+        writeElement(w, "maxRecords", l.getMaxRecords());
+        writeElement(w, "extendRecords", l.getExtendRecords());
+        writeElement(w, "termlistUseTermFactor", l.getTermlistUseTermFactor());
+        writeElement(w, "extraArgs", l.getExtraArgs());
+        writeElement(w, "querySyntax", l.getQuerySyntax());
+        writeElement(w, "fieldMap", l.getFieldMap());
+        writeElement(w, "placeHolds", l.getPlaceHolds());
+        writeElement(w, "contentConnector", l.getContentConnector());
+        writeElement(w, "contentAuthentication", l.getContentAuthentication());
+        writeElement(w, "contentProxy", l.getContentProxy());
+        writeElement(w, "udb", l.getUdb());
+        writeElement(w, "openAccess", l.getOpenAccess());
+        writeElement(w, "aceHitsThreshold", l.getAceHitsThreshold());
+        writeElement(w, "sortStrategy", l.getSortStrategy());
+        writeElement(w, "noCproxy", l.getNoCproxy());
+    }
+
+    private static boolean readProperty(IdentityTypeLayer l, String name, String value) {
+        switch (name) {
+            case "identityId": l.setIdentityId(value); return true;
+            case "searchablesRealm": l.setSearchablesRealm(value); return true;
+            case "categoriesRealm": l.setCategoriesRealm(value); return true;
+            case "displayName": l.setDisplayName(value); return true;
+            case "comment": l.setComment(value); return true;
+            case "iconUrl": l.setIconUrl(value); return true;
+            case "indexIconUrl": l.setIndexIconUrl(value); return true;
+            case "ipRanges": l.setIpRanges(value); return true;
+            case "referer": l.setReferer(value); return true;
+            case "userName": l.setUserName(value); return true;
+            case "ilsConnector": l.setIlsConnector(value); return true;
+            default: return false;
+        }
+    }
+
+    private static void writeProperties(XMLStreamWriter w, IdentityTypeLayer l)
+        throws XMLStreamException {
+        writeElement(w, "identityId", l.getIdentityId());
+        //the realm getters fall back to values derived from the identity id
+        if (!l.getSearchablesRealm().equals("searchable." + l.getIdentityId())) {
+            writeElement(w, "searchablesRealm", l.getSearchablesRealm());
+        }
+        if (!l.getCategoriesRealm().equals("cat." + l.getIdentityId())) {
+            writeElement(w, "categoriesRealm", l.getCategoriesRealm());
+        }
+        writeElement(w, "displayName", l.getDisplayName());
+        writeElement(w, "comment", l.getComment());
+        writeElement(w, "iconUrl", l.getIconUrl());
+        writeElement(w, "indexIconUrl", l.getIndexIconUrl());
+        writeElement(w, "ipRanges", l.getIpRanges());
+        writeElement(w, "referer", l.getReferer());
+        writeElement(w, "userName", l.getUserName());
+        writeElement(w, "ilsConnector", l.getIlsConnector());
+    }
+
+    private static boolean readProperty(CategoryTypeLayer l, String name, String value) {
+        switch (name) {
+            case "displayName": l.setDisplayName(value); return true;
+            case "categoryId": l.setCategoryId(value); return true;
+            default: return false;
+        }
+    }
+
+    private static void writeProperties(XMLStreamWriter w, CategoryTypeLayer l)
+        throws XMLStreamException {
+        writeElement(w, "displayName", l.getDisplayName());
+        writeElement(w, "categoryId", l.getCategoryId());
+    }
+}
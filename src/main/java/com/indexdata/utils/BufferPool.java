@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.utils;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of fixed-size byte buffers for stream copying, avoids allocating a new
+ * buffer for every relayed response. Buffers must be returned with
+ * {@link #release(byte[])} once the copy is finished; the pool keeps at most
+ * a bounded number of idle buffers and lets the rest be garbage collected.
+ *
+ * @author jakub
+ */
+public class BufferPool {
+  public static final int DEFAULT_MAX_IDLE = 64;
+  private static final Map<Integer, BufferPool> pools =
+    new ConcurrentHashMap<Integer, BufferPool>();
+  private final int bufferSize;
+  private final int maxIdle;
+  private final Queue<byte[]> idle = new ConcurrentLinkedQueue<byte[]>();
+  private final AtomicInteger idleCount = new AtomicInteger();
+  private final AtomicLong allocations = new AtomicLong();
+  private final AtomicLong reuses = new AtomicLong();
+
+  public BufferPool(int bufferSize, int maxIdle) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("Buffer size must be positive");
+    }
+    this.bufferSize = bufferSize;
+    this.maxIdle = maxIdle;
+  }
+
+  /**
+   * Returns the pool shared by all users of the given buffer size.
+   * @param bufferSize size of the pooled buffers in bytes
+   * @return shared pool
+   */
+  public static BufferPool forSize(int bufferSize) {
+    BufferPool pool = pools.get(bufferSize);
+    if (pool == null) {
+      synchronized (pools) {
+        pool = pools.get(bufferSize);
+        if (pool == null) {
+          pool = new BufferPool(bufferSize, DEFAULT_MAX_IDLE);
+          pools.put(bufferSize, pool);
+        }
+      }
+    }
+    return pool;
+  }
+
+  /**
+   * @return an idle buffer or a newly allocated one if none is available
+   */
+  public byte[] acquire() {
+    byte[] buf = idle.poll();
+    if (buf != null) {
+      idleCount.decrementAndGet();
+      reuses.incrementAndGet();
+      return buf;
+    }
+    allocations.incrementAndGet();
+    return new byte[bufferSize];
+  }
+
+  /**
+   * Returns the buffer to the pool. Buffers of a foreign size are ignored.
+   * @param buf buffer obtained from {@link #acquire()}
+   */
+  public void release(byte[] buf) {
+    if (buf == null || buf.length != bufferSize) {
+      return;
+    }
+    if (idleCount.incrementAndGet() <= maxIdle) {
+      idle.offer(buf);
+    } else {
+      idleCount.decrementAndGet();
+    }
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * @return number of buffers allocated because none was idle
+   */
+  public long getAllocations() {
+    return allocations.get();
+  }
+
+  /**
+   * @return number of times an idle buffer was reused
+   */
+  public long getReuses() {
+    return reuses.get();
+  }
+
+  /**
+   * @return number of buffers currently idle in the pool
+   */
+  public int getIdle() {
+    return idleCount.get();
+  }
+}
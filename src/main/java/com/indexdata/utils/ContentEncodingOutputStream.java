@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Output stream that compresses everything written to it with the given HTTP
+ * content coding. A producer that already holds bytes in that very coding can
+ * write them straight to the underlying stream with {@link #passThrough()}
+ * and avoid decompressing and compressing again.
+ * <p/>
+ * The two ways of writing cannot be mixed within one stream: either the
+ * whole body is compressed by this stream or the whole body is passed
+ * through. Once encoded bytes were passed through, the body cannot be
+ * followed by anything else, e.g. an error message, so writing to this
+ * stream fails with IllegalStateException.
+ * <p/>
+ * An empty body is still a valid, empty, gzip or deflate stream.
+ *
+ * @author jakub
+ */
+public class ContentEncodingOutputStream extends OutputStream {
+  private final OutputStream target;
+  private final String encoding;
+  private DeflaterOutputStream encoder;
+  private boolean passedThrough = false;
+
+  /**
+   * @param target stream receiving the encoded body
+   * @param encoding supported content coding, see {@link HttpContentEncoding}
+   */
+  public ContentEncodingOutputStream(OutputStream target, String encoding) {
+    String enc = HttpContentEncoding.normalize(encoding);
+    if (enc == null || !HttpContentEncoding.isSupported(enc)) {
+      throw new IllegalArgumentException("Unsupported content encoding: " + encoding);
+    }
+    this.target = target;
+    this.encoding = enc;
+  }
+
+  /**
+   * @return normalized content coding of the body
+   */
+  public String getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Returns the underlying stream for writing bytes that are already encoded
+   * with {@link #getEncoding()}.
+   * @return the underlying stream
+   * @throws IllegalStateException if bytes were already compressed
+   */
+  public OutputStream passThrough() {
+    if (encoder != null) {
+      throw new IllegalStateException("Body is already being compressed");
+    }
+    passedThrough = true;
+    return target;
+  }
+
+  private DeflaterOutputStream encoder() throws IOException {
+    if (passedThrough) {
+      throw new IllegalStateException("Body was passed through already encoded");
+    }
+    if (encoder == null) {
+      encoder = HttpContentEncoding.encode(target, encoding);
+    }
+    return encoder;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    encoder().write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    encoder().write(b, off, len);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (encoder != null) {
+      encoder.flush();
+    } else {
+      target.flush();
+    }
+  }
+
+  /**
+   * Writes out the compression trailer, or an empty compressed stream if
+   * nothing was written, without closing the underlying stream.
+   * @throws IOException
+   */
+  public void finish() throws IOException {
+    if (!passedThrough) {
+      encoder().finish();
+    }
+    target.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    finish();
+    target.close();
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values (latencies in milliseconds,
+ * response sizes in bytes) with logarithmic buckets: every power of two is
+ * split into four buckets, so reported percentiles are at most 25% above the
+ * real value, whatever the magnitude. Recording is a few atomic increments
+ * and the histogram takes a fixed 2 KB.
+ *
+ * @author jakub
+ */
+public class Histogram {
+  private static final int SUB_BITS = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int BUCKETS = 64 * SUB_BUCKETS;
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) Math.max(value, 0);
+    }
+    int exp = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) ((value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+    return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * @return the largest value that falls into the bucket
+   */
+  static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    int sub = bucket % SUB_BUCKETS;
+    return ((SUB_BUCKETS + sub + 1L) << (exp - SUB_BITS)) - 1;
+  }
+
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(bucket(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long m = max.get();
+    while (value > m && !max.compareAndSet(m, value)) {
+      m = max.get();
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getSum() {
+    return sum.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public long getMean() {
+    long n = count.get();
+    return n == 0 ? 0 : sum.get() / n;
+  }
+
+  /**
+   * Returns the value below which the given fraction of the recorded values
+   * fall, rounded up to the bucket boundary and never above the maximum.
+   * @param fraction e.g 0.99 for the 99th percentile
+   * @return percentile, 0 if nothing was recorded
+   */
+  public long getPercentile(double fraction) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(fraction * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(upperBound(i), max.get());
+      }
+    }
+    return max.get();
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Helpers for the HTTP content codings supported by the JDK, 'gzip' and
+ * 'deflate' (zlib format, as mandated by RFC 7230).
+ *
+ * @author jakub
+ */
+public class HttpContentEncoding {
+  public static final String GZIP = "gzip";
+  public static final String DEFLATE = "deflate";
+
+  /**
+   * Normalizes a Content-Encoding value.
+   * @param encoding header value, may be null
+   * @return null for no or 'identity' coding, 'gzip' for 'x-gzip', otherwise
+   * the lower-cased value
+   */
+  public static String normalize(String encoding) {
+    if (encoding == null) {
+      return null;
+    }
+    String enc = encoding.trim().toLowerCase(Locale.ENGLISH);
+    if (enc.isEmpty() || "identity".equals(enc)) {
+      return null;
+    }
+    if ("x-gzip".equals(enc)) {
+      return GZIP;
+    }
+    return enc;
+  }
+
+  /**
+   * @param encoding content coding
+   * @return true if the coding can be decoded and encoded
+   */
+  public static boolean isSupported(String encoding) {
+    String enc = normalize(encoding);
+    return enc == null || GZIP.equals(enc) || DEFLATE.equals(enc);
+  }
+
+  /**
+   * Picks the preferred supported coding from an Accept-Encoding header.
+   * Codings explicitly refused with q=0 are not considered.
+   * @param acceptEncoding header value, may be null
+   * @return 'gzip', 'deflate' or null if neither is acceptable
+   */
+  public static String negotiate(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    boolean gzip = false;
+    boolean deflate = false;
+    for (String part : acceptEncoding.split(",")) {
+      String[] params = part.split(";");
+      String coding = normalize(params[0]);
+      boolean refused = false;
+      for (int i = 1; i < params.length; i++) {
+        String p = params[i].trim();
+        if (p.startsWith("q=")) {
+          try {
+            refused = Double.parseDouble(p.substring(2)) <= 0;
+          } catch (NumberFormatException nfe) {
+            refused = true;
+          }
+        }
+      }
+      if (refused) {
+        continue;
+      }
+      if (GZIP.equals(coding) || "*".equals(coding)) {
+        gzip = true;
+      } else if (DEFLATE.equals(coding)) {
+        deflate = true;
+      }
+    }
+    return gzip ? GZIP : deflate ? DEFLATE : null;
+  }
+
+  /**
+   * Wraps an encoded stream with a decoder. The decoder is created on first
+   * read so that wrapping an empty body (e.g of an error response) is safe.
+   * @param raw encoded stream
+   * @param encoding content coding of the stream
+   * @return decoded stream, the raw stream for no coding
+   */
+  public static InputStream decode(InputStream raw, String encoding) {
+    String enc = normalize(encoding);
+    if (enc == null) {
+      return raw;
+    }
+    if (!isSupported(enc)) {
+      throw new IllegalArgumentException("Unsupported content encoding: " + encoding);
+    }
+    return new LazyDecodingInputStream(raw, enc);
+  }
+
+  /**
+   * Wraps a stream with an encoder, the encoder must be finished or closed to
+   * write out the trailer.
+   * @param target stream receiving encoded bytes
+   * @param encoding content coding
+   * @return encoding stream
+   * @throws IOException
+   */
+  public static DeflaterOutputStream encode(OutputStream target, String encoding)
+    throws IOException {
+    String enc = normalize(encoding);
+    if (GZIP.equals(enc)) {
+      return new GZIPOutputStream(target);
+    } else if (DEFLATE.equals(enc)) {
+      return new DeflaterOutputStream(target);
+    }
+    throw new IllegalArgumentException("Unsupported content encoding: " + encoding);
+  }
+
+  private static class LazyDecodingInputStream extends InputStream {
+    private final InputStream raw;
+    private final String encoding;
+    private InputStream decoder;
+
+    LazyDecodingInputStream(InputStream raw, String encoding) {
+      this.raw = raw;
+      this.encoding = encoding;
+    }
+
+    private InputStream decoder() throws IOException {
+      if (decoder == null) {
+        decoder = GZIP.equals(encoding)
+          ? new GZIPInputStream(raw)
+          : new InflaterInputStream(raw);
+      }
+      return decoder;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return decoder().read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return decoder().read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+      return decoder == null ? 0 : decoder.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (decoder != null) {
+        decoder.close();
+      } else {
+        raw.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Input stream that copies every byte read from the underlying stream to a
+ * branch output stream. Allows a consumer (e.g an XML parser) to read a
+ * response while the very same bytes are relayed elsewhere, in one pass.
+ * <p/>
+ * Closing the stream first copies any bytes the consumer did not read to the
+ * branch, so the branch always receives the complete input.
+ *
+ * @author jakub
+ */
+public class TeeInputStream extends FilterInputStream {
+  private final OutputStream branch;
+  private boolean closed = false;
+
+  public TeeInputStream(InputStream in, OutputStream branch) {
+    super(in);
+    this.branch = branch;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = in.read();
+    if (b != -1) {
+      branch.write(b);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int n = in.read(b, off, len);
+    if (n > 0) {
+      branch.write(b, off, n);
+    }
+    return n;
+  }
+
+  /**
+   * Skipped bytes are read and copied to the branch as well.
+   */
+  @Override
+  public long skip(long n) throws IOException {
+    byte[] buf = new byte[(int) Math.min(n, 4096)];
+    long skipped = 0;
+    while (skipped < n) {
+      int len = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+      if (len == -1) {
+        break;
+      }
+      skipped += len;
+    }
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public synchronized void mark(int readlimit) {
+  }
+
+  @Override
+  public synchronized void reset() throws IOException {
+    throw new IOException("mark/reset not supported");
+  }
+
+  /**
+   * Copies the remainder of the input to the branch and closes the input.
+   * The branch is left open.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      byte[] buf = new byte[4096];
+      while (read(buf, 0, buf.length) != -1) {
+        //copied by read
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
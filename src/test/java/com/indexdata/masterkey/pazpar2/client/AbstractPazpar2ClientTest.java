@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jakub
+ */
+public class AbstractPazpar2ClientTest {
+  private static final String URL = "http://localhost/pazpar2/search.pz2";
+
+  /**
+   * Answers show with a growing hit count and record with a fixed record.
+   */
+  private static class ProgressTransport implements Pazpar2Transport {
+    final List<String> urls = new ArrayList<String>();
+    int shows = 0;
+    //stat requests in flight and the most seen at once
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    //holds stat requests until opened, if set
+    volatile CountDownLatch gate = null;
+
+    @Override
+    public Response get(String url) throws IOException {
+      return get(url, 0);
+    }
+
+    @Override
+    public Response get(String url, int readTimeout) throws IOException {
+      if (url.contains("command=stat")) {
+        int n = inFlight.incrementAndGet();
+        maxInFlight.set(Math.max(maxInFlight.get(), n));
+        try {
+          if (gate != null) {
+            gate.await(5, TimeUnit.SECONDS);
+          }
+          Thread.sleep(20);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+        }
+        inFlight.decrementAndGet();
+      }
+      return respond(url);
+    }
+
+    private synchronized Response respond(String url) {
+      urls.add(url);
+      final String body;
+      if (url.contains("command=show")) {
+        shows++;
+        body = "<show><status>OK</status><activeclients>1</activeclients><merged>"
+          + shows * 10 + "</merged><total>" + shows * 10 + "</total></show>";
+      } else {
+        body = "<record><recid>r1</recid></record>";
+      }
+      return new Response() {
+        @Override
+        public int getStatusCode() {
+          return 200;
+        }
+        @Override
+        public String getHeader(String name) {
+          return "Content-Type".equalsIgnoreCase(name) ? "text/xml" : null;
+        }
+        @Override
+        public InputStream getBody() throws IOException {
+          return new ByteArrayInputStream(body.getBytes("UTF-8"));
+        }
+        @Override
+        public void release() {
+        }
+      };
+    }
+
+    @Override
+    public Response post(String url, String entity, String contentType)
+      throws IOException {
+      return get(url);
+    }
+
+    @Override
+    public Response post(String url, String entity, String contentType,
+      int readTimeout) throws IOException {
+      return get(url, readTimeout);
+    }
+
+    synchronized int count(String command) {
+      int n = 0;
+      for (String url : urls) {
+        if (url.contains("command=" + command)) {
+          n++;
+        }
+      }
+      return n;
+    }
+  }
+
+  private static Pazpar2ClientGeneric client(ProgressTransport transport)
+    throws Exception {
+    Pazpar2ClientConfiguration cfg = new Pazpar2ClientConfiguration(null);
+    cfg.PAZPAR2_URL = URL;
+    cfg.PAZPAR2_RECORD_CACHE = 1024 * 1024;
+    cfg.STREAMBUFF_SIZE = 4096;
+    Pazpar2ClientGeneric client = new Pazpar2ClientGeneric(cfg);
+    client.setTransport(transport);
+    client.pazpar2Session.setSessionId("1234");
+    client.pazpar2Session.setPazpar2Url(URL);
+    return client;
+  }
+
+  @Test
+  public void testShowIsNeverCached() throws Exception {
+    ProgressTransport transport = new ProgressTransport();
+    Pazpar2ClientGeneric client = client(transport);
+    Document first = client.showRequest();
+    Document second = client.showRequest();
+    assertEquals("both shows sent upstream", 2, transport.count("show"));
+    assertEquals("10", first.getElementsByTagName("merged").item(0).getTextContent());
+    assertEquals("20", second.getElementsByTagName("merged").item(0).getTextContent());
+  }
+
+  @Test
+  public void testAsyncCommandsRunInOrder() throws Exception {
+    ProgressTransport transport = new ProgressTransport();
+    Pazpar2ClientGeneric client = client(transport);
+    List<CompletableFuture<Pazpar2HttpResponse>> futures =
+      new ArrayList<CompletableFuture<Pazpar2HttpResponse>>();
+    for (int i = 0; i < 4; i++) {
+      futures.add(client.executeCommandAsync(new ClientCommand("stat",
+        "command=stat"), new ByteArrayOutputStream()));
+    }
+    for (CompletableFuture<Pazpar2HttpResponse> f : futures) {
+      f.get(5, TimeUnit.SECONDS);
+    }
+    assertEquals(4, transport.count("stat"));
+    assertEquals("one command of a client at a time", 1, transport.maxInFlight.get());
+  }
+
+  @Test
+  public void testAsyncQueueIsBounded() throws Exception {
+    ProgressTransport transport = new ProgressTransport();
+    transport.gate = new CountDownLatch(1);
+    List<CompletableFuture<Pazpar2HttpResponse>> futures =
+      new ArrayList<CompletableFuture<Pazpar2HttpResponse>>();
+    for (int i = 0; i < 3; i++) {
+      Pazpar2ClientGeneric client = client(transport);
+      //a pool of its own, not the one of the default configuration
+      client.getConfiguration().PAZPAR2_ASYNC_THREADS = 1;
+      client.getConfiguration().PAZPAR2_ASYNC_QUEUE = 1;
+      futures.add(client.executeCommandAsync(new ClientCommand("stat",
+        "command=stat"), new ByteArrayOutputStream()));
+      long until = System.currentTimeMillis() + 5000;
+      while (i == 0 && transport.inFlight.get() == 0
+        && System.currentTimeMillis() < until) {
+        Thread.sleep(5);
+      }
+    }
+    try {
+      futures.get(2).get(1, TimeUnit.SECONDS);
+      fail("queue full, must be rejected");
+    } catch (ExecutionException ee) {
+      assertTrue(ee.getCause() instanceof RejectedExecutionException);
+    }
+    transport.gate.countDown();
+    futures.get(0).get(5, TimeUnit.SECONDS);
+    futures.get(1).get(5, TimeUnit.SECONDS);
+    assertEquals(2, transport.count("stat"));
+    Pazpar2ClientConfiguration small = new Pazpar2ClientConfiguration(null);
+    small.PAZPAR2_ASYNC_THREADS = 1;
+    small.PAZPAR2_ASYNC_QUEUE = 1;
+    Pazpar2ClientConfiguration same = new Pazpar2ClientConfiguration(null);
+    same.PAZPAR2_ASYNC_THREADS = 1;
+    same.PAZPAR2_ASYNC_QUEUE = 1;
+    //shared by configurations with the same values
+    assertSame(AbstractPazpar2Client.getAsyncExecutor(small),
+      AbstractPazpar2Client.getAsyncExecutor(same));
+    assertNotSame(AbstractPazpar2Client.getAsyncExecutor(small),
+      AbstractPazpar2Client.getAsyncExecutor(new Pazpar2ClientConfiguration(null)));
+  }
+
+  @Test
+  public void testRecordIsCached() throws Exception {
+    ProgressTransport transport = new ProgressTransport();
+    Pazpar2ClientGeneric client = client(transport);
+    client.recordRequest("r1", 0);
+    client.recordRequest("r1", 0);
+    assertEquals(1, transport.count("record"));
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.w3c.dom.Document;
+
+/**
+ *
+ * @author jakub
+ */
+public class CachedResultTest {
+
+  private static CachedResult capture(String xml) throws IOException {
+    return CachedResult.capture(new ByteArrayInputStream(xml.getBytes("UTF-8")),
+      new byte[3]);
+  }
+
+  @Test
+  public void testLazyParse() throws IOException {
+    String xml = "<show><hit><recid>r1</recid></hit><hit><recid>r2</recid></hit></show>";
+    CachedResult result = capture(xml);
+    assertEquals("exact size", xml.length(), result.getBytes().length);
+    Document doc = result.getDocument();
+    assertEquals("show", doc.getDocumentElement().getNodeName());
+    assertSame(doc, result.getDocument());
+    HitIndex index = result.getHitIndex();
+    assertTrue(index.contains("r2"));
+    assertSame(index, result.getHitIndex());
+    CachedResult other = capture("<stat/>");
+    assertEquals("capture buffer reset between responses", 7, other.getBytes().length);
+  }
+
+  @Test
+  public void testMalformed() throws IOException {
+    CachedResult result = capture("<show><hit>");
+    assertNull(result.getDocument());
+    assertNull(result.getHitIndex());
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jakub
+ */
+public class CircuitBreakingPazpar2TransportTest {
+  private static final String URL = "http://localhost/pazpar2/search.pz2";
+
+  /**
+   * Fails every request while down, records URLs and read timeouts.
+   */
+  private static class FlakyTransport implements Pazpar2Transport {
+    final List<String> urls = new ArrayList<String>();
+    final List<Integer> timeouts = new ArrayList<Integer>();
+    boolean down = false;
+
+    @Override
+    public Response get(String url) throws IOException {
+      return get(url, 0);
+    }
+
+    @Override
+    public Response get(String url, int readTimeout) throws IOException {
+      urls.add(url);
+      timeouts.add(readTimeout);
+      if (down) {
+        throw new IOException("Connection refused");
+      }
+      return new Response() {
+        @Override
+        public int getStatusCode() {
+          return 200;
+        }
+        @Override
+        public String getHeader(String name) {
+          return null;
+        }
+        @Override
+        public InputStream getBody() throws IOException {
+          return new ByteArrayInputStream(new byte[0]);
+        }
+        @Override
+        public void release() {
+        }
+      };
+    }
+
+    @Override
+    public Response post(String url, String entity, String contentType)
+      throws IOException {
+      return get(url);
+    }
+
+    @Override
+    public Response post(String url, String entity, String contentType,
+      int readTimeout) throws IOException {
+      return get(url, readTimeout);
+    }
+  }
+
+  @Test
+  public void testOpenAndProbe() throws Exception {
+    FlakyTransport flaky = new FlakyTransport();
+    CircuitBreakingPazpar2Transport transport =
+      new CircuitBreakingPazpar2Transport(flaky, 2, 50, 3, 100, 0);
+    flaky.down = true;
+    for (int i = 0; i < 2; i++) {
+      try {
+        transport.get(URL + "?command=stat&session=1");
+        fail("expected failure");
+      } catch (IOException ioe) {
+        assertFalse(ioe instanceof CircuitBreakingPazpar2Transport.CircuitOpenException);
+      }
+    }
+    CircuitBreaker cb = transport.getBreaker(URL);
+    assertEquals(CircuitBreaker.State.OPEN, cb.getState());
+    int sent = flaky.urls.size();
+    try {
+      transport.get(URL + "?command=show&session=1");
+      fail("expected fail fast");
+    } catch (CircuitBreakingPazpar2Transport.CircuitOpenException coe) {
+    }
+    assertEquals("not sent while open", sent, flaky.urls.size());
+    assertEquals(1, cb.getRejected());
+    Thread.sleep(60);
+    flaky.down = false;
+    transport.get(URL + "?command=show&session=1").release();
+    assertEquals(URL + "?command=ping", flaky.urls.get(sent));
+    assertEquals(CircuitBreaker.State.CLOSED, cb.getState());
+    assertEquals(1, cb.getTrips());
+  }
+
+  @Test
+  public void testBlockingRequestsNotTracked() throws Exception {
+    FlakyTransport flaky = new FlakyTransport();
+    CircuitBreakingPazpar2Transport transport =
+      new CircuitBreakingPazpar2Transport(flaky, 2, 50, 3, 100, 5000);
+    for (int i = 0; i < CircuitBreaker.MIN_SAMPLES; i++) {
+      transport.get(URL + "?command=show&session=1&block=1").release();
+    }
+    CircuitBreaker cb = transport.getBreaker(URL);
+    assertEquals("no latency samples", -1, cb.getP99());
+    assertEquals("no adaptive timeout", Integer.valueOf(0), flaky.timeouts.get(0));
+    flaky.down = true;
+    for (int i = 0; i < 3; i++) {
+      try {
+        transport.get(URL + "?command=stat&session=1&block=1");
+        fail("expected failure");
+      } catch (IOException ioe) {
+      }
+    }
+    assertEquals("failures not counted", CircuitBreaker.State.CLOSED, cb.getState());
+    assertFalse(CircuitBreakingPazpar2Transport.isBlocking(URL + "?command=show&block=10"));
+  }
+
+  @Test
+  public void testAdaptiveTimeout() {
+    CircuitBreaker cb = new CircuitBreaker(URL, 0, 1000, 3, 100, 5000);
+    assertEquals("no data yet, upper bound", 5000, cb.getTimeout(0));
+    assertEquals("explicit timeout wins", 42, cb.getTimeout(42));
+    for (int i = 0; i < 100; i++) {
+      cb.succeeded(i < 99 ? 10 : 1000);
+    }
+    assertEquals(10, cb.getP99());
+    assertEquals("clamped to the minimum", 100, cb.getTimeout(0));
+    for (int i = 0; i < 10; i++) {
+      cb.succeeded(1000);
+    }
+    assertEquals(1000, cb.getP99());
+    assertEquals(3000, cb.getTimeout(0));
+    cb.failed();
+    assertEquals("never opens", CircuitBreaker.State.CLOSED, cb.getState());
+  }
+}
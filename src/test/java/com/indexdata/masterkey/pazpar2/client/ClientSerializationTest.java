@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Round trip and size/time benchmark of the externalized client state, as
+ * replicated with the HTTP session.
+ *
+ * @author jakub
+ */
+public class ClientSerializationTest {
+  private static final int ROUNDS = 1000;
+
+  private static byte[] serialize(Object o) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(bos);
+    oos.writeObject(o);
+    oos.close();
+    return bos.toByteArray();
+  }
+
+  private static Object deserialize(byte[] bytes) throws IOException,
+    ClassNotFoundException {
+    return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+  }
+
+  private static ClientCommand search(String query, String filter) {
+    Map<String, String[]> params = new HashMap<String, String[]>();
+    params.put("command", new String[] {"search"});
+    params.put("query", new String[] {query});
+    params.put("recordfilter", new String[] {filter});
+    return new ClientCommand(params, "command=search&query=" + query
+      + "&recordfilter=" + filter);
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    Pazpar2ClientGeneric client = new Pazpar2ClientGeneric(
+      new Pazpar2ClientConfiguration(null));
+    client.setSearchCommand(search("water", "date~2010"));
+    client.setSearchCommand(search("fire", "date~2010[id=t1]"));
+    client.pazpar2Session.setSessionId("123456789");
+    client.pazpar2Session.setPazpar2Url("http://localhost:8004/pazpar2/search.pz2");
+    byte[] bytes = null;
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      bytes = serialize(client);
+    }
+    long written = System.nanoTime() - start;
+    Pazpar2ClientGeneric copy = null;
+    start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      copy = (Pazpar2ClientGeneric) deserialize(bytes);
+    }
+    long read = System.nanoTime() - start;
+    System.out.println("Externalized client: " + bytes.length + " bytes, write "
+      + written / ROUNDS / 1000 + " us, read " + read / ROUNDS / 1000 + " us");
+    assertTrue("no results, timestamps or DOM", bytes.length < 4096);
+    assertEquals("123456789", copy.getSessionId());
+    assertEquals("http://localhost:8004/pazpar2/search.pz2", copy.getPazpar2Url());
+    assertEquals(2, copy.getSearchCount());
+    ClientCommand latest = copy.getSearchCommand();
+    assertEquals("command=search&query=fire&recordfilter=date~2010[id=t1]",
+      latest.getQueryString());
+    assertEquals("date~2010", latest.getRecordFilter());
+    assertEquals("id=t1", latest.getRecordFilterTargetCriteria());
+    assertTrue(copy.pazpar2Session.recordFilterChanged());
+    assertFalse(copy.pazpar2Session.torusQueryChanged());
+    assertEquals(client.getConfiguration().PAZPAR2_URL, copy.getConfiguration().PAZPAR2_URL);
+  }
+}
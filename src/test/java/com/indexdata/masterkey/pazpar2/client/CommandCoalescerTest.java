@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jakub
+ */
+public class CommandCoalescerTest {
+
+  @Test
+  public void testInFlight() throws InterruptedException {
+    CommandCoalescer coalescer = new CommandCoalescer(0);
+    CommandCoalescer.Flight leader = coalescer.join("s1|command=stat");
+    assertTrue(leader.isLeader());
+    CommandCoalescer.Flight follower = coalescer.join("s1|command=stat");
+    assertFalse(follower.isLeader());
+    assertTrue("other session", coalescer.join("s2|command=stat").isLeader());
+    assertFalse("not done yet", follower.await(1));
+    coalescer.complete("s1|command=stat", leader, new byte[] {1}, "text/xml");
+    assertTrue(follower.await(1));
+    assertArrayEquals(new byte[] {1}, follower.getBody());
+    assertEquals("text/xml", follower.getContentType());
+    assertTrue("no window, executed again",
+      coalescer.join("s1|command=stat").isLeader());
+    assertEquals(3, coalescer.getExecuted());
+    assertEquals(1, coalescer.getCoalesced());
+  }
+
+  @Test
+  public void testWindowAndFailure() throws InterruptedException {
+    CommandCoalescer coalescer = new CommandCoalescer(50);
+    CommandCoalescer.Flight leader = coalescer.join("k");
+    coalescer.complete("k", leader, new byte[0], "text/xml");
+    CommandCoalescer.Flight fresh = coalescer.join("k");
+    assertFalse(fresh.isLeader());
+    assertTrue(fresh.await(0));
+    Thread.sleep(60);
+    leader = coalescer.join("k");
+    assertTrue("stale, executed again", leader.isLeader());
+    CommandCoalescer.Flight follower = coalescer.join("k");
+    coalescer.fail("k", leader);
+    assertFalse("leader failed", follower.await(1));
+    assertEquals(1, coalescer.getFailedLeaders());
+    assertTrue(coalescer.join("k").isLeader());
+  }
+
+  @Test
+  public void testResponsesDroppedAfterWindow() throws InterruptedException {
+    CommandCoalescer coalescer = new CommandCoalescer(50);
+    for (int i = 0; i < 5; i++) {
+      String key = "s" + i + "|command=show";
+      coalescer.complete(key, coalescer.join(key), new byte[1024], "text/xml");
+    }
+    assertEquals(5, coalescer.getFlights());
+    //no further joins, the sweep alone lets go of the bytes
+    long until = System.currentTimeMillis() + 2000;
+    while (coalescer.getFlights() > 0 && System.currentTimeMillis() < until) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, coalescer.getFlights());
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.io.StringReader;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import static org.junit.Assert.*;
+
+import com.indexdata.utils.XmlUtils;
+
+/**
+ *
+ * @author jakub
+ */
+public class HitIndexTest {
+
+  @Test
+  public void testLookup() throws Exception {
+    Document show = XmlUtils.parse(new StringReader(
+      "<show><status>OK</status>"
+      + "<hit><md-title>one</md-title><recid>content: title one</recid></hit>"
+      + "<hit><md-title>two</md-title><recid>content: title two</recid></hit>"
+      + "<hit><recid>dup</recid></hit><hit><recid>dup</recid></hit>"
+      + "</show>"));
+    HitIndex index = new HitIndex(show);
+    assertTrue(index.isFor(show));
+    assertEquals(3, index.size());
+    assertEquals("two", index.get("content: title two").getFirstChild().getTextContent());
+    assertNull(index.get("content: title three"));
+    assertNull("ambiguous", index.get("dup"));
+    assertTrue(index.contains("dup"));
+    assertFalse(index.contains("content: title three"));
+  }
+}
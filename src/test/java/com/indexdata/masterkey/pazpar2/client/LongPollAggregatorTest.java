@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.indexdata.utils.HttpContentEncoding;
+import com.indexdata.utils.XmlUtils;
+
+/**
+ *
+ * @author jakub
+ */
+public class LongPollAggregatorTest {
+
+  /**
+   * Answers 'stat' with a hit count that is raised by the test.
+   */
+  private static class StatTransport implements Pazpar2Transport {
+    final AtomicInteger hits = new AtomicInteger();
+    //content coding of the answers, null for none
+    String encoding = null;
+
+    @Override
+    public Response get(String url) throws IOException {
+      return get(url, 0);
+    }
+
+    @Override
+    public Response get(String url, int readTimeout) throws IOException {
+      final byte[] body = encode(stat(1, hits.get(), 0).getBytes(StandardCharsets.UTF_8));
+      return new Response() {
+        @Override
+        public int getStatusCode() {
+          return 200;
+        }
+        @Override
+        public String getHeader(String name) {
+          return "Content-Encoding".equalsIgnoreCase(name) ? encoding : null;
+        }
+        @Override
+        public InputStream getBody() throws IOException {
+          return new ByteArrayInputStream(body);
+        }
+        @Override
+        public void release() {
+        }
+      };
+    }
+
+    private byte[] encode(byte[] plain) throws IOException {
+      if (encoding == null) {
+        return plain;
+      }
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      DeflaterOutputStream dos = HttpContentEncoding.encode(bos, encoding);
+      dos.write(plain);
+      dos.finish();
+      return bos.toByteArray();
+    }
+
+    @Override
+    public Response post(String url, String entity, String contentType)
+      throws IOException {
+      return get(url);
+    }
+
+    @Override
+    public Response post(String url, String entity, String contentType,
+      int readTimeout) throws IOException {
+      return get(url);
+    }
+  }
+
+  /**
+   * Holds every poll until released, like pazpar2 with block=1.
+   */
+  private static class BlockingTransport extends StatTransport {
+    final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    public Response get(String url, int readTimeout) throws IOException {
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      return super.get(url, readTimeout);
+    }
+  }
+
+  private static String stat(int active, int hits, int records) {
+    return "<stat><activeclients>" + active + "</activeclients><hits>" + hits
+      + "</hits><records>" + records + "</records><clients>1</clients></stat>";
+  }
+
+  @Test
+  public void testProgressOf() throws Exception {
+    assertEquals("activeclients=2;hits=10;records=5;", LongPollAggregator.progressOf(
+      XmlUtils.parse(new ByteArrayInputStream(stat(2, 10, 5).getBytes("UTF-8")))));
+  }
+
+  @Test
+  public void testWakeOnProgress() throws Exception {
+    LongPollAggregator aggregator = new LongPollAggregator(2, 10);
+    StatTransport transport = new StatTransport();
+    String first = aggregator.awaitProgress("http://localhost/pazpar2", "1",
+      transport, null, 1000).get(1, TimeUnit.SECONDS);
+    assertEquals("activeclients=1;hits=0;records=0;", first);
+    CompletableFuture<String> a = aggregator.awaitProgress("http://localhost/pazpar2",
+      "1", transport, first, 5000);
+    CompletableFuture<String> b = aggregator.awaitProgress("http://localhost/pazpar2",
+      "1", transport, first, 5000);
+    Thread.sleep(50);
+    assertFalse("no progress yet", a.isDone());
+    transport.hits.set(7);
+    assertEquals("activeclients=1;hits=7;records=0;", a.get(1, TimeUnit.SECONDS));
+    assertEquals("activeclients=1;hits=7;records=0;", b.get(1, TimeUnit.SECONDS));
+    assertEquals(3, aggregator.getWoken());
+    assertEquals(3, aggregator.getParked());
+  }
+
+  @Test
+  public void testGzipEncodedStat() throws Exception {
+    LongPollAggregator aggregator = new LongPollAggregator(1, 10);
+    StatTransport transport = new StatTransport();
+    transport.encoding = "gzip";
+    String first = aggregator.awaitProgress("http://localhost/pazpar2", "3",
+      transport, null, 1000).get(1, TimeUnit.SECONDS);
+    assertEquals("activeclients=1;hits=0;records=0;", first);
+    CompletableFuture<String> waiting = aggregator.awaitProgress(
+      "http://localhost/pazpar2", "3", transport, first, 5000);
+    Thread.sleep(50);
+    assertFalse("parked, not released by a parse failure", waiting.isDone());
+    transport.hits.set(3);
+    assertEquals("activeclients=1;hits=3;records=0;", waiting.get(1, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testDeadline() throws Exception {
+    LongPollAggregator aggregator = new LongPollAggregator(1, 10);
+    StatTransport transport = new StatTransport();
+    String baseline = "activeclients=1;hits=0;records=0;";
+    assertEquals(baseline, aggregator.awaitProgress("http://localhost/pazpar2", "2",
+      transport, baseline, 50).get(1, TimeUnit.SECONDS));
+    assertEquals(1, aggregator.getExpired());
+  }
+
+  @Test
+  public void testDeadlinesWithAllPollersBlocked() throws Exception {
+    LongPollAggregator aggregator = new LongPollAggregator(2, 10);
+    BlockingTransport transport = new BlockingTransport();
+    try {
+      List<CompletableFuture<String>> waiters = new ArrayList<CompletableFuture<String>>();
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < 6; i++) {
+        waiters.add(aggregator.awaitProgress("http://localhost/pazpar2", "s" + i,
+          transport, null, 100));
+      }
+      for (CompletableFuture<String> w : waiters) {
+        assertNull("released by its deadline, no progress known",
+          w.get(1, TimeUnit.SECONDS));
+      }
+      long elapsed = System.currentTimeMillis() - start;
+      assertTrue("deadlines fired late: " + elapsed + " ms", elapsed < 500);
+      assertEquals(6, aggregator.getExpired());
+    } finally {
+      transport.release.countDown();
+    }
+  }
+}
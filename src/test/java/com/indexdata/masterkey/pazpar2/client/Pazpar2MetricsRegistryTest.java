@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jakub
+ */
+public class Pazpar2MetricsRegistryTest {
+  private static final String URL = "http://localhost/pazpar2/search.pz2";
+
+  /**
+   * Answers with the given status and a body of the given size, or fails.
+   */
+  private static class FixedTransport implements Pazpar2Transport {
+    int status = 200;
+    int size = 0;
+    boolean down = false;
+
+    @Override
+    public Response get(String url) throws IOException {
+      return get(url, 0);
+    }
+
+    @Override
+    public Response get(String url, int readTimeout) throws IOException {
+      if (down) {
+        throw new IOException("Connection refused");
+      }
+      final int sc = status;
+      final byte[] body = new byte[size];
+      return new Response() {
+        @Override
+        public int getStatusCode() {
+          return sc;
+        }
+        @Override
+        public String getHeader(String name) {
+          return null;
+        }
+        @Override
+        public InputStream getBody() throws IOException {
+          return new ByteArrayInputStream(body);
+        }
+        @Override
+        public void release() {
+        }
+      };
+    }
+
+    @Override
+    public Response post(String url, String entity, String contentType)
+      throws IOException {
+      return get(url);
+    }
+
+    @Override
+    public Response post(String url, String entity, String contentType,
+      int readTimeout) throws IOException {
+      return get(url, readTimeout);
+    }
+  }
+
+  @Test
+  public void testCommand() {
+    assertEquals("show", MeteredPazpar2Transport.command(URL + "?command=show&session=1"));
+    assertEquals("init", MeteredPazpar2Transport.command(URL + "?session=1&command=init"));
+    assertEquals("unknown", MeteredPazpar2Transport.command(URL + "?xcommand=show"));
+    assertEquals("unknown", MeteredPazpar2Transport.command(URL));
+  }
+
+  @Test
+  public void testRecorded() throws Exception {
+    FixedTransport fixed = new FixedTransport();
+    Pazpar2MetricsRegistry registry = new Pazpar2MetricsRegistry();
+    MeteredPazpar2Transport transport = new MeteredPazpar2Transport(fixed, registry);
+    fixed.size = 1000;
+    InputStream is = transport.get(URL + "?command=show&session=1").getBody();
+    byte[] buf = new byte[64];
+    while (is.read(buf) != -1) {
+    }
+    is.close();
+    fixed.size = 10;
+    transport.get(URL + "?command=show&session=1").release();
+    fixed.status = 417;
+    transport.post(URL + "?command=settings&session=1", "<settings/>",
+      "text/xml").release();
+    fixed.down = true;
+    try {
+      transport.get(URL + "?command=show&session=1");
+      fail("expected failure");
+    } catch (IOException ioe) {
+    }
+    assertEquals(2, registry.getLatency("show").getCount());
+    assertEquals("released body counts what was read", 2,
+      registry.getSize("show").getCount());
+    assertEquals(1000, registry.getSize("show").getMax());
+    assertEquals(1, registry.getLatency("settings").getCount());
+    assertNull(registry.getLatency("termlist"));
+    assertEquals(2, registry.getStatusCount(200));
+    assertEquals(1, registry.getStatusCount(417));
+    Map<String, Object> snapshot = registry.snapshot();
+    assertEquals(1L, snapshot.get("command.show.failures"));
+    assertEquals(1L, snapshot.get("failure.IOException"));
+    assertEquals(3L, snapshot.get("endpoint." + URL + ".latency.count"));
+    assertTrue(snapshot.containsKey("command.show.latency.p99"));
+  }
+
+  @Test
+  public void testExport() throws Exception {
+    Pazpar2MetricsRegistry registry = new Pazpar2MetricsRegistry();
+    registry.addSource(new Pazpar2MetricsRegistry.Source() {
+      @Override
+      public void collect(Map<String, Object> into) {
+        into.put("test.value", 42L);
+      }
+    });
+    ObjectName name = new ObjectName(Pazpar2MetricsRegistry.JMX_DOMAIN
+      + ":type=Pazpar2Client,pazpar2=test");
+    registry.export(name);
+    try {
+      assertEquals(42L, ManagementFactory.getPlatformMBeanServer()
+        .getAttribute(name, "test.value"));
+    } finally {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    }
+  }
+}
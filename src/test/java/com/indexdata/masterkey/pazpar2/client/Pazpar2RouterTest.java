@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jakub
+ */
+public class Pazpar2RouterTest {
+  private static final String A = "http://a/pazpar2/search.pz2";
+  private static final String B = "http://b/pazpar2/search.pz2";
+
+  @Test
+  public void testLeastSessions() {
+    Pazpar2Router router = new Pazpar2Router(Arrays.asList(A, B), null,
+      new Pazpar2Router.LeastSessionsPolicy(), 60000);
+    assertTrue(router.isMultiBackend());
+    router.touched(A, "1");
+    assertEquals(B, router.place(null));
+    router.touched(B, "2");
+    router.touched(B, "3");
+    assertEquals(A, router.place(null));
+    router.markDown(A);
+    assertEquals("down endpoint avoided", B, router.place(null));
+    router.markDown(B);
+    assertNotNull("all down, still placed", router.place(null));
+  }
+
+  @Test
+  public void testRealmHash() {
+    Pazpar2Router router = new Pazpar2Router(Arrays.asList(A, B), null,
+      new Pazpar2Router.RealmHashPolicy(), 60000);
+    String first = router.place("realm1");
+    for (int i = 0; i < 10; i++) {
+      assertEquals("sticky per realm", first, router.place("realm1"));
+    }
+    router.markDown(first);
+    assertFalse(first.equals(router.place("realm1")));
+  }
+
+  @Test
+  public void testIdleSessionsPruned() {
+    //pruned on use, not only by the least-sessions policy
+    Pazpar2Router.Backend backend = new Pazpar2Router.Backend(A, 1);
+    long now = 1000000;
+    backend.touched("1", now);
+    backend.touched("2", now);
+    assertEquals(2, backend.getTrackedSessions());
+    now += Pazpar2Router.SESSION_WINDOW + Pazpar2Router.PRUNE_INTERVAL;
+    backend.touched("3", now);
+    assertEquals("idle sessions dropped", 1, backend.getTrackedSessions());
+  }
+
+  @Test
+  public void testWeightsAndParsing() {
+    List<String> urls = Pazpar2Router.parseList(A + ", " + B, null);
+    assertEquals(Arrays.asList(A, B), urls);
+    assertEquals(Arrays.asList(A), Pazpar2Router.parseList(null, A));
+    Pazpar2Router router = new Pazpar2Router(urls, Pazpar2Router.parseWeights("0 1"),
+      Pazpar2Router.createPolicy("weighted"), 60000);
+    for (int i = 0; i < 10; i++) {
+      assertEquals("zero weight never chosen", B, router.place(null));
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jakub
+ */
+public class Pazpar2SessionPoolTest {
+
+  private static class CountingFactory implements Pazpar2SessionPool.Factory {
+    final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Pazpar2SessionPool.PooledSession create() throws Exception {
+      return new Pazpar2SessionPool.PooledSession("http://localhost/pazpar2",
+        Integer.toString(count.incrementAndGet()), null);
+    }
+  }
+
+  @Test
+  public void testDemandSizing() {
+    Pazpar2SessionPool pool = new Pazpar2SessionPool(2, 60000, 0);
+    CountingFactory factory = new CountingFactory();
+    assertNull("cold pool", pool.take("realm", factory));
+    pool.refill();
+    assertEquals(1, pool.getIdle("realm"));
+    assertEquals("1", pool.take("realm", factory).getSessionId());
+    assertNull(pool.take("realm", factory));
+    assertNull(pool.take("realm", factory));
+    pool.refill();
+    assertEquals("capped by the pool size", 2, pool.getIdle("realm"));
+    pool.refill();
+    assertEquals("no demand, kept while target decays", 2, pool.getIdle("realm"));
+    assertEquals(3, factory.count.get());
+    assertEquals(1, pool.getHits());
+    assertEquals(3, pool.getMisses());
+  }
+
+  @Test
+  public void testExpiry() throws InterruptedException {
+    Pazpar2SessionPool pool = new Pazpar2SessionPool(1, 20, 0);
+    CountingFactory factory = new CountingFactory();
+    pool.take("realm", factory);
+    pool.refill();
+    Thread.sleep(30);
+    assertNull("too old to hand out", pool.take("realm", factory));
+    assertEquals(1, pool.getExpired());
+    pool.refill();
+    assertNotNull(pool.take("realm", factory));
+  }
+}
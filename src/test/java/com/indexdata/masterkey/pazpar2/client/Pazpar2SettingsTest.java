@@ -14,11 +14,15 @@ import com.indexdata.torus.layer.KeyValue;
 import com.indexdata.torus.layer.SearchableTypeLayer;
 import com.indexdata.utils.XmlUtils;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import javax.xml.transform.TransformerException;
 import org.junit.*;
 import static org.junit.Assert.*;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
 /**
  *
@@ -243,6 +247,31 @@ public class Pazpar2SettingsTest {
     assertEquals("test-target.com:8888/,some=other", zurl6);
   }
   
+  @Test
+  public void testRecordFilterDelta() throws ProxyErrorException {
+    Pazpar2Settings settings = new Pazpar2Settings(new Pazpar2ClientConfiguration(null));
+    settings.setSetting("t1", "pz:url", "t1.com", null);
+    settings.setSetting("t2", "pz:url", "t2.com", null);
+    settings.setSetting("t3", "pz:url", "t3.com", null);
+    settings.setRecordFilter("date~2010", "t1,t2");
+    Map<String, String> applied = settings.getRecordFilters();
+    assertEquals(2, applied.size());
+    assertNull("nothing changed", settings.recordFilterDelta(applied));
+    settings.setRecordFilter("date~2010", "t2,t3");
+    NodeList sets = settings.recordFilterDelta(applied).getElementsByTagName("set");
+    assertEquals(2, sets.getLength());
+    for (int i = 0; i < sets.getLength(); i++) {
+      Element set = (Element) sets.item(i);
+      assertEquals("pz:recordfilter", set.getAttribute("name"));
+      if ("t1".equals(set.getAttribute("target"))) {
+        assertEquals("unset", "", set.getAttribute("value"));
+      } else {
+        assertEquals("t3", set.getAttribute("target"));
+        assertEquals("date~2010", set.getAttribute("value"));
+      }
+    }
+  }
+
   private SearchableTypeLayer layer(List<Record> records) {
     Record record = new Record("searchable");
     records.add(record);
@@ -252,4 +281,23 @@ public class Pazpar2SettingsTest {
     layers.add(layer);
     return layer;
   }
+
+  @Test
+  public void testFingerprint() throws ProxyErrorException {
+    Pazpar2Settings a = new Pazpar2Settings(new Pazpar2ClientConfiguration(null));
+    a.setSetting("t1", "pz:url", "host:210/db", null);
+    Pazpar2Settings b = new Pazpar2Settings(new Pazpar2ClientConfiguration(null));
+    b.setSetting("t1", "pz:url", "host:210/db", null);
+    assertEquals("SHA-256", 32, a.fingerprint().length);
+    assertArrayEquals(a.fingerprint(), b.fingerprint());
+    //record filters are tracked separately
+    b.setRecordFilter("date~2010", null);
+    assertArrayEquals(a.fingerprint(), b.fingerprint());
+    b.setSetting("t1", "pz:url", "host:210/db2", null);
+    assertFalse(Arrays.equals(a.fingerprint(), b.fingerprint()));
+    //fields are separated, so shifting characters between them changes it
+    Pazpar2Settings c = new Pazpar2Settings(new Pazpar2ClientConfiguration(null));
+    c.setSetting("t", "1pz:url", "host:210/db", null);
+    assertFalse(Arrays.equals(a.fingerprint(), c.fingerprint()));
+  }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jakub
+ */
+public class RecordCacheTest {
+  private static final String S1 = "http://localhost/pazpar2/search.pz2|1";
+  private static final String S2 = "http://localhost/pazpar2/search.pz2|2";
+
+  private static CachedResult record(int size) {
+    return new CachedResult(new byte[size]);
+  }
+
+  @Test
+  public void testKeyedBySearchAndRequest() {
+    RecordCache cache = new RecordCache(10000);
+    cache.put(S1, "1|water", "command=record&id=r1", record(10), "text/xml");
+    cache.put(S1, "1|water", "command=record&id=r1&offset=0&syntax=marc21",
+      record(20), "application/marc");
+    assertNotNull(cache.get(S1, "1|water", "command=record&id=r1"));
+    assertEquals("application/marc", cache.get(S1, "1|water",
+      "command=record&id=r1&offset=0&syntax=marc21").getContentType());
+    assertNull("other search", cache.get(S1, "2|fire", "command=record&id=r1"));
+    assertNull("other session", cache.get(S2, "1|water", "command=record&id=r1"));
+    assertEquals(2, cache.getHits());
+    assertEquals(2, cache.getMisses());
+  }
+
+  @Test
+  public void testBoundedByBytes() {
+    int entry = 100 + RecordCache.ENTRY_OVERHEAD;
+    RecordCache cache = new RecordCache(2 * entry);
+    cache.put(S1, "1|q", "command=record&id=r1", record(100), "text/xml");
+    cache.put(S1, "1|q", "command=record&id=r2", record(100), "text/xml");
+    cache.get(S1, "1|q", "command=record&id=r1");
+    cache.put(S2, "1|q", "command=record&id=r3", record(100), "text/xml");
+    assertEquals(2, cache.getEntries());
+    assertEquals(1, cache.getEvictions());
+    assertNull("least recently used evicted", cache.get(S1, "1|q", "command=record&id=r2"));
+    assertNotNull(cache.get(S1, "1|q", "command=record&id=r1"));
+    cache.put(S1, "1|q", "command=record&id=big", record(2 * entry), "text/xml");
+    assertEquals("larger than the budget, not cached", 2, cache.getEntries());
+    assertEquals(2 * entry, cache.getUsed());
+  }
+
+  @Test
+  public void testInvalidate() {
+    RecordCache cache = new RecordCache(10000);
+    cache.put(S1, "1|q", "command=record&id=r1", record(10), "text/xml");
+    cache.put(S1, "1|q", "command=record&id=r2", record(10), "text/xml");
+    cache.put(S2, "1|q", "command=record&id=r1", record(10), "text/xml");
+    cache.invalidate(S1);
+    assertEquals(1, cache.getEntries());
+    assertEquals(10 + RecordCache.ENTRY_OVERHEAD, cache.getUsed());
+    assertNull(cache.get(S1, "1|q", "command=record&id=r1"));
+    assertNotNull(cache.get(S2, "1|q", "command=record&id=r1"));
+  }
+}
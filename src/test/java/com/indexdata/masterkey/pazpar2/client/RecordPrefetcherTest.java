@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jakub
+ */
+public class RecordPrefetcherTest {
+
+  private static void awaitIdle(RecordPrefetcher prefetcher) throws InterruptedException {
+    long until = System.currentTimeMillis() + 5000;
+    while (prefetcher.getPending() > 0 && System.currentTimeMillis() < until) {
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  public void testPrefetchPage() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final AtomicInteger requests = new AtomicInteger();
+      RecordPrefetcher.Fetcher fetcher = new RecordPrefetcher.Fetcher() {
+        @Override
+        public CachedResult fetch(String recid) {
+          requests.incrementAndGet();
+          return "missing".equals(recid) ? null
+            : new CachedResult(("<record>" + recid + "</record>").getBytes());
+        }
+      };
+      RecordPrefetcher prefetcher = new RecordPrefetcher(executor, 3);
+      prefetcher.prefetch(Arrays.asList("r1", "r2", "missing", "r4"), fetcher);
+      awaitIdle(prefetcher);
+      assertEquals("limited to the first hits", 3, requests.get());
+      assertEquals(2, prefetcher.getFetched());
+      assertEquals("<record>r1</record>", new String(prefetcher.get("r1").getBytes()));
+      assertNull(prefetcher.get("missing"));
+      assertNull(prefetcher.get("r4"));
+      prefetcher.prefetch(Arrays.asList("r2", "r5"), fetcher);
+      awaitIdle(prefetcher);
+      assertEquals("only new hits fetched", 4, requests.get());
+      assertNull("dropped with its page", prefetcher.get("r1"));
+      assertNotNull(prefetcher.get("r2"));
+      assertNotNull(prefetcher.get("r5"));
+      assertEquals(3, prefetcher.getServed());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch proceed = new CountDownLatch(1);
+      final AtomicInteger requests = new AtomicInteger();
+      RecordPrefetcher.Fetcher fetcher = new RecordPrefetcher.Fetcher() {
+        @Override
+        public CachedResult fetch(String recid) throws Exception {
+          requests.incrementAndGet();
+          started.countDown();
+          proceed.await(5, TimeUnit.SECONDS);
+          return new CachedResult(new byte[1]);
+        }
+      };
+      RecordPrefetcher prefetcher = new RecordPrefetcher(executor, 10);
+      prefetcher.prefetch(Arrays.asList("r1", "r2", "r3"), fetcher);
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      prefetcher.cancel();
+      proceed.countDown();
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+      assertEquals("queued fetches never sent", 1, requests.get());
+      assertNull("fetch of the old search dropped", prefetcher.get("r1"));
+      assertEquals(0, prefetcher.getFetched());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
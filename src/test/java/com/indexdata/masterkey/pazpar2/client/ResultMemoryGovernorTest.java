@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jakub
+ */
+public class ResultMemoryGovernorTest {
+
+  private static CachedResult put(ResultMemoryGovernor governor,
+    Map<String, CachedResult> cache, String command, int size) {
+    CachedResult result = new CachedResult(new byte[size]);
+    governor.admitted(cache, command, result, cache.put(command, result));
+    return result;
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    int entry = 100 + ResultMemoryGovernor.ENTRY_OVERHEAD;
+    ResultMemoryGovernor governor = new ResultMemoryGovernor(3 * entry);
+    Map<String, CachedResult> a = new ConcurrentHashMap<String, CachedResult>();
+    Map<String, CachedResult> b = new ConcurrentHashMap<String, CachedResult>();
+    put(governor, a, "show", 100);
+    CachedResult termlist = put(governor, a, "termlist", 100);
+    put(governor, b, "show", 100);
+    assertEquals(3 * entry, governor.getUsed());
+    governor.touched(a.get("show"));
+    put(governor, b, "termlist", 100);
+    assertEquals("least recently used evicted", 1, governor.getEvictions());
+    assertFalse(a.containsKey("termlist"));
+    assertTrue(a.containsKey("show"));
+    assertEquals(3, governor.getEntries());
+    assertEquals(3 * entry, governor.getUsed());
+    put(governor, b, "show", 50);
+    assertEquals("replaced entry not accounted", 3, governor.getEntries());
+    assertEquals(2 * entry + 50 + ResultMemoryGovernor.ENTRY_OVERHEAD, governor.getUsed());
+    governor.forget(termlist);
+    assertEquals(1, governor.getEvictions());
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jakub
+ */
+public class SessionLivenessTrackerTest {
+
+  /**
+   * Answers every request with the given status and records the URLs.
+   */
+  private static class FakeTransport implements Pazpar2Transport {
+    final List<String> urls = new ArrayList<String>();
+    int status = 200;
+
+    @Override
+    public Response get(String url) throws IOException {
+      return get(url, 0);
+    }
+
+    @Override
+    public Response get(String url, int readTimeout) throws IOException {
+      urls.add(url);
+      return new Response() {
+        @Override
+        public int getStatusCode() {
+          return status;
+        }
+        @Override
+        public String getHeader(String name) {
+          return null;
+        }
+        @Override
+        public InputStream getBody() throws IOException {
+          return new ByteArrayInputStream(new byte[0]);
+        }
+        @Override
+        public void release() {
+        }
+      };
+    }
+
+    @Override
+    public Response post(String url, String entity, String contentType)
+      throws IOException {
+      return get(url);
+    }
+
+    @Override
+    public Response post(String url, String entity, String contentType,
+      int readTimeout) throws IOException {
+      return get(url);
+    }
+  }
+
+  @Test
+  public void testAliveWithinTTL() throws InterruptedException {
+    SessionLivenessTracker tracker = new SessionLivenessTracker(200, 0, 0);
+    assertFalse(tracker.isAlive("1", "http://localhost/pazpar2"));
+    tracker.confirmed("1", "http://localhost/pazpar2", new FakeTransport());
+    assertTrue(tracker.isAlive("1", "http://localhost/pazpar2"));
+    assertTrue(tracker.isAlive("1", "http://localhost/pazpar2"));
+    assertEquals(2, tracker.getPingsAvoided());
+    Thread.sleep(250);
+    assertFalse("TTL expired", tracker.isAlive("1", "http://localhost/pazpar2"));
+    tracker.confirmed("1", "http://localhost/pazpar2", new FakeTransport());
+    tracker.forget("1", "http://localhost/pazpar2");
+    assertFalse("forgotten", tracker.isAlive("1", "http://localhost/pazpar2"));
+  }
+
+  @Test
+  public void testSameIdOnTwoEndpoints() {
+    SessionLivenessTracker tracker = new SessionLivenessTracker(10000, 0, 0);
+    tracker.confirmed("1", "http://a/pazpar2", new FakeTransport());
+    assertTrue(tracker.isAlive("1", "http://a/pazpar2"));
+    assertFalse("other endpoint's session", tracker.isAlive("1", "http://b/pazpar2"));
+    tracker.confirmed("1", "http://b/pazpar2", new FakeTransport());
+    assertEquals(2, tracker.getTrackedSessions());
+    tracker.forget("1", "http://b/pazpar2");
+    assertFalse(tracker.isAlive("1", "http://b/pazpar2"));
+    assertTrue("not forgotten with the other", tracker.isAlive("1", "http://a/pazpar2"));
+  }
+
+  @Test
+  public void testAbandonedSessionsDropped() throws InterruptedException {
+    //no keepalive, abandoned sessions must not pile up
+    SessionLivenessTracker tracker = new SessionLivenessTracker(50, 0, 0);
+    for (int i = 0; i < 3; i++) {
+      tracker.confirmed("s" + i, "http://localhost/pazpar2", new FakeTransport());
+    }
+    assertEquals(3, tracker.getTrackedSessions());
+    long until = System.currentTimeMillis() + 2000;
+    while (tracker.getTrackedSessions() > 0 && System.currentTimeMillis() < until) {
+      Thread.sleep(10);
+    }
+    assertEquals("swept in the background", 0, tracker.getTrackedSessions());
+    tracker.confirmed("s0", "http://localhost/pazpar2", new FakeTransport());
+    Thread.sleep(60);
+    assertFalse(tracker.isAlive("s0", "http://localhost/pazpar2"));
+    assertEquals("expired on lookup, if not swept already", 0,
+      tracker.getTrackedSessions());
+  }
+
+  @Test
+  public void testDisabled() {
+    SessionLivenessTracker tracker = new SessionLivenessTracker(0, 0, 0);
+    tracker.confirmed("1", "http://localhost/pazpar2", new FakeTransport());
+    assertFalse(tracker.isAlive("1", "http://localhost/pazpar2"));
+    assertEquals(0, tracker.getTrackedSessions());
+  }
+
+  @Test
+  public void testKeepalive() throws InterruptedException {
+    FakeTransport transport = new FakeTransport();
+    //no background thread, keepalive is driven by hand
+    SessionLivenessTracker tracker = new SessionLivenessTracker(10000, 0, 0);
+    tracker.confirmed("1", "http://localhost/pazpar2", transport);
+    Thread.sleep(5);
+    tracker.keepalive();
+    assertEquals("used too long ago", 0, tracker.getTrackedSessions());
+    assertTrue(transport.urls.isEmpty());
+
+    tracker = new SessionLivenessTracker(10000, 0, 60000);
+    tracker.confirmed("1", "http://localhost/pazpar2", transport);
+    tracker.keepalive();
+    assertEquals(1, tracker.getKeepalivePings());
+    assertEquals("http://localhost/pazpar2?command=ping&session=1", transport.urls.get(0));
+    assertTrue(tracker.isAlive("1", "http://localhost/pazpar2"));
+    transport.status = 417;
+    tracker.keepalive();
+    assertEquals("session gone", 0, tracker.getTrackedSessions());
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.masterkey.pazpar2.client;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.indexdata.utils.CacheEntry;
+import com.indexdata.utils.LRUCache;
+
+/**
+ *
+ * @author jakub
+ */
+public class TorusSettingsRefresherTest {
+  private static final String URI = "http://localhost/torus/searchable/records/test/";
+  private static final long NEVER = 3600000;
+
+  /**
+   * Counts loads, returns new settings unless told the upstream is unchanged.
+   */
+  private static class CountingLoader implements TorusSettingsRefresher.Loader {
+    final AtomicInteger full = new AtomicInteger();
+    final AtomicInteger conditional = new AtomicInteger();
+    volatile boolean modified = false;
+    volatile CountDownLatch gate = null;
+
+    @Override
+    public Pazpar2Settings load(String torusURI, Date lastModified) {
+      if (lastModified == null) {
+        full.incrementAndGet();
+      } else {
+        conditional.incrementAndGet();
+        if (!modified) {
+          return null;
+        }
+      }
+      try {
+        if (gate != null) {
+          gate.await(5, TimeUnit.SECONDS);
+        }
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      return new Pazpar2Settings(null);
+    }
+  }
+
+  @Test
+  public void testServesCachedAndRevalidates() throws Exception {
+    TorusSettingsRefresher refresher = new TorusSettingsRefresher(NEVER);
+    LRUCache<String, CacheEntry> cache = new LRUCache<String, CacheEntry>(10);
+    CountingLoader loader = new CountingLoader();
+    Pazpar2Settings first = refresher.get(URI, cache, loader);
+    assertSame(first, refresher.get(URI, cache, loader));
+    assertEquals(1, loader.full.get());
+    assertEquals("no torus request for cached settings", 0, loader.conditional.get());
+    refresher.refresh();
+    assertEquals(1, loader.conditional.get());
+    assertSame(first, refresher.get(URI, cache, loader));
+    loader.modified = true;
+    refresher.refresh();
+    assertNotSame(first, refresher.get(URI, cache, loader));
+    assertEquals(1, refresher.getRefreshed());
+    cache.remove(URI);
+    refresher.refresh();
+    assertEquals("no longer cached, no longer watched", 0, refresher.getWatched());
+  }
+
+  @Test
+  public void testRevalidatesAfterIdle() throws Exception {
+    TorusSettingsRefresher refresher = new TorusSettingsRefresher(20);
+    LRUCache<String, CacheEntry> cache = new LRUCache<String, CacheEntry>(10);
+    CountingLoader loader = new CountingLoader();
+    Pazpar2Settings first = refresher.get(URI, cache, loader);
+    //idle long enough for the watch to be dropped
+    Thread.sleep(20 * TorusSettingsRefresher.MAX_IDLE_INTERVALS + 200);
+    assertEquals(0, refresher.getWatched());
+    loader.modified = true;
+    int conditional = loader.conditional.get();
+    Pazpar2Settings second = refresher.get(URI, cache, loader);
+    assertEquals("checked before served", conditional + 1, loader.conditional.get());
+    assertNotSame(first, second);
+    assertEquals(1, loader.full.get());
+  }
+
+  @Test
+  public void testSingleFlightMiss() throws Exception {
+    final TorusSettingsRefresher refresher = new TorusSettingsRefresher(NEVER);
+    final LRUCache<String, CacheEntry> cache = new LRUCache<String, CacheEntry>(10);
+    final CountingLoader loader = new CountingLoader();
+    loader.gate = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Pazpar2Settings>> results = new ArrayList<Future<Pazpar2Settings>>();
+      for (int i = 0; i < 8; i++) {
+        results.add(executor.submit(new Callable<Pazpar2Settings>() {
+          @Override
+          public Pazpar2Settings call() throws Exception {
+            return refresher.get(URI, cache, loader);
+          }
+        }));
+      }
+      long until = System.currentTimeMillis() + 5000;
+      while (refresher.getJoined() < 7 && System.currentTimeMillis() < until) {
+        Thread.sleep(5);
+      }
+      loader.gate.countDown();
+      Pazpar2Settings settings = results.get(0).get(5, TimeUnit.SECONDS);
+      for (Future<Pazpar2Settings> f : results) {
+        assertSame(settings, f.get(5, TimeUnit.SECONDS));
+      }
+      assertEquals("one load for all", 1, loader.full.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+
+package com.indexdata.rest.client;
+
+import java.io.ByteArrayInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jakub
+ */
+public class HttpResponseCacheTest {
+
+    /**
+     * Response with canned headers, never connects.
+     */
+    private static class Response extends HttpURLConnection {
+        private final Map<String, String> headers = new HashMap<String, String>();
+
+        Response() throws Exception {
+            super(new URL("http://localhost/torus/records/"));
+        }
+
+        Response header(String name, String value) {
+            headers.put(name.toLowerCase(), value);
+            return this;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        @Override
+        public void connect() {
+        }
+    }
+
+    @Test
+    public void testExpiry() {
+        long now = 1000000;
+        assertEquals(now + 60000, HttpResponseCache.expiry("public, max-age=60", 0, now));
+        assertEquals(HttpResponseCache.NO_STORE, HttpResponseCache.expiry("no-store", 0, now));
+        assertEquals(now, HttpResponseCache.expiry("no-cache, max-age=60", 0, now));
+        assertEquals("max-age wins over Expires", now,
+            HttpResponseCache.expiry("max-age=0", now + 5000, now));
+        assertEquals(now + 5000, HttpResponseCache.expiry(null, now + 5000, now));
+        assertEquals(now, HttpResponseCache.expiry(null, 0, now));
+    }
+
+    @Test
+    public void testStoresWhatServerPermits() throws Exception {
+        HttpResponseCache cache = new HttpResponseCache(1024 * 1024);
+        long now = System.currentTimeMillis();
+        cache.put("fresh", new Response().header("Cache-Control", "max-age=60"),
+            new byte[10], now);
+        assertTrue(cache.get("fresh").isFresh(now + 1000));
+        assertFalse(cache.get("fresh").isFresh(now + 60000));
+        cache.put("etag", new Response().header("ETag", "\"v1\""), new byte[10], now);
+        HttpResponseCache.Entry etag = cache.get("etag");
+        assertFalse("must be revalidated", etag.isFresh(now));
+        assertTrue(etag.hasValidators());
+        Response request = new Response();
+        HttpResponseCache.addValidators(request, etag);
+        assertEquals("\"v1\"", request.getRequestProperty("If-None-Match"));
+        cache.revalidated(etag, new Response().header("Cache-Control", "max-age=60"), now);
+        assertTrue("304 extends freshness", etag.isFresh(now + 1000));
+        assertFalse(etag.isModifiedSince(new Date(now)));
+        assertTrue(etag.isModifiedSince(new Date(now - 1)));
+        cache.put("plain", new Response(), new byte[10], now);
+        assertNull("no freshness, no validators", cache.get("plain"));
+        cache.put("nostore", new Response().header("Cache-Control", "no-store")
+            .header("ETag", "\"v1\""), new byte[10], now);
+        assertNull(cache.get("nostore"));
+        assertEquals(2, cache.getEntries());
+        assertEquals(1, cache.getRevalidated());
+    }
+
+    @Test
+    public void testRecordsBodiesWithinBudget() throws Exception {
+        HttpResponseCache cache = new HttpResponseCache(HttpResponseCache.ENTRY_OVERHEAD + 100);
+        HttpResponseCache.BodyRecorder small = cache.record(
+            new ByteArrayInputStream(new byte[100]));
+        assertEquals(60, small.read(new byte[60], 0, 60));
+        small.drain();
+        assertEquals(100, small.getBody().length);
+        HttpResponseCache.BodyRecorder large = cache.record(
+            new ByteArrayInputStream(new byte[101]));
+        large.drain();
+        assertNull("outgrew the budget", large.getBody());
+        cache.put("large", new Response().header("Cache-Control", "max-age=60"),
+            large.getBody(), System.currentTimeMillis());
+        assertEquals(0, cache.getEntries());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        int size = 1000;
+        HttpResponseCache cache = new HttpResponseCache(
+            3 * (size + HttpResponseCache.ENTRY_OVERHEAD));
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 4; i++) {
+            cache.put("r" + i, new Response().header("Cache-Control", "max-age=60"),
+                new byte[size], now);
+        }
+        assertNull("least recently used evicted", cache.get("r0"));
+        assertNotNull(cache.get("r3"));
+        assertEquals(3, cache.getEntries());
+        assertEquals(1, cache.getEvictions());
+        assertTrue(cache.getUsed() <= cache.getBudget());
+        cache.invalidate("r3");
+        assertNull(cache.get("r3"));
+        assertEquals(2 * (size + HttpResponseCache.ENTRY_OVERHEAD), cache.getUsed());
+    }
+}
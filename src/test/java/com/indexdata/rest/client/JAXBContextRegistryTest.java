@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+
+package com.indexdata.rest.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.indexdata.torus.Record;
+import com.indexdata.torus.Records;
+
+/**
+ *
+ * @author jakub
+ */
+public class JAXBContextRegistryTest {
+  private static final String PACKAGES = "com.indexdata.torus.layer:com.indexdata.torus";
+  private static final String RECORDS =
+    "<records><record type=\"searchable\"/><record type=\"category\"/></records>";
+
+  @Test
+  public void testSharedContext() throws Exception {
+    JAXBContextRegistry.warmUp(PACKAGES);
+    JAXBContextRegistry.Binding binding = JAXBContextRegistry.forPackages(PACKAGES);
+    assertSame(binding, JAXBContextRegistry.forPackages(PACKAGES));
+    assertSame(binding.getContext(), JAXBContextRegistry.forPackages(PACKAGES).getContext());
+    assertSame(JAXBContextRegistry.forClass(Records.class),
+      JAXBContextRegistry.forClass(Records.class));
+    assertNotSame(binding, JAXBContextRegistry.forClass(Records.class));
+  }
+
+  @Test
+  public void testPooledRoundTrip() throws Exception {
+    JAXBContextRegistry.Binding binding = JAXBContextRegistry.forPackages(PACKAGES);
+    for (int i = 0; i < 3; i++) {
+      Records records = (Records) binding.unmarshal(
+        new ByteArrayInputStream(RECORDS.getBytes("UTF-8")));
+      assertEquals(2, records.getRecords().size());
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      binding.marshal(records, os);
+      Records copy = (Records) binding.unmarshal(new ByteArrayInputStream(os.toByteArray()));
+      assertEquals("category", ((Record) copy.getRecords().toArray()[1]).getType());
+    }
+    assertEquals("unmarshallers reused", 1, binding.getIdleUnmarshallers());
+    assertEquals("marshallers reused", 1, binding.getIdleMarshallers());
+  }
+
+  @Test
+  public void testUnmarshalEach() throws Exception {
+    JAXBContextRegistry.Binding binding = JAXBContextRegistry.forPackages(PACKAGES);
+    final List<String> types = new ArrayList<String>();
+    int count = binding.unmarshalEach(new ByteArrayInputStream(RECORDS.getBytes("UTF-8")),
+      "record", Record.class, new JAXBContextRegistry.ElementHandler<Record>() {
+        @Override
+        public void handle(Record record) {
+          types.add(record.getType());
+        }
+      });
+    assertEquals(2, count);
+    assertEquals(Arrays.asList("searchable", "category"), types);
+  }
+}
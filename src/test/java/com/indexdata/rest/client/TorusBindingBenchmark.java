@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+
+package com.indexdata.rest.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.indexdata.torus.Layer;
+import com.indexdata.torus.Record;
+import com.indexdata.torus.Records;
+import com.indexdata.torus.layer.KeyValue;
+import com.indexdata.torus.layer.SearchableTypeLayer;
+
+/**
+ * Compares the JAXB and the StAX binding of torus searchables, streaming a
+ * realm one record at a time as Pazpar2ClientTorus does. Not a unit test, run
+ * with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=com.indexdata.rest.client.TorusBindingBenchmark
+ *   -Dexec.classpathScope=test -Dexec.args="2000 20"
+ * </pre>
+ *
+ * @author jakub
+ */
+public class TorusBindingBenchmark {
+  private static final String PACKAGES = "com.indexdata.torus.layer:com.indexdata.torus";
+
+  private static byte[] realm(int size) throws Exception {
+    List<Record> list = new ArrayList<Record>();
+    for (int i = 0; i < size; i++) {
+      SearchableTypeLayer l = new SearchableTypeLayer();
+      l.setLayerName("final");
+      l.setId(Integer.toString(i));
+      l.setName("Target " + i);
+      l.setZurl("z3950.example.com:210/db" + i);
+      l.setCclMapAu("1=1004 s=al");
+      l.setCclMapTi("1=4 s=al");
+      l.setCclMapSu("1=21 s=al");
+      l.setCclMapTerm("1=1016 s=al");
+      l.setRequestSyntax("marc21");
+      l.setElementSet("F");
+      l.setTransform("marc21.xsl");
+      l.setCategories("id_openaccess");
+      l.getDynamicElements().add(new KeyValue("facetmap_author", "author"));
+      l.getDynamicElements().add(new KeyValue("limitmap_author", "rpn: @attr 1=1004 @attr 6=3"));
+      Record record = new Record("searchable");
+      List<Layer> layers = new ArrayList<Layer>();
+      layers.add(l);
+      record.setLayers(layers);
+      list.add(record);
+    }
+    Records records = new Records();
+    records.setRecords(list);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    TorusStaxBinder.INSTANCE.marshal(records, os);
+    return os.toByteArray();
+  }
+
+  private static long run(ResourceBinder binder, byte[] xml) throws Exception {
+    final int[] layers = {0};
+    long start = System.nanoTime();
+    binder.unmarshalEach(new ByteArrayInputStream(xml), "record", Record.class,
+      new JAXBContextRegistry.ElementHandler<Record>() {
+        @Override
+        public void handle(Record record) {
+          layers[0] += record.getLayers().size();
+        }
+      });
+    return System.nanoTime() - start;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    byte[] xml = realm(size);
+    long start = System.nanoTime();
+    ResourceBinder jaxb = JAXBContextRegistry.forPackages(PACKAGES);
+    System.out.println("JAXB context created in "
+      + (System.nanoTime() - start) / 1000000 + " ms");
+    ResourceBinder stax = TorusStaxBinder.INSTANCE;
+    System.out.println(size + " records, " + xml.length + " bytes, " + rounds + " rounds");
+    for (int i = 0; i < rounds / 2; i++) {
+      run(jaxb, xml);
+      run(stax, xml);
+    }
+    long jaxbTime = 0, staxTime = 0;
+    for (int i = 0; i < rounds; i++) {
+      jaxbTime += run(jaxb, xml);
+      staxTime += run(stax, xml);
+    }
+    System.out.println("jaxb: " + jaxbTime / rounds / 1000 + " us/realm");
+    System.out.println("stax: " + staxTime / rounds / 1000 + " us/realm");
+  }
+}
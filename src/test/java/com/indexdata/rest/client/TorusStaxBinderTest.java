@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+
+package com.indexdata.rest.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.indexdata.torus.Layer;
+import com.indexdata.torus.Record;
+import com.indexdata.torus.Records;
+import com.indexdata.torus.layer.SearchableTypeLayer;
+
+/**
+ *
+ * @author jakub
+ */
+public class TorusStaxBinderTest {
+
+  private static Records records(int n) {
+    List<Record> list = new ArrayList<Record>();
+    for (int i = 0; i < n; i++) {
+      Record record = new Record("searchable");
+      SearchableTypeLayer l = new SearchableTypeLayer();
+      l.setLayerName("final");
+      l.setName("Target " + i);
+      l.setZurl("localhost:9999/db" + i);
+      List<Layer> layers = new ArrayList<Layer>();
+      layers.add(l);
+      record.setLayers(layers);
+      list.add(record);
+    }
+    Records records = new Records();
+    records.setRecords(list);
+    return records;
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    TorusStaxBinder.INSTANCE.marshal(records(3), os);
+    Records copy = (Records) TorusStaxBinder.INSTANCE.unmarshal(
+      new ByteArrayInputStream(os.toByteArray()));
+    assertEquals(3, copy.getRecords().size());
+    final List<String> names = new ArrayList<String>();
+    int count = TorusStaxBinder.INSTANCE.unmarshalEach(
+      new ByteArrayInputStream(os.toByteArray()), "record", Record.class,
+      new JAXBContextRegistry.ElementHandler<Record>() {
+        @Override
+        public void handle(Record record) {
+          names.add(((SearchableTypeLayer) record.getLayers().get(0)).getName());
+        }
+      });
+    assertEquals(3, count);
+    assertEquals("Target 2", names.get(2));
+  }
+}
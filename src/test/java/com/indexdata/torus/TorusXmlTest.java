@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+
+package com.indexdata.torus;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.indexdata.torus.layer.CategoryTypeLayer;
+import com.indexdata.torus.layer.IdentityTypeLayer;
+import com.indexdata.torus.layer.KeyValue;
+import com.indexdata.torus.layer.SearchableTypeLayer;
+
+/**
+ *
+ * @author jakub
+ */
+public class TorusXmlTest {
+  private static final String RECORD =
+    "<record type=\"searchable\" uri=\"http://localhost/torus/records/1/\">"
+    + "<layer name=\"final\" xmlns:x=\"http://www.w3.org/2001/XMLSchema-instance\""
+    + " x:type=\"searchableTypeLayer\">"
+    + "<id>1</id><displayName>Library</displayName><zurl>z3950.loc.gov:7090/voyager</zurl>"
+    + "<cclmap_au>1=1004</cclmap_au><sru>get</sru>"
+    + "<facetmap_author>author</facetmap_author>"
+    + "<categories>id_openaccess</categories><categories>id_other</categories>"
+    + "</layer></record>";
+
+  private static Layer roundTrip(Layer layer) throws Exception {
+    StringWriter xml = new StringWriter();
+    XMLStreamWriter w = XMLOutputFactory.newInstance().createXMLStreamWriter(xml);
+    TorusXml.writeLayer(w, layer);
+    w.close();
+    XMLStreamReader r = XMLInputFactory.newInstance()
+      .createXMLStreamReader(new StringReader(xml.toString()));
+    r.nextTag();
+    return TorusXml.readLayer(r);
+  }
+
+  /**
+   * Every property of the layer classes must survive a round trip as a
+   * property, not as a dynamic element, or the property tables are stale.
+   */
+  @Test
+  public void testPropertyTables() throws Exception {
+    Class<?>[] types = {SearchableTypeLayer.class, IdentityTypeLayer.class,
+      CategoryTypeLayer.class};
+    for (Class<?> type : types) {
+      Layer layer = (Layer) type.newInstance();
+      int properties = 0;
+      for (Method getter : type.getMethods()) {
+        if (!getter.getName().startsWith("get") || getter.getParameterTypes().length != 0
+          || getter.getReturnType() != String.class
+          || Modifier.isStatic(getter.getModifiers())) {
+          continue;
+        }
+        Method setter;
+        try {
+          setter = type.getMethod("set" + getter.getName().substring(3), String.class);
+        } catch (NoSuchMethodException nsme) {
+          continue;
+        }
+        setter.invoke(layer, "value of " + getter.getName());
+        properties++;
+      }
+      Layer copy = roundTrip(layer);
+      assertSame(type, copy.getClass());
+      assertTrue(type.getSimpleName() + " has unbound properties: "
+        + copy.getDynamicElements().size(), copy.getDynamicElements().isEmpty());
+      for (Method getter : type.getMethods()) {
+        if (getter.getName().startsWith("get") && getter.getParameterTypes().length == 0
+          && getter.getReturnType() == String.class) {
+          assertEquals(getter.invoke(layer), getter.invoke(copy));
+        }
+      }
+      assertTrue(properties > 0);
+    }
+  }
+
+  @Test
+  public void testReadRecord() throws Exception {
+    XMLStreamReader r = XMLInputFactory.newInstance()
+      .createXMLStreamReader(new StringReader(RECORD));
+    r.nextTag();
+    Record record = TorusXml.readRecord(r);
+    assertEquals("searchable", record.getType());
+    assertEquals("http://localhost/torus/records/1/", record.getUri().toString());
+    assertEquals(1, record.getLayers().size());
+    SearchableTypeLayer l = (SearchableTypeLayer) record.getLayers().get(0);
+    assertEquals("final", l.getLayerName());
+    assertEquals("1", l.getId());
+    assertEquals("Library", l.getName());
+    assertEquals("z3950.loc.gov:7090/voyager", l.getZurl());
+    assertEquals("1=1004", l.getCclMapAu());
+    assertEquals("get", l.getSRU());
+    assertEquals("id_other", l.getCategories());
+    assertEquals(1, l.getDynamicElements().size());
+    KeyValue kv = l.getDynamicElements().get(0);
+    assertEquals("facetmap_author", kv.getName());
+    assertEquals("author", kv.getValue());
+  }
+
+  @Test
+  public void testIdentityRealms() throws Exception {
+    IdentityTypeLayer identity = new IdentityTypeLayer();
+    identity.setIdentityId("diku");
+    IdentityTypeLayer copy = (IdentityTypeLayer) roundTrip(identity);
+    assertEquals("searchable.diku", copy.getSearchablesRealm());
+    identity.setCategoriesRealm("cat.other");
+    copy = (IdentityTypeLayer) roundTrip(identity);
+    assertEquals("cat.other", copy.getCategoriesRealm());
+  }
+}
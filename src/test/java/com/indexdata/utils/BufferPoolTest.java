@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jakub
+ */
+public class BufferPoolTest {
+
+  @Test
+  public void testReuse() {
+    BufferPool pool = new BufferPool(16, 1);
+    byte[] a = pool.acquire();
+    byte[] b = pool.acquire();
+    assertEquals(16, a.length);
+    assertEquals(2, pool.getAllocations());
+    pool.release(a);
+    pool.release(b);
+    assertEquals("bounded", 1, pool.getIdle());
+    pool.release(new byte[8]);
+    assertEquals("foreign size ignored", 1, pool.getIdle());
+    assertSame(a, pool.acquire());
+    assertEquals(1, pool.getReuses());
+    assertEquals(0, pool.getIdle());
+    assertSame(BufferPool.forSize(16), BufferPool.forSize(16));
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jakub
+ */
+public class HistogramTest {
+
+  @Test
+  public void testBuckets() {
+    for (long v = 0; v < 100000; v++) {
+      int b = Histogram.bucket(v);
+      assertTrue("value within bucket " + v, v <= Histogram.upperBound(b));
+      assertTrue("bucket within 25% " + v, Histogram.upperBound(b) <= v + v / 4);
+    }
+    assertTrue(Histogram.bucket(Long.MAX_VALUE) < 256);
+  }
+
+  @Test
+  public void testPercentiles() {
+    Histogram h = new Histogram();
+    assertEquals(0, h.getPercentile(0.99));
+    for (int i = 1; i <= 1000; i++) {
+      h.record(i);
+    }
+    assertEquals(1000, h.getCount());
+    assertEquals(500, h.getMean());
+    assertEquals(1000, h.getMax());
+    long p50 = h.getPercentile(0.5);
+    assertTrue(p50 >= 500 && p50 <= 625);
+    long p99 = h.getPercentile(0.99);
+    assertTrue(p99 >= 990 && p99 <= 1000);
+    assertEquals(1000, h.getPercentile(1.0));
+  }
+}
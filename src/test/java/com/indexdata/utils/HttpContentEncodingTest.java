@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jakub
+ */
+public class HttpContentEncodingTest {
+
+  @Test
+  public void testNegotiate() {
+    assertEquals("gzip", HttpContentEncoding.negotiate("gzip, deflate, br"));
+    assertEquals("deflate", HttpContentEncoding.negotiate("deflate;q=0.5, gzip;q=0"));
+    assertEquals("gzip", HttpContentEncoding.negotiate("*"));
+    assertNull(HttpContentEncoding.negotiate("identity"));
+    assertNull(HttpContentEncoding.negotiate(null));
+    assertNull(HttpContentEncoding.normalize("Identity"));
+    assertEquals("gzip", HttpContentEncoding.normalize("X-GZIP"));
+    assertFalse(HttpContentEncoding.isSupported("br"));
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    for (String enc : new String[] {"gzip", "deflate"}) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      ContentEncodingOutputStream eos = new ContentEncodingOutputStream(compressed, enc);
+      eos.write("<show><hit/></show>".getBytes("UTF-8"));
+      eos.finish();
+      InputStream is = HttpContentEncoding.decode(
+        new ByteArrayInputStream(compressed.toByteArray()), enc);
+      ByteArrayOutputStream plain = new ByteArrayOutputStream();
+      for (int b; (b = is.read()) != -1;) {
+        plain.write(b);
+      }
+      assertEquals(enc, "<show><hit/></show>", plain.toString("UTF-8"));
+    }
+    //an empty body is not decoded until read
+    HttpContentEncoding.decode(new ByteArrayInputStream(new byte[0]), "gzip").close();
+  }
+
+  @Test
+  public void testPassThrough() throws IOException {
+    ByteArrayOutputStream target = new ByteArrayOutputStream();
+    ContentEncodingOutputStream eos = new ContentEncodingOutputStream(target, "gzip");
+    eos.passThrough().write(new byte[] {1, 2, 3});
+    eos.finish();
+    assertEquals("nothing added", 3, target.size());
+    try {
+      eos.write(4);
+      fail("writing after pass-through must fail");
+    } catch (IllegalStateException ise) {
+    }
+    assertEquals("nothing mixed into the body", 3, target.size());
+  }
+
+  @Test
+  public void testEmptyBody() throws IOException {
+    for (String enc : new String[] {"gzip", "deflate"}) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      ContentEncodingOutputStream eos = new ContentEncodingOutputStream(compressed, enc);
+      eos.finish();
+      assertTrue(enc + " trailer written", compressed.size() > 0);
+      InputStream is = HttpContentEncoding.decode(
+        new ByteArrayInputStream(compressed.toByteArray()), enc);
+      assertEquals(enc, -1, is.read());
+    }
+  }
+}
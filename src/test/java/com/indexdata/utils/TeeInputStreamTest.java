@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 1995-2016, Index Data
+ * All rights reserved.
+ * See the file LICENSE for details.
+ */
+package com.indexdata.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jakub
+ */
+public class TeeInputStreamTest {
+
+  @Test
+  public void testReadCopiesToBranch() throws IOException {
+    byte[] data = "<show><hit/></show>".getBytes("UTF-8");
+    ByteArrayOutputStream branch = new ByteArrayOutputStream();
+    TeeInputStream tee = new TeeInputStream(new ByteArrayInputStream(data), branch);
+    assertEquals('<', tee.read());
+    byte[] buf = new byte[5];
+    assertEquals(5, tee.read(buf, 0, buf.length));
+    assertEquals(3, tee.skip(3));
+    assertEquals("<show><hi", branch.toString("UTF-8"));
+    tee.close();
+    assertEquals("remainder relayed on close", "<show><hit/></show>",
+      branch.toString("UTF-8"));
+    tee.close();
+    assertEquals(data.length, branch.size());
+  }
+}